@@ -20,6 +20,7 @@ import java.lang.invoke.MethodHandles;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.qaprosoft.carina.core.foundation.filter.impl.ImpactFilter;
 import com.qaprosoft.carina.core.foundation.filter.impl.OwnerFilter;
 import com.qaprosoft.carina.core.foundation.filter.impl.PriorityFilter;
 import com.qaprosoft.carina.core.foundation.filter.impl.TagFilter;
@@ -31,7 +32,8 @@ public enum Filter {
 
     PRIORITY("PRIORITY", new PriorityFilter()),
     OWNER("OWNER", new OwnerFilter()),
-    TAGS("TAGS", new TagFilter());
+    TAGS("TAGS", new TagFilter()),
+    IMPACT("IMPACT", new ImpactFilter());
 
     private static final Logger LOGGER = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
 
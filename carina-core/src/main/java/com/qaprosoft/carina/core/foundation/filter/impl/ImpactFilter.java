@@ -0,0 +1,65 @@
+/*******************************************************************************
+ * Copyright 2020-2022 Zebrunner Inc (https://www.zebrunner.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.qaprosoft.carina.core.foundation.filter.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import org.testng.ITestNGMethod;
+
+import com.zebrunner.carina.core.testng.TestImpactManager;
+
+/**
+ * Filter which runs only tests affected by the changed java sources.
+ * Rule value is a file with list of changed files (for example output of "git diff --name-only") or list of changed files itself:
+ * test_run_rules=IMPACT=>changed-files.txt
+ */
+public class ImpactFilter extends Filter {
+
+    private List<String> cachedRules = null;
+    private Set<String> changedClasses = null;
+
+    @Override
+    public boolean isPerform(ITestNGMethod testMethod, List<String> rules) {
+        if (testMethod == null) {
+            return false;
+        }
+
+        Set<String> classes = getChangedClasses(rules);
+        if (classes == null) {
+            // impact could not be calculated, so test should be executed
+            return true;
+        }
+
+        boolean isAffected = TestImpactManager.getInstance().isAffected(testMethod, classes);
+        LOGGER.info(String.format("Test: [%s]. Affected by changes: [%s]", testMethod.getMethodName(), isAffected));
+        return isAffected;
+    }
+
+    private synchronized Set<String> getChangedClasses(List<String> rules) {
+        if (!rules.equals(cachedRules)) {
+            List<String> values = new ArrayList<>();
+            for (String rule : rules) {
+                values.add(rule.replaceFirst("^(&&|\\|\\|)", ""));
+            }
+            changedClasses = TestImpactManager.toClassNames(TestImpactManager.readChangedFiles(values));
+            cachedRules = rules;
+            LOGGER.info("Changed classes: " + changedClasses);
+        }
+        return changedClasses;
+    }
+}
@@ -15,9 +15,13 @@
  *******************************************************************************/
 package com.qaprosoft.carina.core.foundation.listeners;
 
+import java.io.File;
 import java.lang.invoke.MethodHandles;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.Map;
+import java.util.Set;
 
 import org.apache.commons.lang3.StringEscapeUtils;
 import org.apache.commons.lang3.StringUtils;
@@ -33,6 +37,13 @@ import com.qaprosoft.carina.core.foundation.report.email.EmailReportItemCollecto
 import com.zebrunner.agent.testng.core.retry.RetryAnalyzerInterceptor;
 import com.zebrunner.agent.testng.core.testname.TestNameResolverRegistry;
 import com.zebrunner.agent.testng.listener.RetryService;
+import com.zebrunner.carina.core.export.ResultExportManager;
+import com.zebrunner.carina.core.failure.FailureClusterManager;
+import com.zebrunner.carina.core.failure.FailureFingerprint;
+import com.zebrunner.carina.core.log.ThreadLogAppender;
+import com.zebrunner.carina.core.report.ReportRetentionManager;
+import com.zebrunner.carina.core.report.ScreenshotProcessor;
+import com.zebrunner.carina.core.report.TestReportQueue;
 import com.zebrunner.carina.core.testng.TestNamingService;
 import com.zebrunner.carina.utils.DateUtils;
 import com.zebrunner.carina.utils.ParameterGenerator;
@@ -61,6 +72,7 @@ public class AbstractTestListener extends TestListenerAdapter implements IDriver
 
         EmailReportItemCollector
                 .push(createTestResult(result, TestResultType.PASS, null, result.getMethod().getDescription()));
+        ResultExportManager.getInstance().export(result, TestResultType.PASS, null);
         result.getTestContext().removeAttribute(SpecialKeywords.TEST_FAILURE_MESSAGE);
 
     }
@@ -75,6 +87,14 @@ public class AbstractTestListener extends TestListenerAdapter implements IDriver
             failType = TestResultType.SKIP;
         }
 
+        String reportReason = errorMessage;
+        if (failType == TestResultType.FAIL && result.getThrowable() != null) {
+            // tests failed by the same problem are reported as one cluster which stores the trace once,
+            // the report item keeps the own message of the test only
+            FailureFingerprint fingerprint = FailureClusterManager.getInstance().register(test, result.getThrowable());
+            reportReason = getFailureMessage(result.getThrowable()) + "\n\nTrace: failure cluster " + fingerprint.getHash();
+        }
+
         // TODO: remove hard-coded text
         if (!errorMessage.contains("All tests were skipped! Analyze logs to determine possible configuration issues.")) {
             messager.error(test, DateUtils.now(), errorMessage);
@@ -84,18 +104,45 @@ public class AbstractTestListener extends TestListenerAdapter implements IDriver
                 EmailReportItemCollector.push(createTestResult(result, failType,
                         result.getThrowable().getMessage(), result.getMethod().getDescription()));
             } else {
-                EmailReportItemCollector.push(createTestResult(result, failType, errorMessage, result
+                EmailReportItemCollector.push(createTestResult(result, failType, reportReason, result
                         .getMethod().getDescription()));
             }
         }
+        ResultExportManager.getInstance().export(result, failType, errorMessage);
 
         result.getTestContext().removeAttribute(SpecialKeywords.TEST_FAILURE_MESSAGE);
         return errorMessage;
     }
 
     private void afterTest(ITestResult result) {
-        ReportContext.generateTestReport();
-        ReportContext.emptyTestDirData();
+        boolean passed = result.getStatus() == ITestResult.SUCCESS;
+        if (passed) {
+            ThreadLogAppender.discardTestLog();
+        } else {
+            ThreadLogAppender.persistTestLog();
+        }
+        // write pending log lines of async ThreadLogAppender before the report generation
+        ThreadLogAppender.flush();
+        File testDir = ReportContext.getTestDir();
+        if (TestReportQueue.getInstance().isEnabled()) {
+            // test thread only hands the directory over to the report worker
+            ThreadLogAppender.closeTestLog();
+            ReportContext.emptyTestDirData();
+            TestReportQueue.getInstance().submit(testDir, () -> ReportRetentionManager.getInstance().register(testDir, passed));
+        } else if (ScreenshotProcessor.getInstance().isEnabled()) {
+            // screenshots are processed by the background thread, so the report is generated by it afterwards
+            ThreadLogAppender.closeTestLog();
+            ReportContext.emptyTestDirData();
+            ScreenshotProcessor.getInstance().submit(testDir, () -> {
+                TestReportQueue.generateReport(testDir);
+                ReportRetentionManager.getInstance().register(testDir, passed);
+            });
+        } else {
+            ThreadLogAppender.closeTestLog();
+            ReportContext.generateTestReport();
+            ReportContext.emptyTestDirData();
+            ReportRetentionManager.getInstance().register(testDir, passed);
+        }
     }
 
     @Override
@@ -202,6 +249,8 @@ public class AbstractTestListener extends TestListenerAdapter implements IDriver
     public void onTestSkipped(ITestResult result) {
         LOGGER.debug("AbstractTestListener->onTestSkipped");
         failItem(result, Messager.TEST_SKIPPED);
+        ThreadLogAppender.persistTestLog();
+        ThreadLogAppender.flush();
         //there is no need to afterTest as it is retry failure and we wanna to proceed with the same test.log etc
         super.onTestSkipped(result);
     }
@@ -251,19 +300,32 @@ public class AbstractTestListener extends TestListenerAdapter implements IDriver
     }
 
     private String getFullStackTrace(Throwable thr) {
-        String stackTrace = "";
+        StringBuilder stackTrace = new StringBuilder();
 
         if (thr != null) {
-            stackTrace = thr.getMessage() + "\n";
+            stackTrace.append(thr.getMessage()).append('\n');
 
             StackTraceElement[] elems = thr.getStackTrace();
             for (StackTraceElement elem : elems) {
-                stackTrace = stackTrace + "\n" + elem.toString();
+                stackTrace.append('\n').append(elem);
+            }
+
+            Set<Throwable> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+            visited.add(thr);
+            for (Throwable cause = thr.getCause(); cause != null && visited.add(cause); cause = cause.getCause()) {
+                stackTrace.append("\n\nCaused by: ").append(cause);
+                for (StackTraceElement elem : cause.getStackTrace()) {
+                    stackTrace.append('\n').append(elem);
+                }
             }
         }
-        return stackTrace;
+        return stackTrace.toString();
     }
     
+    private String getFailureMessage(Throwable thr) {
+        return StringUtils.isEmpty(thr.getMessage()) ? thr.toString() : thr.getMessage();
+    }
+
     private IRetryAnalyzer getRetryAnalyzer(ITestResult result) {
         return result.getMethod().getRetryAnalyzer(result);
     }
@@ -16,8 +16,13 @@
 package com.qaprosoft.carina.core.foundation.listeners;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
 import java.lang.invoke.MethodHandles;
 import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
@@ -40,6 +45,8 @@ import org.openqa.selenium.WebDriver;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.testng.IClassListener;
+import org.testng.IMethodInstance;
+import org.testng.IMethodInterceptor;
 import org.testng.ISuite;
 import org.testng.ISuiteListener;
 import org.testng.ITestClass;
@@ -56,6 +63,7 @@ import org.w3c.dom.Node;
 import com.qaprosoft.carina.core.foundation.IAbstractTest;
 import com.qaprosoft.carina.core.foundation.report.email.EmailReportGenerator;
 import com.qaprosoft.carina.core.foundation.report.email.EmailReportItemCollector;
+import com.qaprosoft.carina.core.foundation.report.email.IncrementalEmailReport;
 import com.qaprosoft.carina.core.foundation.report.qtest.IQTestManager;
 import com.qaprosoft.carina.core.foundation.report.testrail.ITestRailManager;
 import com.qaprosoft.carina.core.foundation.skip.ExpectedSkipManager;
@@ -67,10 +75,23 @@ import com.zebrunner.agent.core.registrar.label.CompositeLabelResolver;
 import com.zebrunner.agent.core.registrar.maintainer.ChainedMaintainerResolver;
 import com.zebrunner.agent.core.webdriver.RemoteWebDriverFactory;
 import com.zebrunner.agent.testng.core.testname.TestNameResolverRegistry;
+import com.zebrunner.carina.core.export.ResultExportManager;
+import com.zebrunner.carina.core.failure.FailureClusterManager;
+import com.zebrunner.carina.core.log.BatchedConsoleAppender;
+import com.zebrunner.carina.core.log.ThreadLogAppender;
 import com.zebrunner.carina.core.registrar.ownership.Ownership;
 import com.zebrunner.carina.core.registrar.ownership.SuiteOwnerResolver;
+import com.zebrunner.carina.core.registrar.resource.TestResourceManager;
 import com.zebrunner.carina.core.registrar.tag.PriorityManager;
 import com.zebrunner.carina.core.registrar.tag.TagManager;
+import com.zebrunner.carina.core.report.ReportArchiver;
+import com.zebrunner.carina.core.report.ReportRetentionManager;
+import com.zebrunner.carina.core.report.ScreenshotProcessor;
+import com.zebrunner.carina.core.report.TestReportQueue;
+import com.zebrunner.carina.core.testng.DependencyChainManager;
+import com.zebrunner.carina.core.testng.DriverAffinityManager;
+import com.zebrunner.carina.core.testng.TestHistoryManager;
+import com.zebrunner.carina.core.testng.TestImpactManager;
 import com.zebrunner.carina.core.testng.ZebrunnerNameResolver;
 import com.zebrunner.carina.proxy.browserup.ProxyPool;
 import com.zebrunner.carina.utils.Configuration;
@@ -82,6 +103,7 @@ import com.zebrunner.carina.utils.messager.Messager;
 import com.zebrunner.carina.utils.report.ReportContext;
 import com.zebrunner.carina.utils.report.TestResult;
 import com.zebrunner.carina.utils.report.TestResultItem;
+import com.zebrunner.carina.utils.report.TestResultType;
 import com.zebrunner.carina.utils.resources.L10N;
 import com.zebrunner.carina.webdriver.CarinaDriver;
 import com.zebrunner.carina.webdriver.Screenshot;
@@ -100,13 +122,18 @@ import com.zebrunner.carina.webdriver.screenshot.IScreenshotRule;
  *
  * @author Vadim Delendik
  */
-public class CarinaListener extends AbstractTestListener implements ISuiteListener, IQTestManager, ITestRailManager, IClassListener {
+public class CarinaListener extends AbstractTestListener implements ISuiteListener, IQTestManager, ITestRailManager, IClassListener,
+        IMethodInterceptor {
     private static final Logger LOGGER = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
     protected static final long EXPLICIT_TIMEOUT = Configuration.getLong(Parameter.EXPLICIT_TIMEOUT);
     private static final ThreadLocal<Boolean> IS_REMOVE_DRIVER = ThreadLocal.withInitial(() -> Boolean.FALSE);
 
     protected static final String SUITE_TITLE = "%s%s%s - %s (%s)";
     protected static final String XML_SUITE_NAME = " (%s)";
+    // "full" prints every test result, "compact" prints totals and not passed tests writing full table to the file
+    private static final String EXECUTION_SUMMARY = "execution_summary";
+    private static final String EXECUTION_SUMMARY_FILE = "execution-summary.txt";
+    private static final String FAILURE_CLUSTERS_FILE = "failure-clusters.json";
 
     protected static boolean automaticDriversCleanup = true;
     
@@ -169,6 +196,8 @@ public class CarinaListener extends AbstractTestListener implements ISuiteListen
         CompositeLabelResolver.addResolver(new TagManager());
         CompositeLabelResolver.addResolver(new PriorityManager());
         ReportContext.getBaseDir(); // create directory for logging as soon as possible
+        // previous runs are scanned in background while tests are running
+        ReportRetentionManager.getInstance();
     }
 
     @Override
@@ -181,6 +210,16 @@ public class CarinaListener extends AbstractTestListener implements ISuiteListen
 
         setThreadCount(suite);
 
+        if (IncrementalEmailReport.getInstance().isEnabled()) {
+            IncrementalEmailReport.getInstance().start(getTitle(suite.getXmlSuite()), getEnvironment(),
+                    Configuration.get(Parameter.APP_VERSION), getBrowser());
+        }
+
+        if (DependencyChainManager.getInstance().isEnabled()) {
+            // run each chain of dependent methods in single thread and independent chains in parallel
+            DependencyChainManager.getInstance().init(suite.getAllMethods());
+        }
+
         if (Configuration.getPlatform().equalsIgnoreCase(SpecialKeywords.API)) {
             CurrentTestRun.setPlatform(SpecialKeywords.API);
         }
@@ -217,6 +256,23 @@ public class CarinaListener extends AbstractTestListener implements ISuiteListen
         super.onStart(context);
     }
 
+    @Override
+    public List<IMethodInstance> intercept(List<IMethodInstance> methods, ITestContext context) {
+        LOGGER.debug("CarinaListener->intercept(List<IMethodInstance> methods, ITestContext context)");
+        if (TestHistoryManager.getInstance().isFailureFirstOrder()) {
+            // run tests failed last time, unstable and flaky ones at first
+            methods = TestHistoryManager.getInstance().sort(methods);
+        }
+        if (DriverAffinityManager.getInstance().isEnabled()) {
+            // run tests requesting the same capabilities one by one to reuse drivers
+            methods = DriverAffinityManager.getInstance().sort(methods);
+        }
+        if (DependencyChainManager.getInstance().isEnabled()) {
+            methods = DependencyChainManager.getInstance().sort(methods);
+        }
+        return methods;
+    }
+
     @Override
     public void beforeConfiguration(ITestResult result) {
         LOGGER.debug("CarinaListener->beforeConfiguration");
@@ -255,6 +311,18 @@ public class CarinaListener extends AbstractTestListener implements ISuiteListen
         if (result.getMethod().isAfterSuiteConfiguration()) {
             TestPhase.setActivePhase(Phase.AFTER_SUITE);
         }
+
+        TestImpactManager.getInstance().startConfiguration(result.getMethod());
+    }
+
+    @Override
+    public void beforeConfiguration(ITestResult result, ITestNGMethod testMethod) {
+        LOGGER.debug("CarinaListener->beforeConfiguration(ITestResult result, ITestNGMethod testMethod)");
+        super.beforeConfiguration(result, testMethod);
+        if (testMethod != null && result.getMethod().isBeforeMethodConfiguration()) {
+            // drivers kept after previous test should be released before the new ones are started
+            releaseNotReusableDrivers(testMethod);
+        }
     }
 
     @Override
@@ -287,6 +355,7 @@ public class CarinaListener extends AbstractTestListener implements ISuiteListen
      */
     private void onConfigurationFinish(ITestResult configurationResult) {
         ITestNGMethod testMethod = configurationResult.getMethod();
+        TestImpactManager.getInstance().stopConfiguration(testMethod);
         if (testMethod instanceof ConfigurationMethod) {
             ConfigurationMethod configurationMethod = (ConfigurationMethod) testMethod;
             if (configurationMethod.isAfterMethodConfiguration() &&
@@ -310,12 +379,31 @@ public class CarinaListener extends AbstractTestListener implements ISuiteListen
         LOGGER.debug("CarinaListener->onTestStart");
         TestPhase.setActivePhase(Phase.METHOD);
 
+        // stop the run as soon as max_failures limit is reached
+        if (TestHistoryManager.getInstance().isFailuresLimitReached()) {
+            skipExecution("Execution is stopped as max_failures limit is reached: "
+                    + TestHistoryManager.getInstance().getFailuresCount() + " failure(s) detected");
+        }
+
         // handle expected skip
         Method testMethod = result.getMethod().getConstructorOrMethod().getMethod();
         if (ExpectedSkipManager.getInstance().isSkip(testMethod, result.getTestContext())) {
             skipExecution("Based on rule listed above");
         }
 
+        // wait for limited resources declared by @TestResource
+        try {
+            if (!TestResourceManager.getInstance().acquire(result.getMethod())) {
+                skipExecution("Test resources are not available within test_resource_timeout");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            skipExecution("Interrupted while waiting for test resources");
+        }
+
+        releaseNotReusableDrivers(result.getMethod());
+        TestImpactManager.getInstance().startRecording(result.getMethod());
+
         super.onTestStart(result);
     }
 
@@ -363,6 +451,7 @@ public class CarinaListener extends AbstractTestListener implements ISuiteListen
 
     private void onTestFinish(ITestResult result) {
         try {
+            TestResourceManager.getInstance().release();
             // clear all kind of temporary properties
             R.CONFIG.clearTestProperties();
             R.TESTDATA.clearTestProperties();
@@ -373,20 +462,44 @@ public class CarinaListener extends AbstractTestListener implements ISuiteListen
             //remove thread proxy rule
             com.zebrunner.carina.proxy.ProxyPool.clearThreadRule();
             LOGGER.debug("Test result is : " + result.getStatus());
+            // keep drivers for the rest of dependency chain if chain scheduling is enabled
+            boolean hasDependencies = DependencyChainManager.getInstance().isEnabled()
+                    ? DependencyChainManager.getInstance().hasPendingMethods(result)
+                    : hasDependencies(result);
+            // keep drivers of succeeded test to reuse them by the next test with the same capabilities
+            boolean isDriverAffinity = DriverAffinityManager.getInstance().isEnabled() && result.getStatus() == 1;
             // result status == 2 means failure, status == 3 means skip. We need to quit driver anyway for failure and skip
             if (((automaticDriversCleanup &&
-                    !hasDependencies(result)) ||
+                    !hasDependencies && !isDriverAffinity) ||
                     result.getStatus() == 2 ||
                     result.getStatus() == 3) &&
                     !Configuration.getBoolean(Parameter.FORCIBLY_DISABLE_DRIVER_QUIT)) {
                 IS_REMOVE_DRIVER.set(Boolean.TRUE);
+            } else if (isDriverAffinity && automaticDriversCleanup && !hasDependencies
+                    && !Configuration.getBoolean(Parameter.FORCIBLY_DISABLE_DRIVER_QUIT)) {
+                DriverAffinityManager.getInstance().keepDrivers(result.getMethod());
             }
+            TestHistoryManager.getInstance().register(result);
+            TestImpactManager.getInstance().stopRecording(result.getMethod());
             attachTestLabels(result);
         } catch (Exception e) {
             LOGGER.error("Exception in CarinaListener->onTestFinish!", e);
         }
     }
 
+    /**
+     * Quit drivers kept after previous test of the current thread if they were started with
+     * other capabilities than the test method is going to request.
+     *
+     * @param testMethod {@link ITestNGMethod} which is going to be executed
+     */
+    private void releaseNotReusableDrivers(ITestNGMethod testMethod) {
+        if (DriverAffinityManager.getInstance().isEnabled() &&
+                !DriverAffinityManager.getInstance().isReusable(testMethod)) {
+            quitDrivers(Phase.BEFORE_METHOD, Phase.METHOD);
+        }
+    }
+
     @Override
     public void onAfterClass(ITestClass testClass){
         LOGGER.debug("CarinaListener->onAfterClass(ITestClass testClass)");
@@ -410,49 +523,123 @@ public class CarinaListener extends AbstractTestListener implements ISuiteListen
     public void onFinish(ISuite suite) {
         LOGGER.debug("CarinaListener->onFinish(ISuite suite)");
         try {
+            if (DependencyChainManager.getInstance().isEnabled()) {
+                DependencyChainManager.getInstance().finish();
+            }
+
             String browser = getBrowser();
             // String suiteName = getSuiteName(context);
             String title = getTitle(suite.getXmlSuite());
 
-            TestResult testResult = EmailReportGenerator.getSuiteResult(EmailReportItemCollector.getTestResults());
+            TestResult testResult = EmailReportItemCollector.getSuiteResult();
             String status = testResult.getTestResultType().getName();
 
             title = status + ": " + title;
 
-            String env = "";
-            if (!Configuration.isNull(Parameter.ENV)) {
-                env = Configuration.get(Parameter.ENV);
-            }
-
-            if (!Configuration.get(Parameter.URL).isEmpty()) {
-                env += " - <a href='" + Configuration.get(Parameter.URL) + "'>" + Configuration.get(Parameter.URL)
-                        + "</a>";
-            }
+            String env = getEnvironment();
 
             ReportContext.getTempDir().delete();
 
+            // all tests of the suite are finished, so pending lines of async test logs are written
+            ThreadLogAppender.flushAsyncLog();
+            ThreadLogAppender.closeTestLogs();
+            ThreadLogAppender.releaseTestLogBuffers();
+            LOGGER.debug("Open test log files: {}, closed as least recently used: {}", ThreadLogAppender.getOpenLogFiles(),
+                    ThreadLogAppender.getEvictedLogFiles());
+            // reports of all tests should be ready before the suite reports and artifacts are assembled
+            TestReportQueue reportQueue = TestReportQueue.getInstance();
+            if (reportQueue.isEnabled()) {
+                LOGGER.info("Waiting for {} test reports in the queue, current lag: {} ms", reportQueue.getDepth(), reportQueue.getLagMillis());
+                reportQueue.flush();
+                LOGGER.info("Test reports generated in background: {}, max queue depth: {}, max queue lag: {} ms", reportQueue.getGenerated(),
+                        reportQueue.getMaxDepth(), reportQueue.getMaxLagMillis());
+            }
+            ScreenshotProcessor.getInstance().flush();
+            ReportRetentionManager.getInstance().flush();
+            LOGGER.debug("Report directory size: {} bytes, released by retention: {} bytes", ReportRetentionManager.getInstance().getUsedBytes(),
+                    ReportRetentionManager.getInstance().getPrunedBytes());
+            LOGGER.debug("Screenshots removed as duplicates: {}, linked to identical content: {}, downscaled: {}, saved bytes: {}",
+                    ScreenshotProcessor.getInstance().getDuplicates(), ScreenshotProcessor.getInstance().getLinked(),
+                    ScreenshotProcessor.getInstance().getDownscaled(), ScreenshotProcessor.getInstance().getSavedBytes());
+            TestHistoryManager.getInstance().save();
+            TestImpactManager.getInstance().save();
+            if (TestHistoryManager.getInstance().isFailuresLimitReached()) {
+                LOGGER.warn("Execution was stopped as max_failures limit is reached. Partial report will be generated.");
+            }
+
             // EmailReportItemCollector.getTestResults());
 
             LOGGER.debug("Generating email report...");
 
-            // Generate emailable html report using regular method
-            EmailReportGenerator report = new EmailReportGenerator(title, env, Configuration.get(Parameter.APP_VERSION),
-                    browser, DateUtils.now(), EmailReportItemCollector.getTestResults(),
-                    EmailReportItemCollector.getCreatedItems());
+            if (IncrementalEmailReport.getInstance().isEnabled()) {
+                // rows are already rendered during the run, so the report is assembled from the fragments
+                IncrementalEmailReport.getInstance().write(EmailReportGenerator.getHtmlReportFile(), title, env,
+                        Configuration.get(Parameter.APP_VERSION), browser, DateUtils.now(), EmailReportItemCollector.getCreatedItems());
+                copyHtmlReport(EmailReportGenerator.getHtmlReportFile());
+            } else {
+                // Generate emailable html report using regular method
+                EmailReportGenerator report = new EmailReportGenerator(title, env, Configuration.get(Parameter.APP_VERSION),
+                        browser, DateUtils.now(), EmailReportItemCollector.getSortedTestResults(),
+                        EmailReportItemCollector.getCreatedItems());
 
-            String emailContent = report.getEmailBody();
-            // Store emailable report under emailable-report.html
-            ReportContext.generateHtmlReport(emailContent);
+                // Store emailable report under emailable-report.html
+                generateHtmlReport(report);
+            }
+
+            if (!FailureClusterManager.getInstance().getClusters().isEmpty()) {
+                FailureClusterManager.getInstance().writeJson(new File(ReportContext.getBaseDir(), FAILURE_CLUSTERS_FILE));
+            }
+
+            // complete streamed junit/ndjson exports of the suite
+            ResultExportManager.getInstance().close();
 
             printExecutionSummary(EmailReportItemCollector.getTestResults());
+            EmailReportItemCollector.close();
 
             LOGGER.debug("Finish email report generation.");
 
+            if (ReportArchiver.getInstance().isEnabled()) {
+                // the last stage as the whole report tree should be ready
+                File archive = ReportArchiver.getInstance().archive();
+                Messager.INFORMATION.info("Report archive: " + archive.getAbsolutePath());
+            }
+
         } catch (Exception e) {
             LOGGER.error("Exception in CarinaListener->onFinish(ISuite suite)", e);
         }
     }
 
+    /**
+     * Stream emailable report to the project report directory without building the whole html in memory
+     * and copy it to the report directory of the run, the same locations ReportContext.generateHtmlReport writes to.
+     *
+     * @param report {@link EmailReportGenerator}
+     */
+    private void generateHtmlReport(EmailReportGenerator report) {
+        File reportFile = EmailReportGenerator.getHtmlReportFile();
+        try (Writer writer = Files.newBufferedWriter(reportFile.toPath(), StandardCharsets.UTF_8)) {
+            report.write(writer);
+        } catch (IOException e) {
+            LOGGER.error("generateHtmlReport failure", e);
+            return;
+        }
+        copyHtmlReport(reportFile);
+    }
+
+    /**
+     * Copy emailable report to the report directory of the run, so it is archived and uploaded with the run.
+     *
+     * @param reportFile emailable report in the project report directory
+     */
+    private void copyHtmlReport(File reportFile) {
+        try {
+            Files.copy(reportFile.toPath(), new File(ReportContext.getBaseDir(), SpecialKeywords.HTML_REPORT).toPath(),
+                    StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            LOGGER.error("Unable to copy emailable report to the report directory", e);
+        }
+    }
+
     /**
      * Disable automatic drivers cleanup after each TestMethod and switch to controlled by tests itself.
      * But anyway all drivers will be closed forcibly as only suite is finished or aborted 
@@ -462,6 +649,19 @@ public class CarinaListener extends AbstractTestListener implements ISuiteListen
         automaticDriversCleanup = false;
     }
 
+    private String getEnvironment() {
+        String env = "";
+        if (!Configuration.isNull(Parameter.ENV)) {
+            env = Configuration.get(Parameter.ENV);
+        }
+
+        if (!Configuration.get(Parameter.URL).isEmpty()) {
+            env += " - <a href='" + Configuration.get(Parameter.URL) + "'>" + Configuration.get(Parameter.URL)
+                    + "</a>";
+        }
+        return env;
+    }
+
     protected String getBrowser() {
         return Configuration.getBrowser();
     }
@@ -522,21 +722,55 @@ public class CarinaListener extends AbstractTestListener implements ISuiteListen
 
     private void printExecutionSummary(List<TestResultItem> tris) {
         Messager.INFORMATION.info("**************** Test execution summary ****************");
+        boolean compact = "compact".equalsIgnoreCase(R.CONFIG.get(EXECUTION_SUMMARY));
+        StringBuilder table = new StringBuilder();
+        int passed = 0;
+        int failed = 0;
+        int skipped = 0;
         int num = 1;
         for (TestResultItem tri : tris) {
-            String failReason = tri.getFailReason();
-            if (failReason == null) {
-                failReason = "";
+            if (tri.isConfig()) {
+                continue;
+            }
+            String reportLinks = !StringUtils.isEmpty(tri.getLinkToScreenshots())
+                    ? "screenshots=" + tri.getLinkToScreenshots() + " | " : "";
+            reportLinks += !StringUtils.isEmpty(tri.getLinkToLog()) ? "log=" + tri.getLinkToLog() : "";
+            String number = String.valueOf(num++);
+
+            switch (tri.getResult()) {
+            case PASS:
+                passed++;
+                break;
+            case SKIP:
+                skipped++;
+                break;
+            default:
+                failed++;
+                break;
             }
 
-            if (!tri.isConfig()) {
-                String reportLinks = !StringUtils.isEmpty(tri.getLinkToScreenshots())
-                        ? "screenshots=" + tri.getLinkToScreenshots() + " | " : "";
-                reportLinks += !StringUtils.isEmpty(tri.getLinkToLog()) ? "log=" + tri.getLinkToLog() : "";
-                Messager.TEST_RESULT.info(String.valueOf(num++), tri.getTest(), tri.getResult().toString(),
-                        reportLinks);
+            if (compact) {
+                table.append(number).append('\t').append(tri.getTest()).append('\t').append(tri.getResult())
+                        .append('\t').append(reportLinks).append(System.lineSeparator());
+            }
+            if (!compact || tri.getResult() != TestResultType.PASS) {
+                Messager.TEST_RESULT.info(number, tri.getTest(), tri.getResult().toString(), reportLinks);
+            }
+        }
+
+        if (compact) {
+            Messager.INFORMATION.info(String.format("Total: %d, passed: %d, failed: %d, skipped: %d", num - 1, passed, failed,
+                    skipped));
+            File summaryFile = new File(ReportContext.getBaseDir(), EXECUTION_SUMMARY_FILE);
+            try {
+                Files.writeString(summaryFile.toPath(), table);
+                Messager.INFORMATION.info("Full execution summary: " + summaryFile.getAbsolutePath());
+            } catch (IOException e) {
+                LOGGER.error("Unable to write execution summary to " + summaryFile.getAbsolutePath(), e);
             }
         }
+        // summary is the last console output of the suite, so do not leave it in the queue
+        BatchedConsoleAppender.flushAll();
     }
 
     protected void skipExecution(String message) {
@@ -777,6 +1011,9 @@ public class CarinaListener extends AbstractTestListener implements ISuiteListen
         @Override
         public void run() {
             LOGGER.debug("Running shutdown hook");
+            // the background writer serves all suites of the run, so it is stopped on exit only
+            ThreadLogAppender.stopAsyncLog();
+            ThreadLogAppender.closeTestLogs();
             if (!Configuration.getBoolean(Parameter.FORCIBLY_DISABLE_DRIVER_QUIT)) {
                 quitAllDriversOnHook();
             }
@@ -16,7 +16,12 @@
 package com.qaprosoft.carina.core.foundation.report.email;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
 import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 
@@ -26,6 +31,10 @@ import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.zebrunner.carina.core.failure.FailureCluster;
+import com.zebrunner.carina.core.failure.FailureClusterManager;
+import com.zebrunner.carina.utils.Configuration;
+import com.zebrunner.carina.utils.Configuration.Parameter;
 import com.zebrunner.carina.utils.R;
 import com.zebrunner.carina.utils.commons.SpecialKeywords;
 import com.zebrunner.carina.utils.report.ReportContext;
@@ -41,16 +50,19 @@ import com.zebrunner.carina.utils.report.TestResultType;
 public class EmailReportGenerator {
     private static final Logger LOGGER = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
 
-    private static String CONTAINER = R.EMAIL.get("container");
-    private static String PACKAGE_TR = R.EMAIL.get("package_tr");
-    private static String PASS_TEST_LOG_DEMO_TR = R.EMAIL.get("pass_test_log_demo_tr");
-    private static String FAIL_TEST_LOG_DEMO_TR = R.EMAIL.get("fail_test_log_demo_tr");
-    private static String SKIP_TEST_LOG_DEMO_TR = R.EMAIL.get("skip_test_log_demo_tr");
-    private static String FAIL_CONFIG_LOG_DEMO_TR = R.EMAIL.get("fail_config_log_demo_tr");
-    private static String PASS_TEST_LOG_TR = R.EMAIL.get("pass_test_log_tr");
-    private static String FAIL_TEST_LOG_TR = R.EMAIL.get("fail_test_log_tr");
-    private static String SKIP_TEST_LOG_TR = R.EMAIL.get("skip_test_log_tr");
-    private static String FAIL_CONFIG_LOG_TR = R.EMAIL.get("fail_config_log_tr");
+    // templates are compiled once, so report is streamed to the writer without copies of the whole document
+    private static final ReportTemplate CONTAINER = ReportTemplate.compile(R.EMAIL.get("container"));
+    private static final ReportTemplate PACKAGE_TR = ReportTemplate.compile(R.EMAIL.get("package_tr"));
+    private static final ReportTemplate PASS_TEST_LOG_DEMO_TR = ReportTemplate.compile(R.EMAIL.get("pass_test_log_demo_tr"));
+    private static final ReportTemplate FAIL_TEST_LOG_DEMO_TR = ReportTemplate.compile(R.EMAIL.get("fail_test_log_demo_tr"));
+    private static final ReportTemplate SKIP_TEST_LOG_DEMO_TR = ReportTemplate.compile(R.EMAIL.get("skip_test_log_demo_tr"));
+    private static final ReportTemplate FAIL_CONFIG_LOG_DEMO_TR = ReportTemplate.compile(R.EMAIL.get("fail_config_log_demo_tr"));
+    private static final ReportTemplate PASS_TEST_LOG_TR = ReportTemplate.compile(R.EMAIL.get("pass_test_log_tr"));
+    private static final ReportTemplate FAIL_TEST_LOG_TR = ReportTemplate.compile(R.EMAIL.get("fail_test_log_tr"));
+    private static final ReportTemplate SKIP_TEST_LOG_TR = ReportTemplate.compile(R.EMAIL.get("skip_test_log_tr"));
+    private static final ReportTemplate FAIL_CONFIG_LOG_TR = ReportTemplate.compile(R.EMAIL.get("fail_config_log_tr"));
+    private static final ReportTemplate FAILURE_CLUSTERS = ReportTemplate.compile(R.EMAIL.get("failure_clusters"));
+    private static final ReportTemplate FAILURE_CLUSTER_TR = ReportTemplate.compile(R.EMAIL.get("failure_cluster_tr"));
     private static String CREATED_ITEMS_LIST = R.EMAIL.get("created_items_list");
     private static String CREATED_ITEM = R.EMAIL.get("created_item");
     private static final String TITLE_PLACEHOLDER = "${title}";
@@ -72,6 +84,13 @@ public class EmailReportGenerator {
     private static final String LOG_URL_PLACEHOLDER = "${log_url}";
     private static final String CREATED_ITEMS_LIST_PLACEHOLDER = "${created_items_list}";
     private static final String CREATED_ITEM_PLACEHOLDER = "${created_item}";
+    private static final String FAILURE_CLUSTERS_PLACEHOLDER = "${failure_clusters}";
+    private static final String FAILURE_CLUSTER_ROWS_PLACEHOLDER = "${failure_cluster_rows}";
+    private static final String CLUSTER_COUNT_PLACEHOLDER = "${cluster_count}";
+    private static final String CLUSTER_FINGERPRINT_PLACEHOLDER = "${cluster_fingerprint}";
+    private static final String CLUSTER_FAILURE_PLACEHOLDER = "${cluster_failure}";
+    private static final String CLUSTER_TRACE_PLACEHOLDER = "${cluster_trace}";
+    private static final String CLUSTER_TESTS_PLACEHOLDER = "${cluster_tests}";
     private static final int MESSAGE_LIMIT = R.EMAIL.getInt("fail_description_limit");
     
     // Cucumber section
@@ -81,8 +100,14 @@ public class EmailReportGenerator {
     private static boolean INCLUDE_FAIL = R.EMAIL.getBoolean("include_fail");
     private static boolean INCLUDE_SKIP = R.EMAIL.getBoolean("include_skip");
 
-    private String emailBody = CONTAINER;
-    private StringBuilder testResults = null;
+    private final String title;
+    private final String url;
+    private final String version;
+    private final String browser;
+    private final String finishDate;
+    private final RowsWriter rowsWriter;
+    private final String createdItemsList;
+    private final String cucumberResults;
 
     private int passCount = 0;
     private int failCount = 0;
@@ -90,126 +115,271 @@ public class EmailReportGenerator {
 
     public EmailReportGenerator(String title, String url, String version, String browser, String finishDate,
             List<TestResultItem> testResultItems, List<String> createdItems) {
-        emailBody = emailBody.replace(TITLE_PLACEHOLDER, title);
-        emailBody = emailBody.replace(ENV_PLACEHOLDER, url);
-        emailBody = emailBody.replace(VERSION_PLACEHOLDER, version);
-        emailBody = emailBody.replace(BROWSER_PLACEHOLDER, browser);
-        emailBody = emailBody.replace(FINISH_DATE_PLACEHOLDER, finishDate);
-        emailBody = emailBody.replace(RESULTS_PLACEHOLDER, getTestResultsList(testResultItems));
-        emailBody = emailBody.replace(PASS_COUNT_PLACEHOLDER, String.valueOf(passCount));
-        emailBody = emailBody.replace(FAIL_COUNT_PLACEHOLDER, String.valueOf(failCount));
-        emailBody = emailBody.replace(SKIP_COUNT_PLACEHOLDER, String.valueOf(skipCount));
-        emailBody = emailBody.replace(PASS_RATE_PLACEHOLDER, String.valueOf(getSuccessRate()));
-        emailBody = emailBody.replace(CREATED_ITEMS_LIST_PLACEHOLDER, getCreatedItemsList(createdItems));
-        
+        this.title = title;
+        this.url = url;
+        this.version = version;
+        this.browser = browser;
+        this.finishDate = finishDate;
+        List<TestResultItem> sortedItems = sort(testResultItems);
+        this.rowsWriter = out -> writeTestResultsList(out, sortedItems);
+        // counters are written in the summary before the result rows, so they are calculated in advance
+        // from the in-memory part of the results, spilled results are read from the disk by the rows writer only
+        for (TestResultItem testResultItem : TestResultCollector.getSummaries(sortedItems)) {
+            countResult(testResultItem);
+        }
+        this.createdItemsList = getCreatedItemsList(createdItems);
+
         // Cucumber section
-        emailBody = emailBody.replace(CUCUMBER_RESULTS_PLACEHOLDER, getCucumberResultsHTML());
+        this.cucumberResults = getCucumberResultsHTML();
+    }
 
+    /*
+     * Results read from the disk by TestResultCollector are already sorted and should not be copied to the heap
+     */
+    private static List<TestResultItem> sort(List<TestResultItem> testResultItems) {
+        EmailReportItemComparator comparator = new EmailReportItemComparator();
+        TestResultItem previous = null;
+        for (TestResultItem testResultItem : TestResultCollector.getSummaries(testResultItems)) {
+            if (previous != null && comparator.compare(previous, testResultItem) > 0) {
+                List<TestResultItem> sorted = new ArrayList<>(testResultItems);
+                Collections.sort(sorted, comparator);
+                return sorted;
+            }
+            previous = testResultItem;
+        }
+        return testResultItems;
     }
 
-    public String getEmailBody() {
-        return emailBody;
+    /**
+     * Report with the result rows rendered in advance, e.g. by {@link IncrementalEmailReport}.
+     */
+    EmailReportGenerator(String title, String url, String version, String browser, String finishDate,
+            List<String> createdItems, int passCount, int failCount, int skipCount, RowsWriter rowsWriter) {
+        this.title = title;
+        this.url = url;
+        this.version = version;
+        this.browser = browser;
+        this.finishDate = finishDate;
+        this.rowsWriter = rowsWriter;
+        this.passCount = passCount;
+        this.failCount = failCount;
+        this.skipCount = skipCount;
+        this.createdItemsList = getCreatedItemsList(createdItems);
+        this.cucumberResults = getCucumberResultsHTML();
     }
 
-    private String getTestResultsList(List<TestResultItem> testResultItems) {
-        if (testResultItems.size() > 0) {
-            Collections.sort(testResultItems, new EmailReportItemComparator());
+    /**
+     * Get emailable report file, the same as ReportContext.generateHtmlReport writes to.
+     *
+     * @return {@link File}
+     */
+    public static File getHtmlReportFile() {
+        return new File(String.format("%s/%s/%s", System.getProperty("user.dir"),
+                Configuration.get(Parameter.PROJECT_REPORT_DIRECTORY), SpecialKeywords.HTML_REPORT));
+    }
 
-            String packageName = "";
-            testResults = new StringBuilder();
-            for (TestResultItem testResultItem : testResultItems) {
-                if (!testResultItem.isConfig() && !packageName.equals(testResultItem.getPack())) {
-                    packageName = testResultItem.getPack();
-                    testResults.append(PACKAGE_TR.replace(PACKAGE_NAME_PLACEHOLDER, packageName));
-                }
-                testResults.append(getTestRow(testResultItem));
-            }
+    public String getEmailBody() {
+        StringWriter writer = new StringWriter();
+        try {
+            write(writer);
+        } catch (IOException e) {
+            // StringWriter does not throw IOException
+            throw new UncheckedIOException(e);
         }
-        return testResults != null ? testResults.toString() : "";
+        return writer.toString();
     }
 
-    private String getTestRow(TestResultItem testResultItem) {
-        String result = "";
-        String failReason = "";
-        if (testResultItem.getResult().name().equalsIgnoreCase("FAIL")) {
-            if (INCLUDE_FAIL) {
-                if (testResultItem.isConfig()) {
-                    result = testResultItem.getLinkToScreenshots() != null && !"".equals(testResultItem.getLinkToScreenshots()) ? FAIL_CONFIG_LOG_DEMO_TR : FAIL_CONFIG_LOG_TR;
-                    result = result.replace(TEST_NAME_PLACEHOLDER, testResultItem.getTest());
-
-                    failReason = testResultItem.getFailReason();
-                    if (!StringUtils.isEmpty(failReason)) {
-                        // Make description more compact for email report
-                        failReason = failReason.length() > MESSAGE_LIMIT ? (failReason.substring(0, MESSAGE_LIMIT) + "...") : failReason;
-                        result = result.replace(FAIL_CONFIG_REASON_PLACEHOLDER, formatFailReasonAsHtml(failReason));
-                    } else {
-                        result = result.replace(FAIL_CONFIG_REASON_PLACEHOLDER, "Undefined failure: contact qa engineer!");
-                    }
-                } else {
-                    result = testResultItem.getLinkToScreenshots() != null && !"".equals(testResultItem.getLinkToScreenshots()) ? FAIL_TEST_LOG_DEMO_TR : FAIL_TEST_LOG_TR;
-                    result = result.replace(TEST_NAME_PLACEHOLDER, testResultItem.getTest());
-
-                    failReason = testResultItem.getFailReason();
-                    if (!StringUtils.isEmpty(failReason)) {
-                        // Make description more compact for email report
-                        failReason = failReason.length() > MESSAGE_LIMIT ? (failReason.substring(0, MESSAGE_LIMIT) + "...") : failReason;
-                        result = result.replace(FAIL_REASON_PLACEHOLDER, formatFailReasonAsHtml(failReason));
-                    } else {
-                        result = result.replace(FAIL_REASON_PLACEHOLDER, "Undefined failure: contact qa engineer!");
+    /**
+     * Stream emailable report to the writer without building the whole report in memory.
+     *
+     * @param out {@link Writer}
+     */
+    public void write(Writer out) throws IOException {
+        CONTAINER.render(out, (placeholder, writer) -> {
+            switch (placeholder) {
+            case TITLE_PLACEHOLDER:
+                return writeValue(writer, title);
+            case ENV_PLACEHOLDER:
+                return writeValue(writer, url);
+            case VERSION_PLACEHOLDER:
+                return writeValue(writer, version);
+            case BROWSER_PLACEHOLDER:
+                return writeValue(writer, browser);
+            case FINISH_DATE_PLACEHOLDER:
+                return writeValue(writer, finishDate);
+            case RESULTS_PLACEHOLDER:
+                rowsWriter.write(writer);
+                return true;
+            case PASS_COUNT_PLACEHOLDER:
+                return writeValue(writer, String.valueOf(passCount));
+            case FAIL_COUNT_PLACEHOLDER:
+                return writeValue(writer, String.valueOf(failCount));
+            case SKIP_COUNT_PLACEHOLDER:
+                return writeValue(writer, String.valueOf(skipCount));
+            case PASS_RATE_PLACEHOLDER:
+                return writeValue(writer, String.valueOf(getSuccessRate()));
+            case CREATED_ITEMS_LIST_PLACEHOLDER:
+                return writeValue(writer, createdItemsList);
+            case CUCUMBER_RESULTS_PLACEHOLDER:
+                return writeValue(writer, cucumberResults);
+            case FAILURE_CLUSTERS_PLACEHOLDER:
+                writeFailureClusters(writer);
+                return true;
+            default:
+                return false;
+            }
+        });
+    }
+
+    private static void writeFailureClusters(Writer out) throws IOException {
+        List<FailureCluster> clusters = FailureClusterManager.getInstance().getClusters();
+        if (clusters.isEmpty()) {
+            return;
+        }
+        FAILURE_CLUSTERS.render(out, (placeholder, writer) -> {
+            if (!FAILURE_CLUSTER_ROWS_PLACEHOLDER.equals(placeholder)) {
+                return false;
+            }
+            for (FailureCluster cluster : clusters) {
+                FAILURE_CLUSTER_TR.render(writer, (rowPlaceholder, rowWriter) -> {
+                    switch (rowPlaceholder) {
+                    case CLUSTER_COUNT_PLACEHOLDER:
+                        return writeValue(rowWriter, String.valueOf(cluster.getCount()));
+                    case CLUSTER_FINGERPRINT_PLACEHOLDER:
+                        return writeValue(rowWriter, cluster.getFingerprint().getHash());
+                    case CLUSTER_FAILURE_PLACEHOLDER:
+                        return writeValue(rowWriter, toHtml(cluster.getFingerprint().getSummary()));
+                    case CLUSTER_TRACE_PLACEHOLDER:
+                        return writeValue(rowWriter, toHtml(cluster.getTrace()));
+                    case CLUSTER_TESTS_PLACEHOLDER:
+                        List<String> tests = cluster.getTests();
+                        for (int i = 0; i < tests.size(); i++) {
+                            rowWriter.write((i > 0 ? "<br/>" : "") + StringEscapeUtils.escapeHtml4(tests.get(i)));
+                        }
+                        if (cluster.getCount() > tests.size()) {
+                            rowWriter.write("<br/>...");
+                        }
+                        return true;
+                    default:
+                        return false;
                     }
-                }
+                });
+            }
+            return true;
+        });
+    }
 
-                result = result.replace(LOG_URL_PLACEHOLDER, testResultItem.getLinkToLog());
+    private void countResult(TestResultItem testResultItem) {
+        TestResultType result = getCountedResult(testResultItem);
+        if (result == TestResultType.FAIL) {
+            failCount++;
+        } else if (result == TestResultType.SKIP) {
+            skipCount++;
+        } else if (result == TestResultType.PASS) {
+            passCount++;
+        }
+    }
 
-                if (testResultItem.getLinkToScreenshots() != null) {
-                    result = result.replace(SCREENSHOTS_URL_PLACEHOLDER, testResultItem.getLinkToScreenshots());
-                }
+    /**
+     * Get summary counter affected by the result item.
+     *
+     * @param testResultItem {@link TestResultItem}
+     * @return PASS, FAIL, SKIP or null if the item is not counted
+     */
+    static TestResultType getCountedResult(TestResultItem testResultItem) {
+        String result = testResultItem.getResult().name();
+        if (result.equalsIgnoreCase("FAIL")) {
+            return TestResultType.FAIL;
+        } else if (result.equalsIgnoreCase("SKIP") && !testResultItem.isConfig()) {
+            return TestResultType.SKIP;
+        } else if (result.equalsIgnoreCase("PASS") && !testResultItem.isConfig()) {
+            return TestResultType.PASS;
+        }
+        return null;
+    }
+
+    private static void writeTestResultsList(Writer out, List<TestResultItem> testResultItems) throws IOException {
+        String packageName = "";
+        for (TestResultItem testResultItem : testResultItems) {
+            if (!testResultItem.isConfig() && !packageName.equals(testResultItem.getPack())) {
+                packageName = testResultItem.getPack();
+                writePackageRow(out, packageName);
             }
-            failCount++;
+            writeTestRow(out, testResultItem);
         }
+    }
 
-        if (testResultItem.getResult().name().equalsIgnoreCase("SKIP")) {
-            failReason = testResultItem.getFailReason();
-            if (!testResultItem.isConfig()) {
-                if (INCLUDE_SKIP) {
-                    result = testResultItem.getLinkToScreenshots() != null && !"".equals(testResultItem.getLinkToScreenshots()) ? SKIP_TEST_LOG_DEMO_TR : SKIP_TEST_LOG_TR;
-                    result = result.replace(TEST_NAME_PLACEHOLDER, testResultItem.getTest());
-
-                    if (!StringUtils.isEmpty(failReason)) {
-                        // Make description more compact for email report
-                        failReason = failReason.length() > MESSAGE_LIMIT
-                                ? (failReason.substring(0, MESSAGE_LIMIT) + "...")
-                                : failReason;
-                        result = result.replace(SKIP_REASON_PLACEHOLDER, formatFailReasonAsHtml(failReason));
-                    } else {
-                        result = result.replace(SKIP_REASON_PLACEHOLDER,
-                                "Analyze SYSTEM ISSUE log for details or check dependency settings for the test.");
-                    }
+    static void writePackageRow(Writer out, String packageName) throws IOException {
+        PACKAGE_TR.render(out, (placeholder, writer) -> PACKAGE_NAME_PLACEHOLDER.equals(placeholder)
+                && writeValue(writer, packageName));
+    }
 
-                    result = result.replace(LOG_URL_PLACEHOLDER, testResultItem.getLinkToLog());
+    static void writeTestRow(Writer out, TestResultItem testResultItem) throws IOException {
+        boolean withScreenshots = testResultItem.getLinkToScreenshots() != null && !"".equals(testResultItem.getLinkToScreenshots());
+        ReportTemplate template = null;
+        String reasonPlaceholder = null;
+        String reason = null;
 
-                    if (testResultItem.getLinkToScreenshots() != null) {
-                        result = result.replace(SCREENSHOTS_URL_PLACEHOLDER, testResultItem.getLinkToScreenshots());
-                    }
+        String result = testResultItem.getResult().name();
+        if (result.equalsIgnoreCase("FAIL")) {
+            if (INCLUDE_FAIL) {
+                if (testResultItem.isConfig()) {
+                    template = withScreenshots ? FAIL_CONFIG_LOG_DEMO_TR : FAIL_CONFIG_LOG_TR;
+                    reasonPlaceholder = FAIL_CONFIG_REASON_PLACEHOLDER;
+                } else {
+                    template = withScreenshots ? FAIL_TEST_LOG_DEMO_TR : FAIL_TEST_LOG_TR;
+                    reasonPlaceholder = FAIL_REASON_PLACEHOLDER;
                 }
-                skipCount++;
+                reason = getReason(testResultItem.getFailReason(), "Undefined failure: contact qa engineer!");
+            }
+        } else if (result.equalsIgnoreCase("SKIP")) {
+            if (!testResultItem.isConfig() && INCLUDE_SKIP) {
+                template = withScreenshots ? SKIP_TEST_LOG_DEMO_TR : SKIP_TEST_LOG_TR;
+                reasonPlaceholder = SKIP_REASON_PLACEHOLDER;
+                reason = getReason(testResultItem.getFailReason(),
+                        "Analyze SYSTEM ISSUE log for details or check dependency settings for the test.");
+            }
+        } else if (result.equalsIgnoreCase("PASS")) {
+            if (!testResultItem.isConfig() && INCLUDE_PASS) {
+                template = withScreenshots ? PASS_TEST_LOG_DEMO_TR : PASS_TEST_LOG_TR;
             }
         }
-        if (testResultItem.getResult().name().equalsIgnoreCase("PASS")) {
-            if (!testResultItem.isConfig()) {
-                passCount++;
-                if (INCLUDE_PASS) {
-                    result = testResultItem.getLinkToScreenshots() != null && !"".equals(testResultItem.getLinkToScreenshots()) ? PASS_TEST_LOG_DEMO_TR : PASS_TEST_LOG_TR;
-                    result = result.replace(TEST_NAME_PLACEHOLDER, testResultItem.getTest());
-                    result = result.replace(LOG_URL_PLACEHOLDER, testResultItem.getLinkToLog());
-
-                    if (testResultItem.getLinkToScreenshots() != null) {
-                        result = result.replace(SCREENSHOTS_URL_PLACEHOLDER, testResultItem.getLinkToScreenshots());
-                    }
-                }
+
+        if (template == null) {
+            return;
+        }
+
+        String rowReasonPlaceholder = reasonPlaceholder;
+        String rowReason = reason;
+        template.render(out, (placeholder, writer) -> {
+            if (TEST_NAME_PLACEHOLDER.equals(placeholder)) {
+                return writeValue(writer, testResultItem.getTest());
+            } else if (LOG_URL_PLACEHOLDER.equals(placeholder)) {
+                return writeValue(writer, testResultItem.getLinkToLog());
+            } else if (SCREENSHOTS_URL_PLACEHOLDER.equals(placeholder)) {
+                return writeValue(writer, testResultItem.getLinkToScreenshots());
+            } else if (placeholder.equals(rowReasonPlaceholder)) {
+                return writeValue(writer, rowReason);
             }
+            return false;
+        });
+    }
+
+    private static String getReason(String failReason, String defaultReason) {
+        if (StringUtils.isEmpty(failReason)) {
+            return defaultReason;
         }
-        return result;
+        // Make description more compact for email report
+        failReason = failReason.length() > MESSAGE_LIMIT ? (failReason.substring(0, MESSAGE_LIMIT) + "...") : failReason;
+        return toHtml(failReason);
+    }
+
+    private static boolean writeValue(Writer out, String value) throws IOException {
+        if (value == null) {
+            return false;
+        }
+        out.write(value);
+        return true;
     }
 
     private int getSuccessRate() {
@@ -271,6 +441,10 @@ public class EmailReportGenerator {
     }
 
     public String formatFailReasonAsHtml(String reasonText) {
+        return toHtml(reasonText);
+    }
+
+    private static String toHtml(String reasonText) {
         if (!StringUtils.isEmpty(reasonText)) {
             reasonText = StringEscapeUtils.escapeHtml4(reasonText);
             reasonText = reasonText.replace("\n", "<br/>");
@@ -316,5 +490,12 @@ public class EmailReportGenerator {
         }
         return false;
     }
-    
+
+    /**
+     * Writes result rows of the report.
+     */
+    @FunctionalInterface
+    interface RowsWriter {
+        void write(Writer out) throws IOException;
+    }
 }
@@ -22,6 +22,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.testng.ITestResult;
 
+import com.zebrunner.carina.utils.report.TestResult;
 import com.zebrunner.carina.utils.report.TestResultItem;
 
 /**
@@ -32,15 +33,18 @@ import com.zebrunner.carina.utils.report.TestResultItem;
 public class EmailReportItemCollector {
     private static final Logger LOGGER = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
 
-    public static synchronized void push(TestResultItem emailItem) {
+    public static void push(TestResultItem emailItem) {
         TestResultCollector.push(emailItem);
+        if (IncrementalEmailReport.getInstance().isEnabled()) {
+            IncrementalEmailReport.getInstance().push(emailItem);
+        }
     }
 
-    public static synchronized void push(String itemToDelete) {
+    public static void push(String itemToDelete) {
         TestResultCollector.push(itemToDelete);
     }
 
-    public static synchronized TestResultItem pull(ITestResult result) {
+    public static TestResultItem pull(ITestResult result) {
         return TestResultCollector.pull(result);
     }
 
@@ -48,7 +52,27 @@ public class EmailReportItemCollector {
         return TestResultCollector.getTestResults();
     }
 
+    public static List<TestResultItem> getSortedTestResults() {
+        return TestResultCollector.getSortedTestResults();
+    }
+
     public static List<String> getCreatedItems() {
         return TestResultCollector.getCreatedItems();
     }
+
+    /**
+     * Get suite status and counters of the results pushed so far without scanning the results.
+     *
+     * @return {@link TestResult}
+     */
+    public static TestResult getSuiteResult() {
+        return TestResultCollector.getSuiteResult();
+    }
+
+    /**
+     * Release the file of the spilled results when the suite reports are generated.
+     */
+    public static void close() {
+        TestResultCollector.close();
+    }
 }
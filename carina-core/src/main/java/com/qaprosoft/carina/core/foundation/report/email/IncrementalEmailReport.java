@@ -0,0 +1,411 @@
+/*******************************************************************************
+ * Copyright 2020-2022 Zebrunner Inc (https://www.zebrunner.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.qaprosoft.carina.core.foundation.report.email;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.lang.invoke.MethodHandles;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.zebrunner.carina.utils.DateUtils;
+import com.zebrunner.carina.utils.R;
+import com.zebrunner.carina.utils.report.ReportContext;
+import com.zebrunner.carina.utils.report.TestResultItem;
+import com.zebrunner.carina.utils.report.TestResultType;
+
+/**
+ * Emailable report built during the run: every finished test appends its row to the on-disk fragment of its package
+ * and updates summary counters, so the final report is assembled by concatenation of the prebuilt fragments.
+ * Partial report is refreshed periodically by the background thread, so it exists even if JVM is killed.
+ * Rows of the retried tests are replaced by the latest result. Rows of every package are ordered by test name
+ * on the assembly, so the report looks the same as the regular one sorted by {@link EmailReportItemComparator}.
+ * Enabled by incremental_report property of email.properties.
+ */
+public class IncrementalEmailReport {
+    private static final Logger LOGGER = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+    private static final String INCREMENTAL_REPORT = "incremental_report";
+    private static final String FRAGMENTS_FOLDER = "email-report";
+    private static final String IN_PROGRESS = "IN PROGRESS: ";
+    private static final long PARTIAL_REPORT_INTERVAL = TimeUnit.SECONDS.toMillis(30);
+
+    private static IncrementalEmailReport instance = null;
+
+    private final File fragmentsDir;
+    private final File partialReportFile;
+    // sorted by package as EmailReportItemComparator does
+    private final Map<String, PackageFragment> packages = new TreeMap<>();
+    // result item hash -> its row
+    private final Map<String, Row> rows = new HashMap<>();
+
+    private int passCount = 0;
+    private int failCount = 0;
+    private int skipCount = 0;
+
+    private String title = "";
+    private String env = "";
+    private String version = "";
+    private String browser = "";
+    private long lastPartialReport = System.currentTimeMillis();
+
+    // report files are written outside of the rows lock, the final report disables partial ones
+    private final Object writeLock = new Object();
+    private final AtomicBoolean partialReportScheduled = new AtomicBoolean();
+    private final ExecutorService partialReportExecutor;
+    private boolean finished = false;
+
+    IncrementalEmailReport(File fragmentsDir, File partialReportFile) {
+        this.fragmentsDir = fragmentsDir;
+        this.partialReportFile = partialReportFile;
+        this.partialReportExecutor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "carina-email-report");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public static synchronized IncrementalEmailReport getInstance() {
+        if (null == instance) {
+            instance = new IncrementalEmailReport(new File(ReportContext.getBaseDir(), FRAGMENTS_FOLDER),
+                    EmailReportGenerator.getHtmlReportFile());
+        }
+        return instance;
+    }
+
+    public boolean isEnabled() {
+        return R.EMAIL.getBoolean(INCREMENTAL_REPORT);
+    }
+
+    /**
+     * Register report header used by the partial report.
+     */
+    public synchronized void start(String title, String env, String version, String browser) {
+        this.title = title;
+        this.env = env;
+        this.version = version;
+        this.browser = browser;
+    }
+
+    /**
+     * Append row of the finished test to its package fragment.
+     *
+     * @param testResultItem {@link TestResultItem}
+     */
+    public synchronized void push(TestResultItem testResultItem) {
+        try {
+            Row previous = rows.remove(testResultItem.hash());
+            if (previous != null) {
+                // retried test, the previous result is skipped by the report assembly
+                previous.fragment.remove(previous);
+                count(previous.result, -1);
+            }
+
+            StringWriter html = new StringWriter();
+            EmailReportGenerator.writeTestRow(html, testResultItem);
+            byte[] bytes = html.toString().getBytes(StandardCharsets.UTF_8);
+
+            PackageFragment fragment = packages.get(testResultItem.getPack());
+            if (fragment == null) {
+                fragment = new PackageFragment(new File(fragmentsDir, "package-" + packages.size() + ".html"));
+                packages.put(testResultItem.getPack(), fragment);
+            }
+            Row row = new Row(fragment, testResultItem.getTest(), EmailReportGenerator.getCountedResult(testResultItem),
+                    !testResultItem.isConfig());
+            fragment.append(row, bytes);
+            rows.put(testResultItem.hash(), row);
+            count(row.result, 1);
+        } catch (IOException e) {
+            LOGGER.error("Unable to add test result to the incremental email report", e);
+            return;
+        }
+
+        if (System.currentTimeMillis() - lastPartialReport > PARTIAL_REPORT_INTERVAL
+                && partialReportScheduled.compareAndSet(false, true)) {
+            lastPartialReport = System.currentTimeMillis();
+            partialReportExecutor.execute(() -> {
+                partialReportScheduled.set(false);
+                writePartialReport();
+            });
+        }
+    }
+
+    /**
+     * Write partial report from the rows pushed so far. Skipped when the final report is already written.
+     */
+    void writePartialReport() {
+        synchronized (writeLock) {
+            if (finished) {
+                return;
+            }
+            try {
+                Snapshot snapshot;
+                synchronized (this) {
+                    snapshot = snapshot(IN_PROGRESS + title, env, version, browser);
+                }
+                write(partialReportFile, snapshot, DateUtils.now(), EmailReportItemCollector.getCreatedItems());
+            } catch (IOException e) {
+                LOGGER.error("Unable to write partial email report", e);
+            }
+        }
+    }
+
+    /**
+     * Assemble the final report from the header, package fragments and footer. File is replaced atomically,
+     * so it always contains complete report. Fragments are closed afterwards and reopened if more rows are pushed.
+     *
+     * @param reportFile report file
+     */
+    public void write(File reportFile, String title, String env, String version, String browser, String finishDate,
+            List<String> createdItems) throws IOException {
+        partialReportExecutor.shutdownNow();
+        synchronized (writeLock) {
+            finished = true;
+            Snapshot snapshot;
+            synchronized (this) {
+                snapshot = snapshot(title, env, version, browser);
+            }
+            try {
+                write(reportFile, snapshot, finishDate, createdItems);
+            } finally {
+                synchronized (this) {
+                    for (PackageFragment fragment : packages.values()) {
+                        fragment.close();
+                    }
+                }
+            }
+        }
+    }
+
+    private Snapshot snapshot(String title, String env, String version, String browser) throws IOException {
+        List<FragmentSnapshot> fragments = new ArrayList<>(packages.size());
+        for (Map.Entry<String, PackageFragment> entry : packages.entrySet()) {
+            fragments.add(entry.getValue().snapshot(entry.getKey()));
+        }
+        return new Snapshot(title, env, version, browser, passCount, failCount, skipCount, fragments);
+    }
+
+    private static void write(File reportFile, Snapshot snapshot, String finishDate, List<String> createdItems) throws IOException {
+        File tempFile = new File(reportFile.getPath() + ".tmp");
+        try (FileOutputStream stream = new FileOutputStream(tempFile);
+                Writer writer = new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8))) {
+            EmailReportGenerator report = new EmailReportGenerator(snapshot.title, snapshot.env, snapshot.version,
+                    snapshot.browser, finishDate, createdItems, snapshot.passCount, snapshot.failCount, snapshot.skipCount,
+                    out -> writeRows(out, snapshot.fragments, stream.getChannel()));
+            report.write(writer);
+        }
+        try {
+            Files.move(tempFile.toPath(), reportFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tempFile.toPath(), reportFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private static void writeRows(Writer out, List<FragmentSnapshot> fragments, FileChannel target) throws IOException {
+        for (FragmentSnapshot fragment : fragments) {
+            if (fragment.testRows > 0) {
+                EmailReportGenerator.writePackageRow(out, fragment.pack);
+            }
+            // fragment bytes are copied to the file directly, so the pending text should be written before
+            out.flush();
+            fragment.copyTo(target);
+        }
+    }
+
+    private void count(TestResultType result, int delta) {
+        if (result == TestResultType.FAIL) {
+            failCount += delta;
+        } else if (result == TestResultType.SKIP) {
+            skipCount += delta;
+        } else if (result == TestResultType.PASS) {
+            passCount += delta;
+        }
+    }
+
+    private static class Row {
+        private final PackageFragment fragment;
+        private final String name;
+        private final TestResultType result;
+        private final boolean test;
+        private long offset;
+        private int length;
+
+        private Row(PackageFragment fragment, String name, TestResultType result, boolean test) {
+            this.fragment = fragment;
+            this.name = name;
+            this.result = result;
+            this.test = test;
+        }
+    }
+
+    private static class PackageFragment {
+        private final File file;
+        // rows in the order of arrival, without the replaced results of the retried tests
+        private final List<Row> rows = new ArrayList<>();
+        private FileChannel channel;
+        private long length = 0;
+        // package row is written only for packages with test (not configuration) rows
+        private int testRows = 0;
+
+        private PackageFragment(File file) {
+            this.file = file;
+        }
+
+        private void append(Row row, byte[] html) throws IOException {
+            if (html.length > 0) {
+                ByteBuffer buffer = ByteBuffer.wrap(html);
+                // positional writes, so the fragment could be copied by the report writer concurrently
+                while (buffer.hasRemaining()) {
+                    getChannel().write(buffer, length + buffer.position());
+                }
+            }
+            row.offset = length;
+            row.length = html.length;
+            length += html.length;
+            rows.add(row);
+            if (row.test) {
+                testRows++;
+            }
+        }
+
+        private void remove(Row row) {
+            rows.remove(row);
+            if (row.test) {
+                testRows--;
+            }
+        }
+
+        private FragmentSnapshot snapshot(String pack) throws IOException {
+            List<Row> sorted = new ArrayList<>(rows);
+            // stable sort, so rows of the tests with the same name keep the order of arrival
+            sorted.sort(Comparator.comparing(row -> row.name));
+            return new FragmentSnapshot(pack, length > 0 ? getChannel() : null, sorted, testRows);
+        }
+
+        private FileChannel getChannel() throws IOException {
+            if (channel == null || !channel.isOpen()) {
+                file.getParentFile().mkdirs();
+                channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                        StandardOpenOption.WRITE);
+            }
+            return channel;
+        }
+
+        private void close() {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    LOGGER.debug("Unable to close email report fragment '{}': {}", file, e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Rows and counters at the moment of the report writing. Fragments are append-only, so the rows could be copied
+     * without the lock while new rows are pushed.
+     */
+    private static class Snapshot {
+        private final String title;
+        private final String env;
+        private final String version;
+        private final String browser;
+        private final int passCount;
+        private final int failCount;
+        private final int skipCount;
+        private final List<FragmentSnapshot> fragments;
+
+        private Snapshot(String title, String env, String version, String browser, int passCount, int failCount, int skipCount,
+                List<FragmentSnapshot> fragments) {
+            this.title = title;
+            this.env = env;
+            this.version = version;
+            this.browser = browser;
+            this.passCount = passCount;
+            this.failCount = failCount;
+            this.skipCount = skipCount;
+            this.fragments = fragments;
+        }
+    }
+
+    private static class FragmentSnapshot {
+        private final String pack;
+        private final FileChannel channel;
+        // rows are not changed after the append, so they are read without the lock
+        private final List<Row> rows;
+        private final int testRows;
+
+        private FragmentSnapshot(String pack, FileChannel channel, List<Row> rows, int testRows) {
+            this.pack = pack;
+            this.channel = channel;
+            this.rows = rows;
+            this.testRows = testRows;
+        }
+
+        private void copyTo(FileChannel target) throws IOException {
+            if (channel == null) {
+                return;
+            }
+            // rows adjacent in the fragment are copied at once
+            long position = 0;
+            long count = 0;
+            for (Row row : rows) {
+                if (row.offset != position + count) {
+                    transfer(position, count, target);
+                    position = row.offset;
+                    count = 0;
+                }
+                count += row.length;
+            }
+            transfer(position, count, target);
+        }
+
+        private void transfer(long position, long count, FileChannel target) throws IOException {
+            while (count > 0) {
+                long transferred = channel.transferTo(position, count, target);
+                if (transferred <= 0) {
+                    throw new IOException("Unexpected end of the report fragment: " + pack);
+                }
+                position += transferred;
+                count -= transferred;
+            }
+        }
+    }
+}
@@ -0,0 +1,86 @@
+/*******************************************************************************
+ * Copyright 2020-2022 Zebrunner Inc (https://www.zebrunner.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.qaprosoft.carina.core.foundation.report.email;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Email report template compiled once into literal and placeholder segments, so report is written straight
+ * to the {@link Writer} instead of copying the whole document by every String.replace call.
+ * Placeholders have ${name} format, placeholders without value are written as is.
+ */
+class ReportTemplate {
+
+    private static final String PLACEHOLDER_START = "${";
+    private static final char PLACEHOLDER_END = '}';
+
+    // literals.length == placeholders.length + 1, i.e. literal, placeholder, literal...
+    private final String[] literals;
+    private final String[] placeholders;
+
+    private ReportTemplate(String[] literals, String[] placeholders) {
+        this.literals = literals;
+        this.placeholders = placeholders;
+    }
+
+    static ReportTemplate compile(String template) {
+        if (template == null) {
+            template = "";
+        }
+        List<String> literals = new ArrayList<>();
+        List<String> placeholders = new ArrayList<>();
+        int position = 0;
+        while (true) {
+            int start = template.indexOf(PLACEHOLDER_START, position);
+            int end = start >= 0 ? template.indexOf(PLACEHOLDER_END, start + PLACEHOLDER_START.length()) : -1;
+            if (end < 0) {
+                break;
+            }
+            literals.add(template.substring(position, start));
+            placeholders.add(template.substring(start, end + 1));
+            position = end + 1;
+        }
+        literals.add(template.substring(position));
+        return new ReportTemplate(literals.toArray(new String[0]), placeholders.toArray(new String[0]));
+    }
+
+    /**
+     * Write template to the writer.
+     *
+     * @param out {@link Writer}
+     * @param values writes value of the placeholder, e.g. "${test_name}", and returns false if there is no such value
+     */
+    void render(Writer out, PlaceholderWriter values) throws IOException {
+        for (int i = 0; i < placeholders.length; i++) {
+            out.write(literals[i]);
+            if (!values.write(placeholders[i], out)) {
+                out.write(placeholders[i]);
+            }
+        }
+        out.write(literals[placeholders.length]);
+    }
+
+    /**
+     * Writes value of the template placeholder.
+     */
+    @FunctionalInterface
+    interface PlaceholderWriter {
+        boolean write(String placeholder, Writer out) throws IOException;
+    }
+}
@@ -1,47 +1,306 @@
 package com.qaprosoft.carina.core.foundation.report.email;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
 import java.lang.invoke.MethodHandles;
-import java.lang.reflect.InvocationTargetException;
-import java.util.*;
+import java.lang.reflect.Method;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
-import com.zebrunner.carina.utils.report.TestResultItem;import org.apache.commons.lang3.ClassUtils;
-import org.apache.commons.lang3.reflect.MethodUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.testng.ITestResult;
+
+import com.zebrunner.carina.utils.R;
+import com.zebrunner.carina.utils.report.TestResult;
+import com.zebrunner.carina.utils.report.TestResultItem;
+import com.zebrunner.carina.utils.report.TestResultType;
+
+/**
+ * Lock-free storage of the test results. Pass/fail/skip counters are updated on push, so suite status
+ * is available at any moment of the run without scanning all results.
+ * With spill_test_results=true fail reasons, descriptions and links are kept in the local file
+ * and only compact records stay in memory, results are read back by the returned lists on access.
+ */
 public class TestResultCollector {
     private static final Logger LOGGER = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
 
-    private static LinkedHashMap<String, TestResultItem> emailResultsMap = new LinkedHashMap<String, TestResultItem>();
-    private static Map<String, TestResultItem> testResultsMap = Collections.synchronizedMap(new HashMap<String, TestResultItem>());
-    private static List<String> createdItems = new ArrayList<String>();
+    private static final String SPILL_TEST_RESULTS = "spill_test_results";
+
+    // result item hash -> item with the order of the first push
+    private static final Map<String, StoredItem> emailResultsMap = new ConcurrentHashMap<>();
+    // test name -> hash of its latest result
+    private static final Map<String, String> testResultsMap = new ConcurrentHashMap<>();
+    private static final List<String> createdItems = new CopyOnWriteArrayList<>();
+    private static final AtomicLong order = new AtomicLong();
+
+    private static final LongAdder passed = new LongAdder();
+    private static final LongAdder failed = new LongAdder();
+    private static final LongAdder skipped = new LongAdder();
+
+    // TestNameResolverRegistry.get() and resolve(ITestResult) of the resolver, null if agent is not loaded
+    private static final MethodHandle GET_RESOLVER;
+    private static final MethodHandle RESOLVE;
+
+    static {
+        MethodHandle getResolver = null;
+        MethodHandle resolve = null;
+        try {
+            Class<?> registryClass = Class.forName("com.zebrunner.agent.testng.core.testname.TestNameResolverRegistry");
+            Method get = registryClass.getMethod("get");
+            MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            getResolver = lookup.unreflect(get);
+            resolve = lookup.unreflect(get.getReturnType().getMethod("resolve", ITestResult.class));
+        } catch (ClassNotFoundException | NoSuchMethodException | IllegalAccessException e) {
+            LOGGER.debug("Cannot get info from TestNameResolverRegistry class because Zebrunner agent does not loaded in classloader");
+        }
+        GET_RESOLVER = getResolver;
+        RESOLVE = resolve;
+    }
+
+    private static volatile TestResultStore store = null;
+    private static volatile boolean storeInitialized = false;
 
-    public static synchronized void push(TestResultItem emailItem) {
-        emailResultsMap.put(emailItem.hash(), emailItem);
-        testResultsMap.put(emailItem.getTest(), emailItem);
+    public static void push(TestResultItem emailItem) {
+        TestResultStore resultStore = getStore();
+        // bulky fields are written outside of the map lock
+        TestResultStore.Record record = resultStore != null ? resultStore.append(emailItem) : null;
+        String hash = emailItem.hash();
+        emailResultsMap.compute(hash, (key, previous) -> {
+            long itemOrder = previous != null ? previous.order : order.getAndIncrement();
+            StoredItem stored = record != null ? new StoredItem(resultStore, record, itemOrder) : new StoredItem(emailItem, itemOrder);
+            // retried test replaces the previous result keeping its position
+            if (previous != null) {
+                count(previous, -1);
+            }
+            count(stored, 1);
+            return stored;
+        });
+        testResultsMap.put(emailItem.getTest(), hash);
     }
 
-    public static synchronized void push(String itemToDelete) {
+    public static void push(String itemToDelete) {
         createdItems.add(itemToDelete);
     }
 
-    public static synchronized TestResultItem pull(ITestResult result) {
-        TestResultItem testResultItem = null;
+    public static TestResultItem pull(ITestResult result) {
+        if (GET_RESOLVER == null || RESOLVE == null) {
+            return null;
+        }
         try {
-            Class<?> artifactClass = ClassUtils.getClass("com.zebrunner.agent.testng.core.testname.TestNameResolverRegistry");
-            Object object = MethodUtils.invokeStaticMethod(artifactClass, "get");
-            Object name = MethodUtils.invokeMethod(object, "resolve", result);
-            testResultItem = testResultsMap.get(name);
-        } catch (ClassNotFoundException | InvocationTargetException | NoSuchMethodException | IllegalAccessException e) {
-            LOGGER.debug("Cannot get info from TestNameResolverRegistry class because Zebrunner agent does not loaded in classloader");
+            Object resolver = GET_RESOLVER.invoke();
+            Object name = RESOLVE.invoke(resolver, result);
+            String hash = testResultsMap.get(name);
+            StoredItem stored = hash != null ? emailResultsMap.get(hash) : null;
+            return stored != null ? stored.get() : null;
+        } catch (Throwable e) {
+            LOGGER.debug("Cannot resolve test name by TestNameResolverRegistry", e);
+            return null;
         }
-        return testResultItem;
     }
 
+    /**
+     * Get results in the order of the first push. Spilled results are read from the disk on every access.
+     *
+     * @return read-only list of {@link TestResultItem}
+     */
     public static List<TestResultItem> getTestResults() {
-        return new ArrayList<TestResultItem>(emailResultsMap.values());
+        List<StoredItem> items = new ArrayList<>(emailResultsMap.values());
+        items.sort(Comparator.comparingLong(item -> item.order));
+        return new StoredItemList(items);
+    }
+
+    /**
+     * Get results sorted by package and test name as {@link EmailReportItemComparator} does
+     * without reading spilled results.
+     *
+     * @return read-only list of {@link TestResultItem}
+     */
+    public static List<TestResultItem> getSortedTestResults() {
+        List<StoredItem> items = new ArrayList<>(emailResultsMap.values());
+        items.sort(Comparator.comparing(StoredItem::getPack).thenComparing(StoredItem::getTest));
+        return new StoredItemList(items);
     }
 
     public static List<String> getCreatedItems() {
         return createdItems;
     }
+
+    /**
+     * Get suite status and counters of the results pushed so far.
+     *
+     * @return {@link TestResult}
+     */
+    public static TestResult getSuiteResult() {
+        int passedCount = passed.intValue();
+        int failedCount = failed.intValue();
+        int skippedCount = skipped.intValue();
+
+        // the same rules as EmailReportGenerator.getSuiteResult(List) has
+        TestResult result = new TestResult(TestResultType.FAIL);
+        if (passedCount > 0 && failedCount == 0 && skippedCount == 0) {
+            result.setTestResultType(TestResultType.PASS);
+        } else if (failedCount == 0 && skippedCount > 0) {
+            result.setTestResultType(TestResultType.SKIP);
+        }
+
+        result.setAmountOfPassed(passedCount);
+        result.setAmountOfFailed(failedCount);
+        result.setAmountOfSkipped(skippedCount);
+        return result;
+    }
+
+    /**
+     * Release the file of the spilled results, e.g. on suite finish. The file is reopened if the results are accessed again.
+     */
+    public static void close() {
+        TestResultStore resultStore = store;
+        if (resultStore == null) {
+            return;
+        }
+        try {
+            resultStore.close();
+        } catch (IOException e) {
+            LOGGER.debug("Unable to close test results file", e);
+        }
+    }
+
+    /**
+     * Get results without description, links and fail reason, so spilled results are not read from the disk.
+     * Package, test name, status and the rest of the item fields are available.
+     *
+     * @param results list returned by {@link #getTestResults()} or {@link #getSortedTestResults()}
+     * @return read-only list of {@link TestResultItem}, the same list if results are not spilled
+     */
+    static List<TestResultItem> getSummaries(List<TestResultItem> results) {
+        if (!(results instanceof StoredItemList)) {
+            return results;
+        }
+        List<StoredItem> items = ((StoredItemList) results).items;
+        return new AbstractList<>() {
+            @Override
+            public TestResultItem get(int index) {
+                return items.get(index).getSummary();
+            }
+
+            @Override
+            public int size() {
+                return items.size();
+            }
+        };
+    }
+
+    private static TestResultStore getStore() {
+        if (!storeInitialized) {
+            synchronized (TestResultCollector.class) {
+                if (!storeInitialized) {
+                    if (R.CONFIG.getBoolean(SPILL_TEST_RESULTS) && !TestResultStore.isSupported()) {
+                        LOGGER.warn("Fields of the test results could not be spilled, results will be kept in memory");
+                    } else if (R.CONFIG.getBoolean(SPILL_TEST_RESULTS)) {
+                        try {
+                            File file = File.createTempFile("carina-test-results", ".bin");
+                            file.deleteOnExit();
+                            store = new TestResultStore(file);
+                        } catch (IOException e) {
+                            LOGGER.error("Unable to create test results file, results will be kept in memory", e);
+                        }
+                    }
+                    storeInitialized = true;
+                }
+            }
+        }
+        return store;
+    }
+
+    private static void count(StoredItem item, int delta) {
+        if (item.isConfig()) {
+            return;
+        }
+        switch (item.getResult()) {
+        case PASS:
+            passed.add(delta);
+            break;
+        case FAIL:
+            failed.add(delta);
+            break;
+        case SKIP:
+            skipped.add(delta);
+            break;
+        default:
+            // do nothing
+            break;
+        }
+    }
+
+    private static class StoredItem {
+        private final TestResultItem item;
+        private final TestResultStore store;
+        private final TestResultStore.Record record;
+        private final long order;
+
+        private StoredItem(TestResultItem item, long order) {
+            this.item = item;
+            this.store = null;
+            this.record = null;
+            this.order = order;
+        }
+
+        private StoredItem(TestResultStore store, TestResultStore.Record record, long order) {
+            this.item = null;
+            this.store = store;
+            this.record = record;
+            this.order = order;
+        }
+
+        private TestResultItem get() {
+            return item != null ? item : store.read(record);
+        }
+
+        private TestResultItem getSummary() {
+            return item != null ? item : record.getSummary();
+        }
+
+        private String getPack() {
+            return item != null ? item.getPack() : record.getPack();
+        }
+
+        private String getTest() {
+            return item != null ? item.getTest() : record.getTest();
+        }
+
+        private TestResultType getResult() {
+            return item != null ? item.getResult() : record.getResult();
+        }
+
+        private boolean isConfig() {
+            return item != null ? item.isConfig() : record.isConfig();
+        }
+    }
+
+    private static class StoredItemList extends AbstractList<TestResultItem> implements RandomAccess {
+        private final List<StoredItem> items;
+
+        private StoredItemList(List<StoredItem> items) {
+            this.items = items;
+        }
+
+        @Override
+        public TestResultItem get(int index) {
+            return items.get(index).get();
+        }
+
+        @Override
+        public int size() {
+            return items.size();
+        }
+    }
 }
@@ -0,0 +1,295 @@
+/*******************************************************************************
+ * Copyright 2020-2022 Zebrunner Inc (https://www.zebrunner.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.qaprosoft.carina.core.foundation.report.email;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.zebrunner.carina.utils.report.TestResultItem;
+import com.zebrunner.carina.utils.report.TestResultType;
+
+/*
+ * Append-only local file keeping the bulky part of the test results (description, links and fail reason),
+ * so only compact copies of the results without these fields stay on heap. All other fields of the item are kept
+ * by the copy, so the item is restored as a whole.
+ * Record format: [int length][UTF-8 bytes] per spilled field, length -1 for null.
+ */
+class TestResultStore {
+
+    // bulky fields of TestResultItem written to the file
+    private static final String[] SPILLED_FIELD_NAMES = { "description", "linkToScreenshots", "linkToLog", "failReason" };
+    private static final List<Field> ITEM_FIELDS = new ArrayList<>();
+    private static final List<Field> SPILLED_FIELDS = new ArrayList<>();
+    private static final Field PACK_FIELD;
+
+    static {
+        Field packField = null;
+        try {
+            for (Class<?> type = TestResultItem.class; type != Object.class; type = type.getSuperclass()) {
+                for (Field field : type.getDeclaredFields()) {
+                    if (!Modifier.isStatic(field.getModifiers())) {
+                        field.setAccessible(true);
+                        ITEM_FIELDS.add(field);
+                    }
+                }
+            }
+            for (String name : SPILLED_FIELD_NAMES) {
+                Field field = getItemField(name);
+                if (field != null && field.getType() == String.class) {
+                    SPILLED_FIELDS.add(field);
+                }
+            }
+            packField = getItemField("pack");
+        } catch (RuntimeException e) {
+            ITEM_FIELDS.clear();
+            SPILLED_FIELDS.clear();
+        }
+        PACK_FIELD = packField;
+    }
+
+    private final File file;
+    private FileChannel channel;
+    // package names are shared by many results
+    private final Map<String, String> packages = new ConcurrentHashMap<>();
+    private long size = 0;
+
+    TestResultStore(File file) throws IOException {
+        this.file = file;
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    /**
+     * @return true if the bulky fields of {@link TestResultItem} could be spilled and restored
+     */
+    static boolean isSupported() {
+        return !ITEM_FIELDS.isEmpty() && SPILLED_FIELDS.size() == SPILLED_FIELD_NAMES.length;
+    }
+
+    /**
+     * Write bulky fields of the result to the file.
+     *
+     * @param item {@link TestResultItem}
+     * @return compact record to read the item back
+     */
+    Record append(TestResultItem item) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            for (Field field : SPILLED_FIELDS) {
+                writeField(out, (String) getValue(field, item));
+            }
+        } catch (IOException e) {
+            // ByteArrayOutputStream does not throw IOException
+            throw new UncheckedIOException(e);
+        }
+
+        long offset;
+        synchronized (this) {
+            offset = size;
+            size += bytes.size();
+        }
+        try {
+            write(ByteBuffer.wrap(bytes.toByteArray()), offset);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to store test result in " + file.getAbsolutePath(), e);
+        }
+
+        TestResultItem compact = copy(item);
+        for (Field field : SPILLED_FIELDS) {
+            setValue(field, compact, null);
+        }
+        if (PACK_FIELD != null && item.getPack() != null) {
+            setValue(PACK_FIELD, compact, packages.computeIfAbsent(item.getPack(), p -> p));
+        }
+        return new Record(compact, offset, bytes.size());
+    }
+
+    /**
+     * Read full result item back.
+     *
+     * @param record {@link Record} returned by append
+     * @return {@link TestResultItem}
+     */
+    TestResultItem read(Record record) {
+        ByteBuffer buffer = ByteBuffer.allocate(record.length);
+        try {
+            read(buffer, record.offset);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to read test result from " + file.getAbsolutePath(), e);
+        }
+        buffer.flip();
+        TestResultItem item = copy(record.item);
+        for (Field field : SPILLED_FIELDS) {
+            setValue(field, item, readField(buffer));
+        }
+        return item;
+    }
+
+    /**
+     * Release the file handle. The file is reopened if results are accessed again and removed on JVM exit.
+     */
+    synchronized void close() throws IOException {
+        channel.close();
+    }
+
+    private synchronized FileChannel getChannel() throws IOException {
+        if (!channel.isOpen()) {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+        return channel;
+    }
+
+    private void write(ByteBuffer buffer, long position) throws IOException {
+        try {
+            writeFully(getChannel(), buffer, position);
+        } catch (ClosedChannelException e) {
+            // closed by the suite finish while writing
+            buffer.rewind();
+            writeFully(getChannel(), buffer, position);
+        }
+    }
+
+    private void read(ByteBuffer buffer, long position) throws IOException {
+        try {
+            readFully(getChannel(), buffer, position);
+        } catch (ClosedChannelException e) {
+            buffer.clear();
+            readFully(getChannel(), buffer, position);
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("Unexpected end of the test results file");
+            }
+            position += read;
+        }
+    }
+
+    private static TestResultItem copy(TestResultItem source) {
+        TestResultItem copy = new TestResultItem(source.getPack(), source.getTest(), null, source.getResult(), null, null, null);
+        for (Field field : ITEM_FIELDS) {
+            setValue(field, copy, getValue(field, source));
+        }
+        return copy;
+    }
+
+    private static Field getItemField(String name) {
+        for (Field field : ITEM_FIELDS) {
+            if (field.getName().equals(name)) {
+                return field;
+            }
+        }
+        return null;
+    }
+
+    private static Object getValue(Field field, TestResultItem item) {
+        try {
+            return field.get(item);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void setValue(Field field, TestResultItem item, Object value) {
+        try {
+            field.set(item, value);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void writeField(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readField(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        String value = new String(buffer.array(), buffer.position(), length, StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + length);
+        return value;
+    }
+
+    /**
+     * Compact in-memory part of the stored result.
+     */
+    static class Record {
+        // copy of the item without the spilled fields
+        private final TestResultItem item;
+        private final long offset;
+        private final int length;
+
+        private Record(TestResultItem item, long offset, int length) {
+            this.item = item;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        /**
+         * @return copy of the item without description, links and fail reason, should not be modified
+         */
+        TestResultItem getSummary() {
+            return item;
+        }
+
+        String getPack() {
+            return item.getPack();
+        }
+
+        String getTest() {
+            return item.getTest();
+        }
+
+        TestResultType getResult() {
+            return item.getResult();
+        }
+
+        boolean isConfig() {
+            return item.isConfig();
+        }
+    }
+}
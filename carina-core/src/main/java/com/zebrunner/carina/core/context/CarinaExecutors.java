@@ -0,0 +1,80 @@
+/*******************************************************************************
+ * Copyright 2020-2022 Zebrunner Inc (https://www.zebrunner.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.zebrunner.carina.core.context;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Supplier;
+
+/**
+ * Executors propagating {@link CarinaTestContext} of the submitting test to the worker threads,
+ * so messages logged by the tasks are written to the test log of the test.
+ */
+public final class CarinaExecutors {
+
+    private CarinaExecutors() {
+        // hide
+    }
+
+    public static ExecutorService newFixedThreadPool(int threads) {
+        return wrap(Executors.newFixedThreadPool(threads));
+    }
+
+    public static ExecutorService newCachedThreadPool() {
+        return wrap(Executors.newCachedThreadPool());
+    }
+
+    /**
+     * Decorate executor service to propagate context of the submitting thread to its tasks.
+     *
+     * @param executor {@link ExecutorService}
+     * @return {@link ExecutorService} sharing lifecycle with the decorated one
+     */
+    public static ExecutorService wrap(ExecutorService executor) {
+        if (executor instanceof ContextPropagatingExecutorService) {
+            return executor;
+        }
+        return new ContextPropagatingExecutorService(executor);
+    }
+
+    /**
+     * Decorate executor to propagate context of the submitting thread to its tasks.
+     *
+     * @param executor {@link Executor}
+     * @return {@link Executor}
+     */
+    public static Executor wrap(Executor executor) {
+        if (executor instanceof ExecutorService) {
+            return wrap((ExecutorService) executor);
+        }
+        return command -> executor.execute(CarinaTestContext.capture().wrap(command));
+    }
+
+    public static CompletableFuture<Void> runAsync(Runnable task) {
+        return CompletableFuture.runAsync(CarinaTestContext.capture().wrap(task), ForkJoinPool.commonPool());
+    }
+
+    public static <T> CompletableFuture<T> supplyAsync(Supplier<T> task) {
+        return CompletableFuture.supplyAsync(CarinaTestContext.capture().wrap(task), ForkJoinPool.commonPool());
+    }
+
+    public static <T> CompletableFuture<T> supplyAsync(Supplier<T> task, Executor executor) {
+        return CompletableFuture.supplyAsync(CarinaTestContext.capture().wrap(task), executor);
+    }
+}
@@ -0,0 +1,161 @@
+/*******************************************************************************
+ * Copyright 2020-2022 Zebrunner Inc (https://www.zebrunner.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.zebrunner.carina.core.context;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.function.Supplier;
+
+import org.openqa.selenium.WebDriver;
+
+import com.zebrunner.carina.core.testng.TestNamingService;
+import com.zebrunner.carina.utils.report.ReportContext;
+import com.zebrunner.carina.webdriver.CarinaDriver;
+import com.zebrunner.carina.webdriver.IDriverPool;
+
+/**
+ * Snapshot of the test execution context: test report directory, test name and drivers of the test thread.
+ * Context is captured in the test thread and attached to the worker threads, so work the test spawns
+ * (executors, CompletableFuture etc.) logs into the owning test log:
+ *
+ * <pre>
+ * ExecutorService executor = CarinaExecutors.newFixedThreadPool(4);
+ * executor.submit(() -&gt; LOGGER.info("logged to the test.log of the test which submitted the task"));
+ *
+ * CarinaTestContext context = CarinaTestContext.capture();
+ * new Thread(context.wrap(() -&gt; LOGGER.info("the same for plain threads"))).start();
+ * </pre>
+ */
+public final class CarinaTestContext {
+
+    private static final ThreadLocal<CarinaTestContext> attached = new ThreadLocal<>();
+    private static final IDriverPool DRIVER_POOL = new IDriverPool() {
+    };
+
+    private final File testDir;
+    private final String testName;
+    private final Map<String, CarinaDriver> drivers;
+
+    private CarinaTestContext(File testDir, String testName, Map<String, CarinaDriver> drivers) {
+        this.testDir = testDir;
+        this.testName = testName;
+        this.drivers = Collections.unmodifiableMap(new LinkedHashMap<>(drivers));
+    }
+
+    /**
+     * Capture context of the current thread. Worker thread returns context it is attached to.
+     *
+     * @return {@link CarinaTestContext}
+     */
+    public static CarinaTestContext capture() {
+        CarinaTestContext context = attached.get();
+        if (context != null) {
+            return context;
+        }
+        return new CarinaTestContext(ReportContext.getTestDir(), TestNamingService.getCurrentTestName(),
+                DRIVER_POOL.getDrivers());
+    }
+
+    /**
+     * Get context the current thread is attached to.
+     *
+     * @return {@link CarinaTestContext} or null for test threads and threads without propagated context
+     */
+    public static CarinaTestContext getAttached() {
+        return attached.get();
+    }
+
+    public File getTestDir() {
+        return testDir;
+    }
+
+    public String getTestName() {
+        return testName;
+    }
+
+    /**
+     * Get drivers started by the test thread till the context capturing.
+     *
+     * @return map of driver name to {@link CarinaDriver}
+     */
+    public Map<String, CarinaDriver> getDrivers() {
+        return drivers;
+    }
+
+    /**
+     * Get driver of the test thread by name.
+     *
+     * @param name driver name, "default" for the driver started by getDriver()
+     * @return {@link WebDriver} or null if there is no such driver
+     */
+    public WebDriver getDriver(String name) {
+        CarinaDriver driver = drivers.get(name);
+        return driver != null ? driver.getDriver() : null;
+    }
+
+    /**
+     * Attach context to the current thread till the returned scope is closed.
+     *
+     * @return {@link Scope} restoring previous context on close
+     */
+    public Scope attach() {
+        CarinaTestContext previous = attached.get();
+        attached.set(this);
+        return () -> {
+            if (previous != null) {
+                attached.set(previous);
+            } else {
+                attached.remove();
+            }
+        };
+    }
+
+    public Runnable wrap(Runnable task) {
+        return () -> {
+            try (Scope scope = attach()) {
+                task.run();
+            }
+        };
+    }
+
+    public <T> Callable<T> wrap(Callable<T> task) {
+        return () -> {
+            try (Scope scope = attach()) {
+                return task.call();
+            }
+        };
+    }
+
+    public <T> Supplier<T> wrap(Supplier<T> task) {
+        return () -> {
+            try (Scope scope = attach()) {
+                return task.get();
+            }
+        };
+    }
+
+    /**
+     * Attached context, closing restores the previous context of the thread.
+     */
+    @FunctionalInterface
+    public interface Scope extends AutoCloseable {
+        @Override
+        void close();
+    }
+}
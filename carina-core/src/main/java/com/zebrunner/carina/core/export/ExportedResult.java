@@ -0,0 +1,157 @@
+/*******************************************************************************
+ * Copyright 2020-2022 Zebrunner Inc (https://www.zebrunner.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.zebrunner.carina.core.export;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.zebrunner.carina.utils.report.TestResultType;
+
+/**
+ * Result of the single test attempt with Carina specific metadata, passed to the {@link ResultExporter}s.
+ */
+class ExportedResult {
+    private final String test;
+    private final String className;
+    private final String methodName;
+    private final TestResultType result;
+    private final long startMillis;
+    private final long endMillis;
+    private final String failReason;
+
+    private boolean retried = false;
+    private String owner = "";
+    private String priority = "";
+    private Map<String, List<String>> tags = new LinkedHashMap<>();
+    private Set<String> testRailCases = Collections.emptySet();
+    private Set<String> qTestCases = Collections.emptySet();
+    private String logLink = "";
+    private String screenshotsLink = "";
+
+    ExportedResult(String test, String className, String methodName, TestResultType result, long startMillis, long endMillis,
+            String failReason) {
+        this.test = test;
+        this.className = className;
+        this.methodName = methodName;
+        this.result = result;
+        this.startMillis = startMillis;
+        this.endMillis = endMillis;
+        this.failReason = failReason != null ? failReason : "";
+    }
+
+    String getTest() {
+        return test;
+    }
+
+    String getClassName() {
+        return className;
+    }
+
+    String getMethodName() {
+        return methodName;
+    }
+
+    TestResultType getResult() {
+        return result;
+    }
+
+    long getStartMillis() {
+        return startMillis;
+    }
+
+    long getDurationMillis() {
+        return Math.max(0, endMillis - startMillis);
+    }
+
+    String getFailReason() {
+        return failReason;
+    }
+
+    /**
+     * @return the first line of the fail reason
+     */
+    String getFailMessage() {
+        int end = failReason.indexOf('\n');
+        return (end >= 0 ? failReason.substring(0, end) : failReason).trim();
+    }
+
+    boolean isRetried() {
+        return retried;
+    }
+
+    void setRetried(boolean retried) {
+        this.retried = retried;
+    }
+
+    String getOwner() {
+        return owner;
+    }
+
+    void setOwner(String owner) {
+        this.owner = owner != null ? owner : "";
+    }
+
+    String getPriority() {
+        return priority;
+    }
+
+    void setPriority(String priority) {
+        this.priority = priority != null ? priority : "";
+    }
+
+    Map<String, List<String>> getTags() {
+        return tags;
+    }
+
+    void setTags(Map<String, List<String>> tags) {
+        this.tags = tags;
+    }
+
+    Set<String> getTestRailCases() {
+        return testRailCases;
+    }
+
+    void setTestRailCases(Set<String> testRailCases) {
+        this.testRailCases = testRailCases;
+    }
+
+    Set<String> getQTestCases() {
+        return qTestCases;
+    }
+
+    void setQTestCases(Set<String> qTestCases) {
+        this.qTestCases = qTestCases;
+    }
+
+    String getLogLink() {
+        return logLink;
+    }
+
+    void setLogLink(String logLink) {
+        this.logLink = logLink != null ? logLink : "";
+    }
+
+    String getScreenshotsLink() {
+        return screenshotsLink;
+    }
+
+    void setScreenshotsLink(String screenshotsLink) {
+        this.screenshotsLink = screenshotsLink != null ? screenshotsLink : "";
+    }
+}
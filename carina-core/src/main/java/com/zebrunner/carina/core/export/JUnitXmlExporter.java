@@ -0,0 +1,127 @@
+/*******************************************************************************
+ * Copyright 2020-2022 Zebrunner Inc (https://www.zebrunner.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.zebrunner.carina.core.export;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Instant;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import org.apache.commons.lang3.StringEscapeUtils;
+
+import com.zebrunner.carina.utils.report.TestResultType;
+
+/*
+ * Writes results in JUnit XML format test case by test case. Suite counters are not known until the end of the run,
+ * so the header reserves fixed width zero-padded values which are overwritten in place on close.
+ * Retried attempts are not written as only the final result of the test matters for JUnit consumers.
+ */
+class JUnitXmlExporter implements ResultExporter {
+
+    private static final String HEADER_PREFIX = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<testsuite tests=\"";
+    private static final String COUNTERS_FORMAT = "%010d\" failures=\"%010d\" skipped=\"%010d";
+
+    private final File file;
+    private final Writer writer;
+    private int tests = 0;
+    private int failures = 0;
+    private int skipped = 0;
+
+    JUnitXmlExporter(File file, String suiteName) throws IOException {
+        this.file = file;
+        this.writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8);
+        writer.write(HEADER_PREFIX + getCounters() + "\" errors=\"0\" name=\"" + escape(suiteName)
+                + "\" timestamp=\"" + Instant.now() + "\">\n");
+        writer.flush();
+    }
+
+    @Override
+    public void write(ExportedResult result) throws IOException {
+        if (result.isRetried()) {
+            return;
+        }
+        tests++;
+        writer.write("  <testcase name=\"" + escape(result.getTest()) + "\" classname=\"" + escape(result.getClassName())
+                + "\" time=\"" + String.format(Locale.US, "%.3f", result.getDurationMillis() / 1000.0) + "\">\n");
+        writeProperties(result);
+        if (result.getResult() == TestResultType.FAIL) {
+            failures++;
+            writer.write("    <failure message=\"" + escape(result.getFailMessage()) + "\">" + escape(result.getFailReason())
+                    + "</failure>\n");
+        } else if (result.getResult() == TestResultType.SKIP) {
+            skipped++;
+            writer.write("    <skipped message=\"" + escape(result.getFailMessage()) + "\"/>\n");
+        }
+        writer.write("  </testcase>\n");
+        // keep the file up to date for the crashed or killed runs
+        writer.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        writer.write("</testsuite>\n");
+        writer.close();
+        try (RandomAccessFile output = new RandomAccessFile(file, "rw")) {
+            output.seek(HEADER_PREFIX.length());
+            output.write(getCounters().getBytes(StandardCharsets.US_ASCII));
+        }
+    }
+
+    private void writeProperties(ExportedResult result) throws IOException {
+        StringBuilder properties = new StringBuilder();
+        appendProperty(properties, "owner", result.getOwner());
+        appendProperty(properties, "priority", result.getPriority());
+        for (Map.Entry<String, List<String>> tag : result.getTags().entrySet()) {
+            for (String value : tag.getValue()) {
+                appendProperty(properties, "tag." + tag.getKey(), value);
+            }
+        }
+        for (String testRailCase : result.getTestRailCases()) {
+            appendProperty(properties, "testrail", testRailCase);
+        }
+        for (String qTestCase : result.getQTestCases()) {
+            appendProperty(properties, "qtest", qTestCase);
+        }
+        appendProperty(properties, "log", result.getLogLink());
+        appendProperty(properties, "screenshots", result.getScreenshotsLink());
+        if (properties.length() > 0) {
+            writer.write("    <properties>\n");
+            writer.write(properties.toString());
+            writer.write("    </properties>\n");
+        }
+    }
+
+    private static void appendProperty(StringBuilder properties, String name, String value) {
+        if (value == null || value.isEmpty()) {
+            return;
+        }
+        properties.append("      <property name=\"").append(escape(name)).append("\" value=\"").append(escape(value)).append("\"/>\n");
+    }
+
+    private String getCounters() {
+        return String.format(Locale.US, COUNTERS_FORMAT, tests, failures, skipped);
+    }
+
+    private static String escape(String value) {
+        return StringEscapeUtils.escapeXml10(value);
+    }
+}
@@ -0,0 +1,97 @@
+/*******************************************************************************
+ * Copyright 2020-2022 Zebrunner Inc (https://www.zebrunner.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.zebrunner.carina.core.export;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.lang3.StringEscapeUtils;
+
+/*
+ * Writes every test attempt as a single JSON line:
+ * {"test": "...", "class": "...", "method": "...", "status": "FAIL", "retried": false, "start": 1641135840000,
+ *  "duration": 1234, "owner": "...", "priority": "P1", "tags": {"feature": ["login"]}, "testrail": ["C1"],
+ *  "qtest": [], "log": "...", "screenshots": "...", "failure": "..."}
+ * Retried attempts are written too and marked by "retried": true.
+ */
+class NdjsonExporter implements ResultExporter {
+
+    private final Writer writer;
+
+    NdjsonExporter(File file) throws IOException {
+        this.writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+    }
+
+    @Override
+    public void write(ExportedResult result) throws IOException {
+        StringBuilder line = new StringBuilder();
+        line.append("{\"test\":").append(quote(result.getTest()));
+        line.append(",\"class\":").append(quote(result.getClassName()));
+        line.append(",\"method\":").append(quote(result.getMethodName()));
+        line.append(",\"status\":").append(quote(result.getResult().name()));
+        line.append(",\"retried\":").append(result.isRetried());
+        line.append(",\"start\":").append(result.getStartMillis());
+        line.append(",\"duration\":").append(result.getDurationMillis());
+        line.append(",\"owner\":").append(quote(result.getOwner()));
+        line.append(",\"priority\":").append(quote(result.getPriority()));
+        line.append(",\"tags\":{");
+        String separator = "";
+        for (Map.Entry<String, List<String>> tag : result.getTags().entrySet()) {
+            line.append(separator).append(quote(tag.getKey())).append(':');
+            appendArray(line, tag.getValue());
+            separator = ",";
+        }
+        line.append("},\"testrail\":");
+        appendArray(line, result.getTestRailCases());
+        line.append(",\"qtest\":");
+        appendArray(line, result.getQTestCases());
+        line.append(",\"log\":").append(quote(result.getLogLink()));
+        line.append(",\"screenshots\":").append(quote(result.getScreenshotsLink()));
+        line.append(",\"failure\":").append(quote(result.getFailReason()));
+        line.append("}\n");
+
+        writer.write(line.toString());
+        // every line is complete for the tools that tail the file during the run
+        writer.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        writer.close();
+    }
+
+    private static void appendArray(StringBuilder line, Collection<String> values) {
+        line.append('[');
+        String separator = "";
+        for (String value : values) {
+            line.append(separator).append(quote(value));
+            separator = ",";
+        }
+        line.append(']');
+    }
+
+    private static String quote(String value) {
+        return "\"" + StringEscapeUtils.escapeJson(value) + "\"";
+    }
+}
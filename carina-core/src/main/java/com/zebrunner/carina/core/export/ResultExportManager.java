@@ -0,0 +1,184 @@
+/*******************************************************************************
+ * Copyright 2020-2022 Zebrunner Inc (https://www.zebrunner.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.zebrunner.carina.core.export;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.testng.ITestNGMethod;
+import org.testng.ITestResult;
+
+import com.qaprosoft.carina.core.foundation.report.qtest.IQTestManager;
+import com.qaprosoft.carina.core.foundation.report.testrail.ITestRailManager;
+import com.zebrunner.agent.core.registrar.domain.LabelDTO;
+import com.zebrunner.agent.testng.core.testname.TestNameResolverRegistry;
+import com.zebrunner.carina.core.registrar.ownership.Ownership;
+import com.zebrunner.carina.core.registrar.tag.PriorityManager;
+import com.zebrunner.carina.core.registrar.tag.TagManager;
+import com.zebrunner.carina.utils.R;
+import com.zebrunner.carina.utils.report.ReportContext;
+import com.zebrunner.carina.utils.report.TestResultType;
+
+/**
+ * Streams test results to the machine-readable files in the report directory while the suite is running:
+ * junit-report.xml (JUnit XML) and test-results.ndjson (one JSON object per test attempt).
+ * Formats are enabled by result_exporters=junit,ndjson property. Every result is written as soon as the test
+ * is finished, so memory usage does not depend on the number of tests.
+ */
+public class ResultExportManager {
+    private static final Logger LOGGER = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+    private static final String RESULT_EXPORTERS = "result_exporters";
+    static final String JUNIT = "junit";
+    static final String NDJSON = "ndjson";
+    static final String JUNIT_FILE = "junit-report";
+    static final String NDJSON_FILE = "test-results";
+
+    private static ResultExportManager instance = null;
+
+    private final Set<String> formats = new LinkedHashSet<>();
+    private final List<ResultExporter> exporters = new ArrayList<>();
+    private boolean opened = false;
+    // number of closed exports, next suites of the run are written to the new files
+    private int closed = 0;
+
+    ResultExportManager(String formats) {
+        if (formats == null) {
+            return;
+        }
+        for (String format : formats.split(",")) {
+            format = format.trim().toLowerCase();
+            if (JUNIT.equals(format) || NDJSON.equals(format)) {
+                this.formats.add(format);
+            } else if (!format.isEmpty() && !"null".equals(format)) {
+                LOGGER.warn("Unsupported result exporter '{}'. Supported values: {}, {}", format, JUNIT, NDJSON);
+            }
+        }
+    }
+
+    public static synchronized ResultExportManager getInstance() {
+        if (null == instance) {
+            instance = new ResultExportManager(R.CONFIG.get(RESULT_EXPORTERS));
+        }
+        return instance;
+    }
+
+    public boolean isEnabled() {
+        return !formats.isEmpty();
+    }
+
+    /**
+     * Export the test result. Errors are logged and never fail the test.
+     *
+     * @param result {@link ITestResult}
+     * @param resultType result of the test
+     * @param failReason fail reason, null for the passed test
+     */
+    public void export(ITestResult result, TestResultType resultType, String failReason) {
+        if (!isEnabled()) {
+            return;
+        }
+        try {
+            // metadata is resolved outside of the lock
+            ExportedResult exported = createExportedResult(result, resultType, failReason);
+            write(exported, result.getTestContext().getSuite().getName());
+        } catch (Exception e) {
+            LOGGER.error("Unable to export result of the test", e);
+        }
+    }
+
+    /**
+     * Complete the export files. Results exported after that are written to the new files with the numeric suffix.
+     */
+    public synchronized void close() {
+        if (!opened) {
+            return;
+        }
+        for (ResultExporter exporter : exporters) {
+            try {
+                exporter.close();
+            } catch (IOException e) {
+                LOGGER.error("Unable to complete result export", e);
+            }
+        }
+        exporters.clear();
+        opened = false;
+        closed++;
+    }
+
+    synchronized void write(ExportedResult result, String suiteName) throws IOException {
+        if (!opened) {
+            open(suiteName);
+        }
+        for (ResultExporter exporter : exporters) {
+            exporter.write(result);
+        }
+    }
+
+    File getDirectory() {
+        return ReportContext.getBaseDir();
+    }
+
+    private void open(String suiteName) throws IOException {
+        String suffix = closed > 0 ? "-" + (closed + 1) : "";
+        if (formats.contains(JUNIT)) {
+            exporters.add(new JUnitXmlExporter(new File(getDirectory(), JUNIT_FILE + suffix + ".xml"), suiteName));
+        }
+        if (formats.contains(NDJSON)) {
+            exporters.add(new NdjsonExporter(new File(getDirectory(), NDJSON_FILE + suffix + ".ndjson")));
+        }
+        opened = true;
+    }
+
+    private static ExportedResult createExportedResult(ITestResult result, TestResultType resultType, String failReason) {
+        ITestNGMethod testMethod = result.getMethod();
+        Class<?> clazz = testMethod.getRealClass();
+        Method method = testMethod.getConstructorOrMethod().getMethod();
+
+        ExportedResult exported = new ExportedResult(TestNameResolverRegistry.get().resolve(result), clazz.getName(),
+                testMethod.getMethodName(), resultType, result.getStartMillis(), result.getEndMillis(), failReason);
+        exported.setRetried(result.wasRetried());
+        exported.setLogLink(ReportContext.getTestLogLink());
+        exported.setScreenshotsLink(ReportContext.getTestScreenshotsLink());
+        exported.setTestRailCases(new ITestRailManager() {
+        }.getTestRailCasesUuid(result));
+        exported.setQTestCases(new IQTestManager() {
+        }.getQTestCasesUuid(result));
+
+        if (method != null) {
+            exported.setOwner(new Ownership().resolve(clazz, method));
+            for (LabelDTO priority : new PriorityManager().resolve(clazz, method)) {
+                exported.setPriority(priority.getValue());
+            }
+            Map<String, List<String>> tags = new LinkedHashMap<>();
+            for (LabelDTO tag : new TagManager().resolve(clazz, method)) {
+                tags.computeIfAbsent(tag.getKey(), key -> new ArrayList<>()).add(tag.getValue());
+            }
+            exported.setTags(tags);
+        }
+        return exported;
+    }
+}
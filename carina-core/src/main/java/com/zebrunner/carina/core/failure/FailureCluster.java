@@ -0,0 +1,71 @@
+/*******************************************************************************
+ * Copyright 2020-2022 Zebrunner Inc (https://www.zebrunner.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.zebrunner.carina.core.failure;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Failures of the different tests with the same {@link FailureFingerprint}. Normalized trace is stored once per cluster,
+ * results of the tests keep their own failure messages only.
+ */
+public class FailureCluster {
+
+    static final int MAX_SAMPLE_TESTS = 10;
+
+    private final FailureFingerprint fingerprint;
+    private final AtomicInteger count = new AtomicInteger();
+    private final List<String> tests = new ArrayList<>();
+
+    FailureCluster(FailureFingerprint fingerprint) {
+        this.fingerprint = fingerprint;
+    }
+
+    void add(String test) {
+        count.incrementAndGet();
+        synchronized (tests) {
+            if (tests.size() < MAX_SAMPLE_TESTS) {
+                tests.add(test);
+            }
+        }
+    }
+
+    public FailureFingerprint getFingerprint() {
+        return fingerprint;
+    }
+
+    /**
+     * @return normalized trace of the cluster, see {@link FailureFingerprint#getTrace()}
+     */
+    public String getTrace() {
+        return fingerprint.getTrace();
+    }
+
+    public int getCount() {
+        return count.get();
+    }
+
+    /**
+     * @return names of the first failed tests of the cluster, at most 10
+     */
+    public List<String> getTests() {
+        synchronized (tests) {
+            return Collections.unmodifiableList(new ArrayList<>(tests));
+        }
+    }
+}
@@ -0,0 +1,106 @@
+/*******************************************************************************
+ * Copyright 2020-2022 Zebrunner Inc (https://www.zebrunner.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.zebrunner.carina.core.failure;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.invoke.MethodHandles;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.lang3.StringEscapeUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Groups test failures by {@link FailureFingerprint}, so thousands of failures caused by the single problem
+ * are reported as one cluster with the count of failed tests.
+ */
+public class FailureClusterManager {
+    private static final Logger LOGGER = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+    private static FailureClusterManager instance = null;
+
+    private final Map<String, FailureCluster> clusters = new ConcurrentHashMap<>();
+
+    FailureClusterManager() {
+    }
+
+    public static synchronized FailureClusterManager getInstance() {
+        if (null == instance) {
+            instance = new FailureClusterManager();
+        }
+        return instance;
+    }
+
+    /**
+     * Register failure of the test.
+     *
+     * @param test test name
+     * @param throwable failure
+     * @return fingerprint of the cluster, its normalized trace is the one stored by the cluster
+     */
+    public FailureFingerprint register(String test, Throwable throwable) {
+        FailureFingerprint fingerprint = FailureFingerprint.of(throwable);
+        FailureCluster cluster = clusters.computeIfAbsent(fingerprint.getHash(), hash -> new FailureCluster(fingerprint));
+        cluster.add(test);
+        LOGGER.debug("Failure of '{}' is registered in cluster {}", test, fingerprint);
+        return cluster.getFingerprint();
+    }
+
+    /**
+     * @return failure clusters, the biggest first
+     */
+    public List<FailureCluster> getClusters() {
+        List<FailureCluster> sorted = new ArrayList<>(clusters.values());
+        sorted.sort(Comparator.comparingInt(FailureCluster::getCount).reversed());
+        return sorted;
+    }
+
+    /**
+     * Export clusters to JSON:
+     * {"clusters": [{"fingerprint": "...", "count": 2000, "failure": "...", "tests": [...], "trace": "..."}]}
+     *
+     * @param file target file
+     */
+    public void writeJson(File file) throws IOException {
+        try (Writer writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8)) {
+            writer.write("{\"clusters\":[");
+            String separator = "";
+            for (FailureCluster cluster : getClusters()) {
+                writer.write(separator);
+                writer.write("{\"fingerprint\":\"" + cluster.getFingerprint().getHash() + "\"");
+                writer.write(",\"count\":" + cluster.getCount());
+                writer.write(",\"failure\":\"" + StringEscapeUtils.escapeJson(cluster.getFingerprint().getSummary()) + "\"");
+                writer.write(",\"tests\":[");
+                String testSeparator = "";
+                for (String test : cluster.getTests()) {
+                    writer.write(testSeparator + "\"" + StringEscapeUtils.escapeJson(test) + "\"");
+                    testSeparator = ",";
+                }
+                writer.write("],\"trace\":\"" + StringEscapeUtils.escapeJson(cluster.getTrace()) + "\"}");
+                separator = ",";
+            }
+            writer.write("]}\n");
+        }
+    }
+}
@@ -0,0 +1,151 @@
+/*******************************************************************************
+ * Copyright 2020-2022 Zebrunner Inc (https://www.zebrunner.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.zebrunner.carina.core.failure;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Stable identity of the failure: exception types of the whole cause chain with normalized messages
+ * and top frames of every throwable. Ids, numbers and timestamps are masked in messages, so failures
+ * caused by the same problem get the same fingerprint in different tests. Normalized trace of the failure
+ * is kept with the fingerprint, so it is the same for all tests of the cluster.
+ */
+public final class FailureFingerprint {
+
+    static final int DEFAULT_FRAMES = 5;
+    // protects from the recursive and extremely long cause chains
+    private static final int MAX_CAUSES = 10;
+
+    private static final Pattern UUID = Pattern.compile("[0-9a-fA-F]{8}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{12}");
+    // hex ids like session or element ids: 0x prefixed or at least 6 hex chars with both digits and letters
+    private static final Pattern HEX = Pattern.compile("\\b0x[0-9a-fA-F]+\\b|\\b(?=[0-9a-fA-F]*\\d)(?=[0-9a-fA-F]*[a-fA-F])[0-9a-fA-F]{6,}\\b");
+    private static final Pattern NUMBER = Pattern.compile("\\d+");
+
+    private final String hash;
+    private final String summary;
+    private final String trace;
+
+    private FailureFingerprint(String hash, String summary, String trace) {
+        this.hash = hash;
+        this.summary = summary;
+        this.trace = trace;
+    }
+
+    public static FailureFingerprint of(Throwable throwable) {
+        return of(throwable, DEFAULT_FRAMES);
+    }
+
+    /**
+     * Calculate fingerprint of the failure.
+     *
+     * @param throwable {@link Throwable}
+     * @param frames number of the top stack frames of every throwable in the cause chain
+     * @return {@link FailureFingerprint}
+     */
+    public static FailureFingerprint of(Throwable throwable, int frames) {
+        StringBuilder normalized = new StringBuilder();
+        StringBuilder trace = new StringBuilder();
+        Set<Throwable> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+        Throwable current = throwable;
+        for (int depth = 0; current != null && depth < MAX_CAUSES && visited.add(current); depth++) {
+            String type = current.getClass().getName() + ": " + normalizeMessage(current.getMessage());
+            normalized.append(type).append('\n');
+            trace.append(depth > 0 ? "\nCaused by: " : "").append(type).append('\n');
+            StackTraceElement[] stackTrace = current.getStackTrace();
+            for (int i = 0; i < stackTrace.length; i++) {
+                if (i < frames) {
+                    // line numbers are left out, so small changes of the test code do not split the cluster
+                    normalized.append("\tat ").append(stackTrace[i].getClassName()).append('.').append(stackTrace[i].getMethodName()).append('\n');
+                }
+                trace.append("\tat ").append(stackTrace[i]).append('\n');
+            }
+            current = current.getCause();
+        }
+
+        String summary = throwable == null ? "" : throwable.getClass().getName() + ": " + normalizeMessage(throwable.getMessage());
+        return new FailureFingerprint(sha256(normalized.toString()), summary, trace.toString());
+    }
+
+    /**
+     * Mask UUIDs, hex ids and numbers and take the first line only.
+     *
+     * @param message exception message
+     * @return normalized message
+     */
+    static String normalizeMessage(String message) {
+        if (message == null) {
+            return "";
+        }
+        int lineEnd = message.indexOf('\n');
+        String line = lineEnd >= 0 ? message.substring(0, lineEnd) : message;
+        line = UUID.matcher(line).replaceAll("<uuid>");
+        line = HEX.matcher(line).replaceAll("<id>");
+        return NUMBER.matcher(line).replaceAll("<n>").trim();
+    }
+
+    private static String sha256(String value) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(value.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder();
+            // 64 bits are enough to tell failures of the single run apart
+            for (int i = 0; i < 8; i++) {
+                hex.append(String.format("%02x", digest[i]));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not supported", e);
+        }
+    }
+
+    public String getHash() {
+        return hash;
+    }
+
+    /**
+     * @return exception type with normalized message of the top level throwable
+     */
+    public String getSummary() {
+        return summary;
+    }
+
+    /**
+     * @return full trace of the cause chain with normalized messages
+     */
+    public String getTrace() {
+        return trace;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof FailureFingerprint && hash.equals(((FailureFingerprint) o).hash);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return hash;
+    }
+}
@@ -0,0 +1,205 @@
+/*******************************************************************************
+ * Copyright 2020-2022 Zebrunner Inc (https://www.zebrunner.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.zebrunner.carina.core.log;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * Background writer: test threads only enqueue log lines, and the writer thread appends them to test logs
+ * in batches flushing every touched file once per batch.
+ * Queue is bounded: test threads wait for the free slot when the writer thread is behind. Test threads wait only
+ * for the lines of their own test log on flush, lines are written directly after the writer is stopped.
+ */
+class AsyncLogWriter implements Runnable {
+
+    private static final String THREAD_NAME = "carina-log-writer";
+    private static final long FLUSH_WAIT_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final BlockingQueue<LogRecord> queue;
+    // progress of every test log: lines of the same log are enqueued in order under the lock of its progress
+    private final Map<TestLogWriter, Progress> progress = Collections.synchronizedMap(new WeakHashMap<>());
+    private final long flushIntervalNanos;
+    private final Thread thread;
+    private volatile boolean stopped = false;
+
+    AsyncLogWriter(long flushIntervalMillis, int queueSize) {
+        this.queue = new ArrayBlockingQueue<>(queueSize);
+        this.flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(flushIntervalMillis);
+        this.thread = new Thread(this, THREAD_NAME);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    void submit(TestLogWriter writer, byte[] logLine, int length) throws IOException {
+        submit(writer, logLine, length, null, 0);
+    }
+
+    /**
+     * Enqueue structured log line which should be registered in the index.
+     * Waits for the free slot if the queue is full.
+     */
+    void submit(TestLogWriter writer, byte[] logLine, int length, String level, long timeMillis) throws IOException {
+        Progress logProgress = progress.computeIfAbsent(writer, k -> new Progress());
+        synchronized (logProgress) {
+            if (!stopped) {
+                // formatter buffer is reused by the test thread, so line should be copied
+                LogRecord record = new LogRecord(writer, Arrays.copyOf(logLine, length), level, timeMillis, logProgress,
+                        ++logProgress.submitted);
+                try {
+                    queue.put(record);
+                    return;
+                } catch (InterruptedException e) {
+                    logProgress.submitted--;
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+        // writer is stopped or the test thread is interrupted
+        write(new LogRecord(writer, Arrays.copyOf(logLine, length), level, timeMillis, null, 0));
+        writer.flush();
+    }
+
+    /**
+     * Wait till all lines of the test log enqueued before the call are written and flushed.
+     *
+     * @param writer {@link TestLogWriter} of the test log
+     */
+    void flush(TestLogWriter writer) {
+        Progress logProgress = progress.get(writer);
+        if (logProgress == null) {
+            return;
+        }
+        long target = logProgress.submitted;
+        while (logProgress.written < target) {
+            if (stopped) {
+                drain();
+            } else {
+                // do not wait for the next flush interval
+                LockSupport.unpark(thread);
+            }
+            LockSupport.parkNanos(FLUSH_WAIT_NANOS);
+            if (Thread.currentThread().isInterrupted()) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Write all enqueued log lines and flush touched files.
+     */
+    synchronized void drain() {
+        Set<TestLogWriter> touched = new HashSet<>();
+        Map<Progress, Long> written = new HashMap<>();
+        LogRecord record;
+        while ((record = queue.poll()) != null) {
+            try {
+                write(record);
+                touched.add(record.writer);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+            written.put(record.progress, record.sequence);
+        }
+        for (TestLogWriter writer : touched) {
+            try {
+                writer.flush();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+        for (Map.Entry<Progress, Long> entry : written.entrySet()) {
+            entry.getKey().written = entry.getValue();
+        }
+    }
+
+    /**
+     * Write all pending lines and stop the writer thread, next lines are written by the test threads directly.
+     */
+    void stop() {
+        stopped = true;
+        LockSupport.unpark(thread);
+        // test threads could still wait for the free slot to enqueue lines submitted before the stop
+        do {
+            drain();
+        } while (hasPendingLines());
+    }
+
+    int getPendingLines() {
+        return queue.size();
+    }
+
+    @Override
+    public void run() {
+        while (!stopped) {
+            LockSupport.parkNanos(flushIntervalNanos);
+            drain();
+        }
+    }
+
+    private void write(LogRecord record) throws IOException {
+        if (record.level != null) {
+            record.writer.write(record.logLine, record.logLine.length, record.level, record.timeMillis);
+        } else {
+            record.writer.write(record.logLine, record.logLine.length);
+        }
+    }
+
+    private boolean hasPendingLines() {
+        synchronized (progress) {
+            for (Progress logProgress : progress.values()) {
+                if (logProgress.written < logProgress.submitted) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static class Progress {
+        // updated under the progress lock, includes lines waiting for the free slot
+        private volatile long submitted = 0;
+        private volatile long written = 0;
+    }
+
+    private static class LogRecord {
+        private final TestLogWriter writer;
+        private final byte[] logLine;
+        private final String level;
+        private final long timeMillis;
+        private final Progress progress;
+        private final long sequence;
+
+        private LogRecord(TestLogWriter writer, byte[] logLine, String level, long timeMillis, Progress progress, long sequence) {
+            this.writer = writer;
+            this.logLine = logLine;
+            this.level = level;
+            this.timeMillis = timeMillis;
+            this.progress = progress;
+            this.sequence = sequence;
+        }
+    }
+}
@@ -0,0 +1,228 @@
+/*******************************************************************************
+ * Copyright 2020-2022 Zebrunner Inc (https://www.zebrunner.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.zebrunner.carina.core.log;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.Serializable;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.logging.log4j.core.Appender;
+import org.apache.logging.log4j.core.Core;
+import org.apache.logging.log4j.core.Filter;
+import org.apache.logging.log4j.core.Layout;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.appender.AbstractAppender;
+import org.apache.logging.log4j.core.config.Property;
+import org.apache.logging.log4j.core.config.plugins.Plugin;
+import org.apache.logging.log4j.core.config.plugins.PluginAttribute;
+import org.apache.logging.log4j.core.config.plugins.PluginElement;
+import org.apache.logging.log4j.core.config.plugins.PluginFactory;
+import org.apache.logging.log4j.core.layout.PatternLayout;
+
+/*
+ * Console appender moving console writes out of the test threads: events are formatted by the caller,
+ * enqueued and written by the background thread in batches with a single write and flush per batch.
+ * Intended for the high volume Messager output (test started/passed/failed, execution summary), the routing is
+ * shipped commented out in log4j2.xml and should be enabled explicitly.
+ *
+ * Supported attributes:
+ * target - "SYSTEM_OUT" or "SYSTEM_ERR" ("SYSTEM_OUT" by default)
+ * flushInterval - max delay in milliseconds between log event and its console output (200 by default)
+ * queueSize - max number of pending events, events above it are written synchronously by the caller (65536 by default)
+ */
+@Plugin(
+        name = "BatchedConsoleAppender",
+        category = Core.CATEGORY_NAME,
+        elementType = Appender.ELEMENT_TYPE
+)
+public class BatchedConsoleAppender extends AbstractAppender {
+
+    private static final String THREAD_NAME = "carina-console-writer";
+    private static final long DEFAULT_FLUSH_INTERVAL = 200;
+    private static final int DEFAULT_QUEUE_SIZE = 65536;
+    private static final long DEFAULT_STOP_TIMEOUT = 5000;
+    // batch buffer is reused, keep it reasonable for the suite summary bursts
+    private static final int BATCH_BUFFER_SIZE = 64 * 1024;
+
+    // all started appenders, so listeners are able to flush console without access to appender instance
+    private static final Queue<BatchedConsoleAppender> appenders = new ConcurrentLinkedQueue<>();
+
+    private final OutputStream stream;
+    private final int queueSize;
+    private final long flushIntervalNanos;
+    private final Queue<byte[]> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pending = new AtomicInteger();
+    private final byte[] batch = new byte[BATCH_BUFFER_SIZE];
+    private volatile Thread writerThread;
+
+    BatchedConsoleAppender(String name,
+                           Filter filter,
+                           Layout<? extends Serializable> layout,
+                           OutputStream stream,
+                           long flushInterval,
+                           int queueSize) {
+        super(name, filter, layout, true, Property.EMPTY_ARRAY);
+        this.stream = stream;
+        this.queueSize = queueSize;
+        this.flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(flushInterval);
+    }
+
+    @PluginFactory
+    public static BatchedConsoleAppender create(@PluginAttribute("name") String name,
+                                                @PluginElement("Layout") Layout<? extends Serializable> layout,
+                                                @PluginElement("Filter") Filter filter,
+                                                @PluginAttribute(value = "target", defaultString = "SYSTEM_OUT") String target,
+                                                @PluginAttribute(value = "flushInterval", defaultLong = DEFAULT_FLUSH_INTERVAL) long flushInterval,
+                                                @PluginAttribute(value = "queueSize", defaultInt = DEFAULT_QUEUE_SIZE) int queueSize) {
+        if (name == null) {
+            LOGGER.error("No name provided for BatchedConsoleAppender");
+            return null;
+        }
+
+        if (layout == null) {
+            layout = PatternLayout.createDefaultLayout();
+        }
+
+        PrintStream stream;
+        if ("SYSTEM_OUT".equalsIgnoreCase(target)) {
+            stream = System.out;
+        } else if ("SYSTEM_ERR".equalsIgnoreCase(target)) {
+            stream = System.err;
+        } else {
+            LOGGER.error("Unknown target of BatchedConsoleAppender: " + target);
+            return null;
+        }
+
+        if (flushInterval <= 0 || queueSize <= 0) {
+            LOGGER.error("flushInterval and queueSize of BatchedConsoleAppender should be positive");
+            return null;
+        }
+
+        return new BatchedConsoleAppender(name, filter, layout, stream, flushInterval, queueSize);
+    }
+
+    /**
+     * Write all pending console output, e.g. before the suite summary or JVM exit.
+     */
+    public static void flushAll() {
+        for (BatchedConsoleAppender appender : appenders) {
+            appender.drain();
+        }
+    }
+
+    @Override
+    public void start() {
+        super.start();
+        appenders.add(this);
+        Thread thread = new Thread(this::run, THREAD_NAME);
+        thread.setDaemon(true);
+        writerThread = thread;
+        thread.start();
+    }
+
+    @Override
+    public void append(LogEvent event) {
+        byte[] line = getLayout().toByteArray(event);
+        if (pending.incrementAndGet() > queueSize) {
+            // console is slower than producers, so keep memory bounded by writing synchronously
+            pending.decrementAndGet();
+            // single lock, so the writer thread could not write newer events between the drained ones and this one
+            synchronized (this) {
+                drain();
+                write(line);
+            }
+            return;
+        }
+        queue.offer(line);
+    }
+
+    /**
+     * Write enqueued events with single write and flush per batch buffer.
+     */
+    synchronized void drain() {
+        int length = 0;
+        boolean written = false;
+        byte[] line;
+        try {
+            while ((line = queue.poll()) != null) {
+                pending.decrementAndGet();
+                written = true;
+                if (length + line.length > batch.length) {
+                    stream.write(batch, 0, length);
+                    length = 0;
+                }
+                if (line.length > batch.length) {
+                    stream.write(line);
+                } else {
+                    System.arraycopy(line, 0, batch, length, line.length);
+                    length += line.length;
+                }
+            }
+            if (length > 0) {
+                stream.write(batch, 0, length);
+            }
+            if (written) {
+                stream.flush();
+            }
+        } catch (IOException e) {
+            error("Unable to write console output of " + getName(), e);
+        }
+    }
+
+    private void write(byte[] line) {
+        try {
+            stream.write(line);
+            stream.flush();
+        } catch (IOException e) {
+            error("Unable to write console output of " + getName(), e);
+        }
+    }
+
+    private void run() {
+        while (isStarted()) {
+            LockSupport.parkNanos(flushIntervalNanos);
+            drain();
+        }
+    }
+
+    @Override
+    public boolean stop(long timeout, TimeUnit timeUnit) {
+        setStopping();
+        appenders.remove(this);
+        boolean stopped = true;
+        Thread thread = writerThread;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+            try {
+                // log4j passes 0 timeout on regular stop, writer still should complete the current batch
+                thread.join(timeout > 0 ? timeUnit.toMillis(timeout) : DEFAULT_STOP_TIMEOUT);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            stopped = !thread.isAlive();
+        }
+        setStopped();
+        // events appended while the appender was stopping
+        drain();
+        return stopped;
+    }
+}
@@ -0,0 +1,236 @@
+/*******************************************************************************
+ * Copyright 2020-2022 Zebrunner Inc (https://www.zebrunner.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.zebrunner.carina.core.log;
+
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.message.Message;
+import org.apache.logging.log4j.util.StringBuilderFormattable;
+import org.slf4j.MDC;
+
+import com.zebrunner.carina.core.testng.TestNamingService;
+
+/*
+ * Formats log events of the single thread into UTF-8 encoded "[time] [threadId] [level] message" lines
+ * or JSON lines with timestamp, thread, level, logger, test and message fields.
+ * All buffers are reused between events, so steady state formatting doesn't allocate anything.
+ * Instance is not thread safe and should be used by the owner thread only.
+ */
+class LogLineFormatter {
+
+    private static final DateTimeFormatter LOG_TIME_FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd hh:mm:ss");
+    private static final DateTimeFormatter JSON_TIME_FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss");
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+    private static final String THREAD_ID_KEY = "threadId";
+    private static final int INITIAL_CAPACITY = 512;
+    // do not keep huge buffers after single big message
+    private static final int MAX_RETAINED_CAPACITY = 64 * 1024;
+
+    private StringBuilder line = new StringBuilder(INITIAL_CAPACITY);
+    private byte[] bytes = new byte[INITIAL_CAPACITY];
+
+    private long cachedEpochSecond = Long.MIN_VALUE;
+    private String cachedTimePrefix;
+    private long cachedJsonEpochSecond = Long.MIN_VALUE;
+    private String cachedJsonTime;
+    // message is formatted here before escaping
+    private StringBuilder message = new StringBuilder(INITIAL_CAPACITY);
+
+    private final String threadIdPart;
+    private final String mdcThreadId;
+
+    LogLineFormatter(long threadId) {
+        this.threadIdPart = "[" + threadId + "] ";
+        this.mdcThreadId = "-" + threadId;
+    }
+
+    /**
+     * Format log event to the internal byte buffer.
+     *
+     * @param event {@link LogEvent}
+     * @return number of bytes of the line available via {@link #getBytes()}
+     */
+    int format(LogEvent event) {
+        putThreadId();
+        if (line.capacity() > MAX_RETAINED_CAPACITY) {
+            line = new StringBuilder(INITIAL_CAPACITY);
+        }
+        line.setLength(0);
+        line.append(getTimePrefix(event.getInstant().getEpochSecond()))
+                .append(threadIdPart)
+                .append('[').append(event.getLevel().name()).append("] ");
+
+        Message message = event.getMessage();
+        if (message instanceof StringBuilderFormattable) {
+            ((StringBuilderFormattable) message).formatTo(line);
+        } else if (message != null) {
+            line.append(message.getFormattedMessage());
+        }
+        line.append('\n');
+        return encode();
+    }
+
+    /**
+     * Format log event as a JSON line to the internal byte buffer.
+     *
+     * @param event {@link LogEvent}
+     * @return number of bytes of the line available via {@link #getBytes()}
+     */
+    int formatJson(LogEvent event) {
+        putThreadId();
+        if (line.capacity() > MAX_RETAINED_CAPACITY) {
+            line = new StringBuilder(INITIAL_CAPACITY);
+        }
+        if (message.capacity() > MAX_RETAINED_CAPACITY) {
+            message = new StringBuilder(INITIAL_CAPACITY);
+        }
+        line.setLength(0);
+        message.setLength(0);
+
+        int millis = event.getInstant().getNanoOfSecond() / 1_000_000;
+        line.append("{\"timestamp\":\"").append(getJsonTime(event.getInstant().getEpochSecond())).append('.')
+                .append((char) ('0' + millis / 100)).append((char) ('0' + millis / 10 % 10)).append((char) ('0' + millis % 10))
+                .append("Z\",\"thread\":");
+        appendJsonString(event.getThreadName());
+        line.append(",\"level\":\"").append(event.getLevel().name()).append("\",\"logger\":");
+        appendJsonString(event.getLoggerName());
+        line.append(",\"test\":");
+        appendJsonString(TestNamingService.getCurrentTestName());
+
+        Message eventMessage = event.getMessage();
+        if (eventMessage instanceof StringBuilderFormattable) {
+            ((StringBuilderFormattable) eventMessage).formatTo(message);
+        } else if (eventMessage != null) {
+            message.append(eventMessage.getFormattedMessage());
+        }
+        line.append(",\"message\":");
+        appendJsonString(message);
+        line.append("}\n");
+        return encode();
+    }
+
+    /**
+     * Put thread id used by console pattern to MDC. Does nothing if it is already there.
+     */
+    void putThreadId() {
+        if (!mdcThreadId.equals(MDC.get(THREAD_ID_KEY))) {
+            MDC.put(THREAD_ID_KEY, mdcThreadId);
+        }
+    }
+
+    /**
+     * @return internal buffer with the last formatted line, valid till the next {@link #format(LogEvent)} call
+     */
+    byte[] getBytes() {
+        return bytes;
+    }
+
+    private String getTimePrefix(long epochSecond) {
+        if (epochSecond != cachedEpochSecond) {
+            cachedTimePrefix = "[" + LocalDateTime.ofEpochSecond(epochSecond, 0, ZoneOffset.UTC)
+                    .format(LOG_TIME_FORMATTER) + "] ";
+            cachedEpochSecond = epochSecond;
+        }
+        return cachedTimePrefix;
+    }
+
+    private String getJsonTime(long epochSecond) {
+        if (epochSecond != cachedJsonEpochSecond) {
+            cachedJsonTime = LocalDateTime.ofEpochSecond(epochSecond, 0, ZoneOffset.UTC).format(JSON_TIME_FORMATTER);
+            cachedJsonEpochSecond = epochSecond;
+        }
+        return cachedJsonTime;
+    }
+
+    private void appendJsonString(CharSequence value) {
+        if (value == null) {
+            line.append("null");
+            return;
+        }
+        line.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+            case '"':
+                line.append("\\\"");
+                break;
+            case '\\':
+                line.append("\\\\");
+                break;
+            case '\n':
+                line.append("\\n");
+                break;
+            case '\r':
+                line.append("\\r");
+                break;
+            case '\t':
+                line.append("\\t");
+                break;
+            default:
+                if (c < 0x20) {
+                    line.append("\\u00").append(HEX_DIGITS[c >> 4]).append(HEX_DIGITS[c & 0xF]);
+                } else {
+                    line.append(c);
+                }
+            }
+        }
+        line.append('"');
+    }
+
+    /**
+     * Encode line to UTF-8 without intermediate String and CharBuffer objects.
+     *
+     * @return number of encoded bytes
+     */
+    private int encode() {
+        int length = line.length();
+        // UTF-8 needs at most 3 bytes per char (surrogate pair needs 4 bytes per 2 chars)
+        if (bytes.length < length * 3) {
+            bytes = new byte[length * 3];
+        } else if (bytes.length > MAX_RETAINED_CAPACITY && length * 3 <= INITIAL_CAPACITY) {
+            bytes = Arrays.copyOf(bytes, INITIAL_CAPACITY);
+        }
+
+        int pos = 0;
+        for (int i = 0; i < length; i++) {
+            char c = line.charAt(i);
+            if (c < 0x80) {
+                bytes[pos++] = (byte) c;
+            } else if (c < 0x800) {
+                bytes[pos++] = (byte) (0xC0 | (c >> 6));
+                bytes[pos++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(line.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, line.charAt(++i));
+                bytes[pos++] = (byte) (0xF0 | (codePoint >> 18));
+                bytes[pos++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                bytes[pos++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                bytes[pos++] = (byte) (0x80 | (codePoint & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                // malformed surrogate is replaced the same way as String.getBytes does
+                bytes[pos++] = '?';
+            } else {
+                bytes[pos++] = (byte) (0xE0 | (c >> 12));
+                bytes[pos++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                bytes[pos++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        return pos;
+    }
+}
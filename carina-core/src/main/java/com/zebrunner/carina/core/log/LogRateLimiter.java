@@ -0,0 +1,209 @@
+/*******************************************************************************
+ * Copyright 2020-2022 Zebrunner Inc (https://www.zebrunner.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.zebrunner.carina.core.log;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.message.Message;
+import org.apache.logging.log4j.message.SimpleMessage;
+import org.apache.logging.log4j.util.StringBuilderFormattable;
+
+/*
+ * Protects the test log from the log storms of the single test: collapses consecutive duplicated messages
+ * and limits number of lines per second of every level by token buckets.
+ * Summary of the dropped lines is written before the next accepted line or when the test log is closed.
+ * Instance is not thread safe and should be used by the owner thread only.
+ */
+class LogRateLimiter {
+
+    private final Map<String, TokenBucket> buckets = new HashMap<>();
+    private final boolean collapseDuplicates;
+    private final Consumer<LogEvent> summarySink;
+    private final LongSupplier nanoClock;
+
+    private StringBuilder message = new StringBuilder();
+    private StringBuilder lastMessage = new StringBuilder();
+    private String lastLevel = null;
+    private long repeated = 0;
+
+    // level -> number of lines dropped by rate limit since the last summary
+    private final Map<String, long[]> suppressed = new LinkedHashMap<>();
+    private boolean hasSuppressed = false;
+
+    LogRateLimiter(Map<String, Integer> linesPerSecond, boolean collapseDuplicates, Consumer<LogEvent> summarySink) {
+        this(linesPerSecond, collapseDuplicates, summarySink, System::nanoTime);
+    }
+
+    LogRateLimiter(Map<String, Integer> linesPerSecond, boolean collapseDuplicates, Consumer<LogEvent> summarySink,
+            LongSupplier nanoClock) {
+        this.collapseDuplicates = collapseDuplicates;
+        this.summarySink = summarySink;
+        this.nanoClock = nanoClock;
+        long now = nanoClock.getAsLong();
+        for (Map.Entry<String, Integer> entry : linesPerSecond.entrySet()) {
+            buckets.put(entry.getKey(), new TokenBucket(entry.getValue(), now));
+        }
+    }
+
+    /**
+     * Parse limits from "INFO=1000,DEBUG=100" format.
+     *
+     * @param value comma separated level=lines per second pairs
+     * @return map of level name to lines per second
+     */
+    static Map<String, Integer> parseLimits(String value) {
+        Map<String, Integer> limits = new LinkedHashMap<>();
+        if (value == null || value.isBlank()) {
+            return limits;
+        }
+        for (String limit : value.split(",")) {
+            String[] pair = limit.split("=");
+            if (pair.length != 2) {
+                throw new IllegalArgumentException("Invalid rate limit: " + limit);
+            }
+            String level = Level.valueOf(pair[0].trim()).name();
+            int rate = Integer.parseInt(pair[1].trim());
+            if (rate <= 0) {
+                throw new IllegalArgumentException("Rate limit should be positive: " + limit);
+            }
+            limits.put(level, rate);
+        }
+        return limits;
+    }
+
+    /**
+     * Decide whether event should be written. Writes pending summary to the sink before accepted event.
+     *
+     * @param event {@link LogEvent}
+     * @return true if event should be written
+     */
+    boolean tryAcquire(LogEvent event) {
+        String level = event.getLevel().name();
+        if (collapseDuplicates) {
+            formatMessage(event);
+            if (level.equals(lastLevel) && contentEquals(message, lastMessage)) {
+                repeated++;
+                return false;
+            }
+        }
+
+        TokenBucket bucket = buckets.get(level);
+        if (bucket != null && !bucket.tryConsume(nanoClock.getAsLong())) {
+            suppressed.computeIfAbsent(level, k -> new long[1])[0]++;
+            hasSuppressed = true;
+            return false;
+        }
+
+        flushSummary();
+        if (collapseDuplicates) {
+            // remember accepted message swapping buffers to not copy it
+            StringBuilder accepted = message;
+            message = lastMessage;
+            lastMessage = accepted;
+            lastLevel = level;
+        }
+        return true;
+    }
+
+    /**
+     * Write summary of the dropped lines if any.
+     */
+    void flushSummary() {
+        if (repeated > 0) {
+            long count = repeated;
+            repeated = 0;
+            summarySink.accept(createSummary(String.format(Locale.US, "Last message repeated %,d times", count)));
+        }
+        if (hasSuppressed) {
+            StringBuilder summary = new StringBuilder("Lines suppressed by rate limit:");
+            for (Map.Entry<String, long[]> entry : suppressed.entrySet()) {
+                if (entry.getValue()[0] > 0) {
+                    summary.append(' ').append(entry.getKey()).append('=').append(String.format(Locale.US, "%,d", entry.getValue()[0]));
+                    entry.getValue()[0] = 0;
+                }
+            }
+            hasSuppressed = false;
+            summarySink.accept(createSummary(summary.toString()));
+        }
+    }
+
+    private void formatMessage(LogEvent event) {
+        message.setLength(0);
+        Message eventMessage = event.getMessage();
+        if (eventMessage instanceof StringBuilderFormattable) {
+            ((StringBuilderFormattable) eventMessage).formatTo(message);
+        } else if (eventMessage != null) {
+            message.append(eventMessage.getFormattedMessage());
+        }
+    }
+
+    private static boolean contentEquals(StringBuilder first, StringBuilder second) {
+        if (first.length() != second.length()) {
+            return false;
+        }
+        for (int i = first.length() - 1; i >= 0; i--) {
+            if (first.charAt(i) != second.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static LogEvent createSummary(String text) {
+        return Log4jLogEvent.newBuilder()
+                .setLevel(Level.INFO)
+                .setLoggerName(LogRateLimiter.class.getName())
+                .setThreadName(Thread.currentThread().getName())
+                .setTimeMillis(System.currentTimeMillis())
+                .setMessage(new SimpleMessage(text))
+                .build();
+    }
+
+    private static class TokenBucket {
+        private static final long SECOND_IN_NANOS = 1_000_000_000L;
+
+        private final int linesPerSecond;
+        private double tokens;
+        private long lastRefill;
+
+        private TokenBucket(int linesPerSecond, long now) {
+            this.linesPerSecond = linesPerSecond;
+            // allow the burst of one second
+            this.tokens = linesPerSecond;
+            this.lastRefill = now;
+        }
+
+        private boolean tryConsume(long now) {
+            if (now > lastRefill) {
+                tokens = Math.min(linesPerSecond, tokens + (double) (now - lastRefill) * linesPerSecond / SECOND_IN_NANOS);
+                lastRefill = now;
+            }
+            if (tokens < 1) {
+                return false;
+            }
+            tokens--;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,144 @@
+/*******************************************************************************
+ * Copyright 2020-2022 Zebrunner Inc (https://www.zebrunner.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.zebrunner.carina.core.log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/*
+ * Appends bytes to the file through preallocated memory-mapped regions. Written bytes are visible to readers
+ * of the file via page cache, so flush does nothing. File is truncated to the written length on close,
+ * till that it contains zero padding of the last region.
+ * Filled regions are unmapped explicitly (file with mapped regions can't be truncated on Windows), so the storage
+ * is available only if the JVM supports unmapping, see isSupported().
+ */
+class MappedFileOutputStream extends OutputStream {
+
+    // sun.misc.Unsafe.invokeCleaner(ByteBuffer) releases the mapping without waiting for GC
+    private static final Object UNSAFE;
+    private static final Method INVOKE_CLEANER;
+
+    static {
+        Object unsafe = null;
+        Method invokeCleaner = null;
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            unsafe = field.get(null);
+            invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+        } catch (Exception e) {
+            // unmapping is not supported, buffered storage is used instead
+        }
+        UNSAFE = unsafe;
+        INVOKE_CLEANER = invokeCleaner;
+    }
+
+    private final FileChannel channel;
+    private final long regionSize;
+    private MappedByteBuffer region;
+    private long position;
+    private boolean closed = false;
+
+    MappedFileOutputStream(File file, long regionSize) throws IOException {
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        this.regionSize = regionSize;
+        // append to the existing content
+        this.position = channel.size();
+        map();
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        ensureOpen();
+        if (!region.hasRemaining()) {
+            map();
+        }
+        region.put((byte) b);
+        position++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        ensureOpen();
+        while (len > 0) {
+            if (!region.hasRemaining()) {
+                map();
+            }
+            int chunk = Math.min(region.remaining(), len);
+            region.put(b, off, chunk);
+            off += chunk;
+            len -= chunk;
+            position += chunk;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            // mapping should be released before the file is cut to the real length
+            unmap();
+            channel.truncate(position);
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * @return true if mapped regions could be released explicitly
+     */
+    static boolean isSupported() {
+        return INVOKE_CLEANER != null;
+    }
+
+    private void map() throws IOException {
+        unmap();
+        // mapping beyond the end of file extends it
+        region = channel.map(FileChannel.MapMode.READ_WRITE, position, regionSize);
+    }
+
+    private void unmap() throws IOException {
+        MappedByteBuffer mapped = region;
+        // region is not accessible anymore, access to the unmapped memory crashes the JVM
+        region = null;
+        if (mapped == null || !isSupported()) {
+            return;
+        }
+        try {
+            INVOKE_CLEANER.invoke(UNSAFE, mapped);
+        } catch (Exception e) {
+            throw new IOException("Unable to unmap region of the test log", e);
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Stream is closed");
+        }
+    }
+}
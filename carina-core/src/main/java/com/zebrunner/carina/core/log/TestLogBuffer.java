@@ -0,0 +1,178 @@
+/*******************************************************************************
+ * Copyright 2020-2022 Zebrunner Inc (https://www.zebrunner.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.zebrunner.carina.core.log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/*
+ * In-memory log of the single test used by log-on-failure mode. Keeps the last bufferSize bytes of the test log
+ * in the ring buffer till the test result is known: failed test log is persisted, passed test log is replaced
+ * by the short summary. After that (and for retried tests) lines are written directly to the test log.
+ * The writer is expected to be lazy, so test.log is not created for the discarded logs.
+ */
+class TestLogBuffer {
+
+    // released buffers are reused by the next tests, so direct memory is not allocated per test
+    static final int MAX_POOLED_BUFFERS = 8;
+    private static final Queue<ByteBuffer> heapPool = new ArrayBlockingQueue<>(MAX_POOLED_BUFFERS);
+    private static final Queue<ByteBuffer> directPool = new ArrayBlockingQueue<>(MAX_POOLED_BUFFERS);
+
+    private final int capacity;
+    private final boolean offHeap;
+    private TestLogWriter writer;
+    private ByteBuffer buffer;
+    // total number of buffered bytes including overwritten ones
+    private long bufferedBytes = 0;
+    private boolean settled = false;
+
+    TestLogBuffer(TestLogWriter writer, int capacity, boolean offHeap) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Test log buffer size should be positive: " + capacity);
+        }
+        this.writer = writer;
+        this.capacity = capacity;
+        this.offHeap = offHeap;
+    }
+
+    File getFile() {
+        return writer.getFile();
+    }
+
+    /**
+     * Continue buffering with another writer of the same test log.
+     *
+     * @param writer {@link TestLogWriter}
+     */
+    synchronized void setWriter(TestLogWriter writer) {
+        this.writer = writer;
+    }
+
+    synchronized void write(byte[] logLine, int length) throws IOException {
+        if (settled) {
+            writer.write(logLine, length);
+            writer.flush();
+            return;
+        }
+        if (buffer == null) {
+            buffer = acquire();
+        }
+        bufferedBytes += length;
+        int offset = 0;
+        if (length > capacity) {
+            // only the tail of the huge line fits
+            offset = length - capacity;
+        }
+        while (offset < length) {
+            if (!buffer.hasRemaining()) {
+                buffer.rewind();
+            }
+            int chunk = Math.min(buffer.remaining(), length - offset);
+            buffer.put(logLine, offset, chunk);
+            offset += chunk;
+        }
+    }
+
+    /**
+     * Write buffered lines to the test log. Next lines are written directly.
+     */
+    synchronized void persist() throws IOException {
+        if (settled) {
+            return;
+        }
+        settled = true;
+        if (buffer == null) {
+            return;
+        }
+        if (bufferedBytes > capacity) {
+            writeMarker("First " + (bufferedBytes - capacity) + " bytes of the test log are dropped as it exceeds "
+                    + capacity + " bytes buffer");
+            // the oldest bytes start right after the last written position
+            writeRange(buffer.position(), capacity);
+        }
+        writeRange(0, buffer.position());
+        writer.flush();
+        release();
+    }
+
+    /**
+     * Drop buffered lines. Next lines are written directly. The summary is written instead of the buffered lines
+     * only if the test log already exists, e.g. for the retried test, otherwise the file is not created.
+     */
+    synchronized void discard() throws IOException {
+        if (settled) {
+            return;
+        }
+        settled = true;
+        if (writer.getFile().exists()) {
+            writeMarker("Test log is not persisted as test passed, " + bufferedBytes + " bytes are discarded");
+            writer.flush();
+        }
+        if (buffer != null) {
+            release();
+        }
+    }
+
+    /**
+     * Drop pooled buffers, e.g. when all tests are finished.
+     */
+    static void clearPool() {
+        heapPool.clear();
+        directPool.clear();
+    }
+
+    static int getPooledBuffers() {
+        return heapPool.size() + directPool.size();
+    }
+
+    private void writeRange(int from, int to) throws IOException {
+        byte[] chunk = new byte[Math.min(8192, Math.max(to - from, 0))];
+        ByteBuffer view = buffer.duplicate();
+        view.limit(to).position(from);
+        while (view.hasRemaining()) {
+            int length = Math.min(chunk.length, view.remaining());
+            view.get(chunk, 0, length);
+            writer.write(chunk, length);
+        }
+    }
+
+    private void writeMarker(String message) throws IOException {
+        byte[] marker = ("[" + message + "]\n").getBytes(StandardCharsets.UTF_8);
+        writer.write(marker, marker.length);
+    }
+
+    private ByteBuffer acquire() {
+        ByteBuffer pooled;
+        Queue<ByteBuffer> pool = offHeap ? directPool : heapPool;
+        while ((pooled = pool.poll()) != null) {
+            if (pooled.capacity() == capacity) {
+                pooled.clear();
+                return pooled;
+            }
+        }
+        return offHeap ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+
+    private void release() {
+        // buffers above the pool limit are left to the garbage collector
+        (offHeap ? directPool : heapPool).offer(buffer);
+        buffer = null;
+    }
+}
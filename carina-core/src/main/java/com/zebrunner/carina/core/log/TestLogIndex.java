@@ -0,0 +1,114 @@
+/*******************************************************************************
+ * Copyright 2020-2022 Zebrunner Inc (https://www.zebrunner.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.zebrunner.carina.core.log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/*
+ * Sidecar index of the structured test log, so tools could seek to the lines of interest instead of scanning whole log:
+ * {
+ *   "segments": [0, 10485760],                          offsets where rolled segments test.log.1, test.log.2... start
+ *   "minutes": {"2022-01-02T15:04:00Z": 0, ...},        offset of the first line of every minute
+ *   "levels": {"ERROR": [1234, ...], "WARN": [...]},     offsets of warning and error lines
+ *   "counts": {"INFO": 100, "ERROR": 2}                  number of lines per level
+ * }
+ * Offsets are positions in the whole log stream, i.e. test.log.1 + test.log.2 + ... + test.log.
+ */
+class TestLogIndex {
+
+    static final String INDEX_SUFFIX = ".idx";
+
+    private static final Set<String> INDEXED_LEVELS = Set.of("WARN", "ERROR", "FATAL");
+    // keep index small for runaway tests
+    private static final int MAX_OFFSETS_PER_LEVEL = 10000;
+    private static final long MINUTE_IN_MILLIS = 60 * 1000;
+
+    private final List<Long> segments = new ArrayList<>();
+    private final Map<Long, Long> minutes = new LinkedHashMap<>();
+    private final Map<String, List<Long>> levels = new LinkedHashMap<>();
+    private final Map<String, long[]> counts = new LinkedHashMap<>();
+    private long lastMinute = Long.MIN_VALUE;
+
+    TestLogIndex() {
+        segments.add(0L);
+    }
+
+    void addSegment(long offset) {
+        segments.add(offset);
+    }
+
+    void add(long offset, String level, long timeMillis) {
+        long minute = timeMillis / MINUTE_IN_MILLIS;
+        if (minute != lastMinute) {
+            minutes.putIfAbsent(minute, offset);
+            lastMinute = minute;
+        }
+        counts.computeIfAbsent(level, k -> new long[1])[0]++;
+        if (INDEXED_LEVELS.contains(level)) {
+            List<Long> offsets = levels.computeIfAbsent(level, k -> new ArrayList<>());
+            if (offsets.size() < MAX_OFFSETS_PER_LEVEL) {
+                offsets.add(offset);
+            }
+        }
+    }
+
+    /**
+     * Write index next to the test log.
+     *
+     * @param logFile test log file
+     */
+    void write(File logFile) throws IOException {
+        File indexFile = new File(logFile.getPath() + INDEX_SUFFIX);
+        try (Writer writer = Files.newBufferedWriter(indexFile.toPath(), StandardCharsets.UTF_8)) {
+            writer.write("{\"segments\":");
+            writer.write(segments.toString().replace(" ", ""));
+
+            writer.write(",\"minutes\":{");
+            String separator = "";
+            for (Map.Entry<Long, Long> entry : minutes.entrySet()) {
+                Instant minute = Instant.ofEpochMilli(entry.getKey() * MINUTE_IN_MILLIS).truncatedTo(ChronoUnit.MINUTES);
+                writer.write(separator + "\"" + minute + "\":" + entry.getValue());
+                separator = ",";
+            }
+
+            writer.write("},\"levels\":{");
+            separator = "";
+            for (Map.Entry<String, List<Long>> entry : levels.entrySet()) {
+                writer.write(separator + "\"" + entry.getKey() + "\":" + entry.getValue().toString().replace(" ", ""));
+                separator = ",";
+            }
+
+            writer.write("},\"counts\":{");
+            separator = "";
+            for (Map.Entry<String, long[]> entry : counts.entrySet()) {
+                writer.write(separator + "\"" + entry.getKey() + "\":" + entry.getValue()[0]);
+                separator = ",";
+            }
+            writer.write("}}\n");
+        }
+    }
+}
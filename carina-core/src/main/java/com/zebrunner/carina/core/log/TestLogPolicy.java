@@ -0,0 +1,101 @@
+/*******************************************************************************
+ * Copyright 2020-2022 Zebrunner Inc (https://www.zebrunner.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.zebrunner.carina.core.log;
+
+/*
+ * Size budget of the single test log: max size, rolling segment size, compression and retention of the runaway logs.
+ */
+class TestLogPolicy {
+
+    enum Retention {
+        // keep the first maxSize bytes and drop the rest
+        HEAD,
+        // keep the first and the last maxSize/2 bytes dropping the middle segments
+        HEAD_TAIL
+    }
+
+    private static final long MEGABYTE = 1024 * 1024;
+    // segment size of head-tail retention if it is not specified
+    private static final int DEFAULT_TAIL_SEGMENTS = 4;
+
+    private final long maxBytes;
+    // segment size requested by the appender, 0 if segment size is derived from max size
+    private final long requestedSegmentBytes;
+    private final long segmentBytes;
+    private final boolean compress;
+    private final Retention retention;
+
+    TestLogPolicy(long maxBytes, long segmentBytes, boolean compress, Retention retention) {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("Test log max size should be positive: " + maxBytes);
+        }
+        this.maxBytes = maxBytes;
+        this.requestedSegmentBytes = segmentBytes;
+        this.retention = retention;
+        this.compress = compress;
+        if (segmentBytes <= 0 && retention == Retention.HEAD_TAIL) {
+            // tail could be dropped by segments only
+            segmentBytes = Math.max(maxBytes / 2 / DEFAULT_TAIL_SEGMENTS, 1);
+        }
+        this.segmentBytes = segmentBytes;
+    }
+
+    /**
+     * Create policy from appender attributes.
+     *
+     * @param maxSize max size of the test log in megabytes
+     * @param segmentSize size of the rolling segment in megabytes, 0 to disable rolling
+     * @param compress gzip completed segments
+     * @param retention head or head-tail
+     * @return {@link TestLogPolicy}
+     */
+    static TestLogPolicy of(long maxSize, long segmentSize, boolean compress, String retention) {
+        return new TestLogPolicy(maxSize * MEGABYTE, segmentSize * MEGABYTE, compress,
+                Retention.valueOf(retention.trim().toUpperCase().replace('-', '_')));
+    }
+
+    /**
+     * @param maxBytes max size of the test log in bytes
+     * @return policy with the same segments, compression and retention but another max size
+     */
+    TestLogPolicy withMaxBytes(long maxBytes) {
+        return new TestLogPolicy(maxBytes, requestedSegmentBytes, compress, retention);
+    }
+
+    long getMaxBytes() {
+        return maxBytes;
+    }
+
+    long getSegmentBytes() {
+        return segmentBytes;
+    }
+
+    boolean isRolling() {
+        return segmentBytes > 0;
+    }
+
+    boolean isCompress() {
+        return compress;
+    }
+
+    Retention getRetention() {
+        return retention;
+    }
+
+    long getHeadBytes() {
+        return retention == Retention.HEAD_TAIL ? maxBytes / 2 : maxBytes;
+    }
+}
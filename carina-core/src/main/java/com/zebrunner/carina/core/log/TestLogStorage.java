@@ -0,0 +1,86 @@
+/*******************************************************************************
+ * Copyright 2020-2022 Zebrunner Inc (https://www.zebrunner.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.zebrunner.carina.core.log;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/*
+ * Storage backend of test log files.
+ */
+enum TestLogStorage {
+
+    /**
+     * Buffered file stream, every log line is flushed by the appender.
+     */
+    BUFFERED(false) {
+        @Override
+        OutputStream open(File file) throws IOException {
+            return new BufferedOutputStream(new FileOutputStream(file, true));
+        }
+    },
+
+    /**
+     * Buffered file stream written in batches by the background thread.
+     */
+    ASYNC(true) {
+        @Override
+        OutputStream open(File file) throws IOException {
+            return BUFFERED.open(file);
+        }
+    },
+
+    /**
+     * Preallocated memory-mapped regions, log lines are copied directly to the page cache.
+     * Falls back to the buffered file stream if mapped regions could not be released explicitly.
+     */
+    MMAP(false) {
+        @Override
+        OutputStream open(File file) throws IOException {
+            if (!MappedFileOutputStream.isSupported()) {
+                return BUFFERED.open(file);
+            }
+            return new MappedFileOutputStream(file, MMAP_REGION_SIZE);
+        }
+    };
+
+    private static final long MMAP_REGION_SIZE = 4 * 1024 * 1024;
+
+    private final boolean async;
+
+    TestLogStorage(boolean async) {
+        this.async = async;
+    }
+
+    /**
+     * Open file for appending.
+     *
+     * @param file test log file
+     * @return {@link OutputStream}
+     */
+    abstract OutputStream open(File file) throws IOException;
+
+    boolean isAsync() {
+        return async;
+    }
+
+    static TestLogStorage of(String name) {
+        return valueOf(name.trim().toUpperCase());
+    }
+}
@@ -0,0 +1,355 @@
+/*******************************************************************************
+ * Copyright 2020-2022 Zebrunner Inc (https://www.zebrunner.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.zebrunner.carina.core.log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+/*
+ * Writer of the single test.log file. Keeps the log within the budget of the {@link TestLogPolicy}:
+ * sizes are accounted in encoded bytes, completed segments are rolled to test.log.N(.gz) files,
+ * and the active segment is always written to test.log. Completed segments are compressed by the background thread,
+ * so logging threads do not wait for it.
+ */
+class TestLogWriter {
+
+    private static final String COMPRESSED_SUFFIX = ".gz";
+    private static final int COMPRESSION_BUFFER_SIZE = 64 * 1024;
+
+    // number of open test log streams of all writers
+    private static final AtomicInteger openStreams = new AtomicInteger();
+    // shared by all writers, segments are compressed one by one
+    private static final ExecutorService compressor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "carina-log-compressor");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final File file;
+    private final TestLogPolicy policy;
+    private final TestLogStorage storage;
+    // null when the writer is closed, it is reopened by the next write
+    private volatile OutputStream stream;
+    // the file is opened by the next write, e.g. lazy writer does not create the file till the first write
+    private volatile boolean pending;
+    // cache which counts the open writer, closed writer is registered in it again before reopening the file
+    private volatile TestLogWriterCache cache = null;
+
+    // bytes accepted by the writer including dropped tail segments
+    private long writtenBytes;
+    // bytes of the active test.log segment
+    private long activeBytes;
+    private int segmentCount = 0;
+    private long lastLineOffset = 0;
+
+    // completed segments which could be dropped by the head-tail retention
+    private final Deque<Segment> tailSegments = new ArrayDeque<>();
+    private long tailBytes = 0;
+    private long headBytes = 0;
+
+    // created by the first structured line
+    private TestLogIndex index = null;
+
+    // head retention stops writing after the limit
+    private boolean truncated = false;
+    // head-tail retention marks the gap once
+    private boolean tailDropped = false;
+    // the file could not be renamed, so the log is written to test.log without rolling
+    private boolean rollFailed = false;
+
+    TestLogWriter(File file, TestLogPolicy policy) throws IOException {
+        this(file, policy, TestLogStorage.BUFFERED);
+    }
+
+    TestLogWriter(File file, TestLogPolicy policy, TestLogStorage storage) throws IOException {
+        this(file, policy, storage, false);
+    }
+
+    /**
+     * @param lazy do not create the file till the first write, e.g. when lines are buffered in memory
+     */
+    TestLogWriter(File file, TestLogPolicy policy, TestLogStorage storage, boolean lazy) throws IOException {
+        this.file = file;
+        this.policy = policy;
+        this.storage = storage;
+        // retried test continues the same log
+        this.activeBytes = file.length();
+        this.writtenBytes = activeBytes;
+        if (lazy) {
+            this.pending = true;
+            return;
+        }
+        if (!file.exists()) {
+            file.createNewFile();
+        }
+        this.stream = open();
+    }
+
+    static int getOpenStreams() {
+        return openStreams.get();
+    }
+
+    /**
+     * Wait till segments rolled before the call are compressed, e.g. before the report directory is archived.
+     */
+    static void awaitCompression() {
+        try {
+            compressor.submit(() -> {
+            }).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            e.printStackTrace();
+        }
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    void setCache(TestLogWriterCache cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * @return true if the file is open or will be opened by the next write, false if the writer was closed
+     */
+    boolean isOpen() {
+        return stream != null || pending;
+    }
+
+    /**
+     * Write log line registering it in the sidecar index.
+     *
+     * @param logLine encoded line
+     * @param length number of bytes
+     * @param level log level name
+     * @param timeMillis event time
+     */
+    void write(byte[] logLine, int length, String level, long timeMillis) throws IOException {
+        while (!tryWrite(logLine, length, level, timeMillis)) {
+            // the file was closed by the cache, so the writer is counted by its limit again before reopening
+            cache.touch(this);
+        }
+    }
+
+    void write(byte[] logLine, int length) throws IOException {
+        write(logLine, length, null, 0);
+    }
+
+    /*
+     * The cache lock is never taken under the writer lock as the cache closes evicted writers under its own lock.
+     *
+     * @return false if the closed writer should be registered in the cache before reopening the file
+     */
+    private synchronized boolean tryWrite(byte[] logLine, int length, String level, long timeMillis) throws IOException {
+        if (stream == null && !pending && cache != null) {
+            return false;
+        }
+        if (level != null && index == null) {
+            index = new TestLogIndex();
+        }
+        append(logLine, length);
+        if (level != null && !truncated) {
+            index.add(lastLineOffset, level, timeMillis);
+        }
+        return true;
+    }
+
+    private void append(byte[] logLine, int length) throws IOException {
+        if (truncated) {
+            return;
+        }
+        if (stream == null) {
+            stream = open();
+            pending = false;
+        }
+        if (policy.getRetention() == TestLogPolicy.Retention.HEAD && writtenBytes + length > policy.getMaxBytes()) {
+            writeMarker("Test log is truncated as it exceeds " + policy.getMaxBytes() + " bytes limit");
+            truncated = true;
+            return;
+        }
+        if (policy.isRolling() && !rollFailed && activeBytes > 0 && activeBytes + length > policy.getSegmentBytes()) {
+            roll();
+        }
+        lastLineOffset = writtenBytes;
+        stream.write(logLine, 0, length);
+        activeBytes += length;
+        writtenBytes += length;
+
+        if (policy.getRetention() == TestLogPolicy.Retention.HEAD_TAIL) {
+            dropTail();
+        }
+    }
+
+    /**
+     * Open the file by the next write, so the writer counted by {@link TestLogWriterCache} again is considered open.
+     */
+    void openOnWrite() {
+        pending = true;
+    }
+
+    synchronized void flush() throws IOException {
+        if (stream != null) {
+            stream.flush();
+        }
+    }
+
+    /**
+     * Close the file handle. Writer stays usable and reopens the file in append mode on the next write.
+     */
+    synchronized void close() throws IOException {
+        // closed lazy writer is counted again by the cache when it opens the file
+        pending = false;
+        if (index != null) {
+            index.write(file);
+        }
+        if (stream != null) {
+            OutputStream closing = stream;
+            stream = null;
+            openStreams.decrementAndGet();
+            closing.close();
+        }
+    }
+
+    private void roll() throws IOException {
+        close();
+        File segment;
+        do {
+            // writer could be recreated for the same test log, so do not override its segments
+            segmentCount++;
+            segment = new File(file.getParentFile(), file.getName() + "." + segmentCount);
+        } while (segment.exists() || new File(segment.getPath() + COMPRESSED_SUFFIX).exists());
+        if (!file.renameTo(segment)) {
+            // keep writing to the current file, log will be bigger than segment but nothing is lost
+            stream = open();
+            rollFailed = true;
+            writeMarker("Test log is not rolled anymore as it could not be renamed to " + segment.getName());
+            return;
+        }
+        Future<?> compression = null;
+        if (policy.isCompress()) {
+            File completed = segment;
+            compression = compressor.submit(() -> {
+                try {
+                    compress(completed);
+                } catch (IOException e) {
+                    // uncompressed segment is kept
+                    e.printStackTrace();
+                }
+            });
+        }
+
+        long segmentStart = writtenBytes - activeBytes;
+        if (policy.getRetention() == TestLogPolicy.Retention.HEAD_TAIL && segmentStart >= policy.getHeadBytes()) {
+            tailSegments.addLast(new Segment(segment, activeBytes, compression));
+            tailBytes += activeBytes;
+        } else {
+            headBytes += activeBytes;
+        }
+
+        activeBytes = 0;
+        stream = open();
+        if (index != null) {
+            index.addSegment(writtenBytes);
+        }
+    }
+
+    /**
+     * Remove the oldest tail segments while the log doesn't fit into the budget.
+     */
+    private void dropTail() throws IOException {
+        long tailBudget = policy.getMaxBytes() - headBytes;
+        while (!tailSegments.isEmpty() && tailBytes + activeBytes > tailBudget) {
+            Segment segment = tailSegments.removeFirst();
+            segment.delete();
+            tailBytes -= segment.bytes;
+            if (!tailDropped) {
+                writeMarker("Middle segments of the test log are removed as it exceeds " + policy.getMaxBytes() + " bytes limit");
+                tailDropped = true;
+            }
+        }
+    }
+
+    private void writeMarker(String message) throws IOException {
+        byte[] marker = ("[" + message + "]\n").getBytes(StandardCharsets.UTF_8);
+        stream.write(marker);
+        activeBytes += marker.length;
+        writtenBytes += marker.length;
+    }
+
+    private OutputStream open() throws IOException {
+        OutputStream opened = storage.open(file);
+        openStreams.incrementAndGet();
+        return opened;
+    }
+
+    /**
+     * Gzip completed segment by the stream without loading it to the memory.
+     *
+     * @param segment completed segment
+     */
+    private static void compress(File segment) throws IOException {
+        File compressed = new File(segment.getPath() + COMPRESSED_SUFFIX);
+        try (InputStream in = new FileInputStream(segment);
+                OutputStream out = new GZIPOutputStream(new FileOutputStream(compressed), COMPRESSION_BUFFER_SIZE)) {
+            in.transferTo(out);
+        }
+        Files.delete(segment.toPath());
+    }
+
+    private static class Segment {
+        private final File file;
+        private final long bytes;
+        // null if the segment is not compressed
+        private final Future<?> compression;
+
+        private Segment(File file, long bytes, Future<?> compression) {
+            this.file = file;
+            this.bytes = bytes;
+            this.compression = compression;
+        }
+
+        private void delete() throws IOException {
+            if (compression != null) {
+                // the oldest tail segment is compressed long ago as a rule
+                try {
+                    compression.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (ExecutionException e) {
+                    // the segment is deleted anyway
+                }
+            }
+            Files.deleteIfExists(file.toPath());
+            Files.deleteIfExists(new File(file.getPath() + COMPRESSED_SUFFIX).toPath());
+        }
+    }
+}
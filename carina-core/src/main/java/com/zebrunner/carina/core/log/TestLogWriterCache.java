@@ -0,0 +1,135 @@
+/*******************************************************************************
+ * Copyright 2020-2022 Zebrunner Inc (https://www.zebrunner.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.zebrunner.carina.core.log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * LRU registry of test log writers. Keeps at most maxOpenFiles writers open: the least recently used writer
+ * is closed when the limit is exceeded and reopens its file by the next write registering itself again.
+ */
+class TestLogWriterCache {
+
+    private final Map<String, TestLogWriter> writers = new LinkedHashMap<>(16, 0.75f, true);
+    private final int maxOpenFiles;
+    private final AtomicLong evictions = new AtomicLong();
+
+    TestLogWriterCache(int maxOpenFiles) {
+        if (maxOpenFiles <= 0) {
+            throw new IllegalArgumentException("Max open test log files should be positive: " + maxOpenFiles);
+        }
+        this.maxOpenFiles = maxOpenFiles;
+    }
+
+    TestLogWriter get(File file, TestLogPolicy policy) throws IOException {
+        return get(file, policy, TestLogStorage.BUFFERED);
+    }
+
+    /**
+     * Get writer of the test log creating it if needed.
+     *
+     * @param file test log file
+     * @param policy {@link TestLogPolicy} of the new writer
+     * @param storage {@link TestLogStorage} of the new writer
+     * @return {@link TestLogWriter}
+     */
+    synchronized TestLogWriter get(File file, TestLogPolicy policy, TestLogStorage storage) throws IOException {
+        return get(file, policy, storage, false);
+    }
+
+    /**
+     * Get writer of the test log creating it if needed.
+     *
+     * @param file test log file
+     * @param policy {@link TestLogPolicy} of the new writer
+     * @param storage {@link TestLogStorage} of the new writer
+     * @param lazy new writer does not create the file till the first write
+     * @return {@link TestLogWriter}
+     */
+    synchronized TestLogWriter get(File file, TestLogPolicy policy, TestLogStorage storage, boolean lazy) throws IOException {
+        TestLogWriter writer = writers.get(file.getPath());
+        if (writer == null) {
+            writer = new TestLogWriter(file, policy, storage, lazy);
+            writer.setCache(this);
+            writers.put(file.getPath(), writer);
+            evict();
+        }
+        return writer;
+    }
+
+    /**
+     * Register again writer closed by eviction or by the test finish, so it is counted by the limit when it reopens the file.
+     * Called by the writer itself before reopening.
+     *
+     * @param writer {@link TestLogWriter}
+     */
+    synchronized void touch(TestLogWriter writer) throws IOException {
+        writers.put(writer.getFile().getPath(), writer);
+        writer.openOnWrite();
+        evict();
+    }
+
+    /**
+     * Close and forget writer of the finished test.
+     *
+     * @param file test log file
+     */
+    void close(File file) throws IOException {
+        TestLogWriter writer;
+        synchronized (this) {
+            writer = writers.remove(file.getPath());
+        }
+        if (writer != null) {
+            writer.close();
+        }
+    }
+
+    void closeAll() throws IOException {
+        List<TestLogWriter> closing;
+        synchronized (this) {
+            closing = new ArrayList<>(writers.values());
+            writers.clear();
+        }
+        for (TestLogWriter writer : closing) {
+            writer.close();
+        }
+    }
+
+    synchronized int size() {
+        return writers.size();
+    }
+
+    long getEvictions() {
+        return evictions.get();
+    }
+
+    private void evict() throws IOException {
+        Iterator<TestLogWriter> iterator = writers.values().iterator();
+        while (writers.size() > maxOpenFiles && iterator.hasNext()) {
+            TestLogWriter eldest = iterator.next();
+            iterator.remove();
+            eldest.close();
+            evictions.incrementAndGet();
+        }
+    }
+}
@@ -15,6 +15,8 @@
  *******************************************************************************/
 package com.zebrunner.carina.core.log;
 
+import com.zebrunner.carina.core.context.CarinaTestContext;
+import com.zebrunner.carina.utils.R;
 import com.zebrunner.carina.utils.report.ReportContext;
 import org.apache.logging.log4j.core.Appender;
 import org.apache.logging.log4j.core.Core;
@@ -28,22 +30,46 @@ import org.apache.logging.log4j.core.config.plugins.PluginAttribute;
 import org.apache.logging.log4j.core.config.plugins.PluginElement;
 import org.apache.logging.log4j.core.config.plugins.PluginFactory;
 import org.apache.logging.log4j.core.layout.PatternLayout;
-import org.apache.logging.log4j.message.Message;
-import org.slf4j.MDC;
 
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.io.Serializable;
-import java.time.LocalDateTime;
-import java.time.ZoneOffset;
-import java.time.format.DateTimeFormatter;
+import java.io.UncheckedIOException;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
 /*
  * This appender log groups test outputs by test method/test thread so they don't mess up each other even they runs in parallel.
+ *
+ * Supported attributes:
+ * storage - test log storage backend (buffered by default):
+ *           "buffered" - buffered file stream flushed on every event,
+ *           "async" - buffered file stream written in batches by the background thread,
+ *           "mmap" - log lines are copied to preallocated memory-mapped regions which are truncated on test finish
+ * async - shortcut for storage="async" (false by default)
+ * flushInterval - max delay in milliseconds between log event and its flush to the file in async mode (200 by default)
+ * queueSize - max number of log lines waiting for the background thread in async mode, logging threads wait for the free
+ *             slot when it is full (8192 by default)
+ * format - "text" for "[time] [threadId] [level] message" lines or "json" for JSON lines with timestamp, thread, level,
+ *          logger, test and message fields, json logs get test.log.idx index of line offsets per level and minute ("text" by default)
+ * useLayout - format lines by the configured layout instead of the default "[time] [threadId] [level] message" format (false by default)
+ * maxSize - max size of the single test log in megabytes, 0 to take it from max_log_file_size property (0 by default)
+ * segmentSize - roll test log to test.log.N segments of this size in megabytes, 0 to disable rolling (0 by default)
+ * compress - gzip completed segments in background (false by default)
+ * retention - what to keep when the test log exceeds maxSize: "head" keeps the first maxSize megabytes,
+ *             "head-tail" keeps the first and the last maxSize/2 megabytes ("head" by default)
+ * maxOpenFiles - max number of simultaneously open test logs, least recently used are closed above it (256 by default)
+ * logOnFailure - keep test log in memory and persist it only for failed and skipped tests, test.log is not created
+ *                for passed tests (so they get no log link), existing log of the retried test gets the short summary line
+ *                (false by default)
+ * bufferSize - size of the log-on-failure buffer per test in megabytes, only the last bufferSize megabytes are kept (10 by default)
+ * offHeap - allocate log-on-failure buffers in direct memory (false by default)
+ * rateLimits - max lines per second of every level for the single test, e.g. "DEBUG=100,INFO=1000", lines above the limit
+ *              are dropped and counted in the summary line (no limits by default)
+ * collapseDuplicates - replace consecutive identical messages by "Last message repeated N times" line (false by default)
+ *
+ * Worker threads with propagated CarinaTestContext log into the writer (or log-on-failure buffer) of the owning test
+ * while it is running, lines logged after the test finish are appended to its test.log directly.
  */
 @Plugin(
         name = "ThreadLogAppender",
@@ -52,26 +78,100 @@ import java.util.concurrent.ConcurrentHashMap;
 )
 public class ThreadLogAppender extends AbstractAppender {
 
-    private static final long MAX_LOG_FILE_SIZE_IN_MEGABYTES = 1024 * 1024 * 1024;
-    private static final DateTimeFormatter LOG_TIME_FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd hh:mm:ss");
+    private static final long DEFAULT_FLUSH_INTERVAL = 200;
+    private static final int DEFAULT_QUEUE_SIZE = 8192;
+    private static final String MAX_LOG_FILE_SIZE = "max_log_file_size";
+    // used when neither maxSize attribute nor max_log_file_size property is valid
+    private static final long DEFAULT_MAX_SIZE = 150;
+    private static final int DEFAULT_MAX_OPEN_FILES = 256;
+    private static final int DEFAULT_BUFFER_SIZE = 10;
+    private static final int MEGABYTE = 1024 * 1024;
 
     private static final ThreadLocal<File> currentTestDirectory = new ThreadLocal<>();
-    // single buffer for each thread test.log file
-    private static final ThreadLocal<BufferedWriter> testLogBuffer = new ThreadLocal<>();
+    // single writer for each thread test.log file
+    private static final ThreadLocal<TestLogWriter> testLogWriter = new ThreadLocal<>();
+    private static final ThreadLocal<LogLineFormatter> logLineFormatter = ThreadLocal
+            .withInitial(() -> new LogLineFormatter(Thread.currentThread().getId()));
+    // in-memory test log of log-on-failure mode
+    private static final ThreadLocal<TestLogBuffer> testLogBuffer = new ThreadLocal<>();
+    // log storm protection of the current thread test
+    private static final ThreadLocal<LogRateLimiter> rateLimiter = new ThreadLocal<>();
+
+    // test logs of the running tests shared with the worker threads of the tests: test log path -> writer/buffer
+    private static final Map<String, TestLogWriter> ownerTestLogs = new ConcurrentHashMap<>();
+    private static final Map<String, TestLogBuffer> ownerTestLogBuffers = new ConcurrentHashMap<>();
+
+    private static volatile TestLogWriterCache testLogWriters = null;
 
-    private static final Map<String, Long> fileNameToWrittenBytes = new ConcurrentHashMap<>();
+    // shared by all async appenders, so listeners are able to flush logs without access to appender instance
+    private static volatile AsyncLogWriter asyncLogWriter = null;
+
+    private final TestLogStorage storage;
+    private final boolean json;
+    private final boolean useLayout;
+    private volatile TestLogPolicy policy;
+    // max size of the policy is taken from max_log_file_size on the first test log if maxSize attribute is not set
+    private volatile boolean policyResolved;
+    private final boolean logOnFailure;
+    private final int bufferSize;
+    private final boolean offHeap;
+    private final Map<String, Integer> rateLimits;
+    private final boolean collapseDuplicates;
 
     private ThreadLogAppender(String name,
                               Filter filter,
                               Layout<? extends Serializable> layout,
-                              boolean ignoreExceptions) {
+                              boolean ignoreExceptions,
+                              TestLogStorage storage,
+                              long flushInterval,
+                              int queueSize,
+                              boolean json,
+                              boolean useLayout,
+                              TestLogPolicy policy,
+                              boolean maxSizeConfigured,
+                              int maxOpenFiles,
+                              boolean logOnFailure,
+                              int bufferSize,
+                              boolean offHeap,
+                              Map<String, Integer> rateLimits,
+                              boolean collapseDuplicates) {
         super(name, filter, layout, ignoreExceptions, Property.EMPTY_ARRAY);
+        this.storage = storage;
+        this.json = json;
+        this.useLayout = useLayout;
+        this.policy = policy;
+        this.policyResolved = maxSizeConfigured;
+        this.logOnFailure = logOnFailure;
+        this.bufferSize = bufferSize;
+        this.offHeap = offHeap;
+        this.rateLimits = rateLimits;
+        this.collapseDuplicates = collapseDuplicates;
+        initTestLogWriters(maxOpenFiles);
+        if (storage.isAsync()) {
+            initAsyncLogWriter(flushInterval, queueSize);
+        }
     }
 
     @PluginFactory
     public static ThreadLogAppender create(@PluginAttribute("name") String name,
                                            @PluginElement("Layout") Layout<? extends Serializable> layout,
-                                           @PluginElement("Filter") Filter filter) {
+                                           @PluginElement("Filter") Filter filter,
+                                           @PluginAttribute(value = "storage", defaultString = "buffered") String storageName,
+                                           @PluginAttribute(value = "async", defaultBoolean = false) boolean async,
+                                           @PluginAttribute(value = "flushInterval", defaultLong = DEFAULT_FLUSH_INTERVAL) long flushInterval,
+                                           @PluginAttribute(value = "queueSize", defaultInt = DEFAULT_QUEUE_SIZE) int queueSize,
+                                           @PluginAttribute(value = "format", defaultString = "text") String format,
+                                           @PluginAttribute(value = "useLayout", defaultBoolean = false) boolean useLayout,
+                                           @PluginAttribute(value = "maxSize", defaultLong = 0) long maxSize,
+                                           @PluginAttribute(value = "segmentSize", defaultLong = 0) long segmentSize,
+                                           @PluginAttribute(value = "compress", defaultBoolean = false) boolean compress,
+                                           @PluginAttribute(value = "retention", defaultString = "head") String retention,
+                                           @PluginAttribute(value = "maxOpenFiles", defaultInt = DEFAULT_MAX_OPEN_FILES) int maxOpenFiles,
+                                           @PluginAttribute(value = "logOnFailure", defaultBoolean = false) boolean logOnFailure,
+                                           @PluginAttribute(value = "bufferSize", defaultInt = DEFAULT_BUFFER_SIZE) int bufferSize,
+                                           @PluginAttribute(value = "offHeap", defaultBoolean = false) boolean offHeap,
+                                           @PluginAttribute(value = "rateLimits", defaultString = "") String rateLimits,
+                                           @PluginAttribute(value = "collapseDuplicates", defaultBoolean = false) boolean collapseDuplicates) {
 
         if (name == null) {
             LOGGER.error("No name provided for ThreadLogAppender");
@@ -82,7 +182,218 @@ public class ThreadLogAppender extends AbstractAppender {
             layout = PatternLayout.createDefaultLayout();
         }
 
-        return new ThreadLogAppender(name, filter, layout, true);
+        TestLogStorage storage;
+        try {
+            storage = async ? TestLogStorage.ASYNC : TestLogStorage.of(storageName);
+        } catch (IllegalArgumentException e) {
+            LOGGER.error("Unknown storage of ThreadLogAppender: " + storageName);
+            return null;
+        }
+
+        if (!"text".equalsIgnoreCase(format) && !"json".equalsIgnoreCase(format)) {
+            LOGGER.error("Unknown format of ThreadLogAppender: " + format);
+            return null;
+        }
+
+        TestLogPolicy policy;
+        try {
+            policy = TestLogPolicy.of(maxSize != 0 ? maxSize : DEFAULT_MAX_SIZE, segmentSize, compress, retention);
+        } catch (IllegalArgumentException e) {
+            LOGGER.error("Invalid test log size configuration of ThreadLogAppender: " + e.getMessage());
+            return null;
+        }
+
+        if (queueSize <= 0) {
+            LOGGER.error("queueSize of ThreadLogAppender should be positive: " + queueSize);
+            return null;
+        }
+
+        if (maxOpenFiles <= 0) {
+            LOGGER.error("maxOpenFiles of ThreadLogAppender should be positive: " + maxOpenFiles);
+            return null;
+        }
+
+        if (bufferSize <= 0 || bufferSize > Integer.MAX_VALUE / MEGABYTE) {
+            LOGGER.error("bufferSize of ThreadLogAppender should be between 1 and " + Integer.MAX_VALUE / MEGABYTE + ": " + bufferSize);
+            return null;
+        }
+
+        Map<String, Integer> limits;
+        try {
+            limits = LogRateLimiter.parseLimits(rateLimits);
+        } catch (IllegalArgumentException e) {
+            LOGGER.error("Invalid rateLimits of ThreadLogAppender: " + e.getMessage());
+            return null;
+        }
+
+        return new ThreadLogAppender(name, filter, layout, true, storage, flushInterval, queueSize, "json".equalsIgnoreCase(format),
+                useLayout, policy, maxSize != 0, maxOpenFiles, logOnFailure, bufferSize * MEGABYTE, offHeap, limits, collapseDuplicates);
+    }
+
+    /*
+     * Configuration properties are not read while log4j is being configured, so max_log_file_size is resolved
+     * on the first test log.
+     */
+    private TestLogPolicy getPolicy() {
+        if (!policyResolved) {
+            synchronized (this) {
+                if (!policyResolved) {
+                    long maxSize = DEFAULT_MAX_SIZE;
+                    try {
+                        maxSize = R.CONFIG.getInt(MAX_LOG_FILE_SIZE);
+                    } catch (RuntimeException e) {
+                        LOGGER.warn("Unable to read " + MAX_LOG_FILE_SIZE + ": " + e.getMessage());
+                    }
+                    if (maxSize > 0) {
+                        policy = policy.withMaxBytes(maxSize * MEGABYTE);
+                    } else {
+                        LOGGER.warn(MAX_LOG_FILE_SIZE + " should be positive, " + DEFAULT_MAX_SIZE + " MB is used: " + maxSize);
+                    }
+                    policyResolved = true;
+                }
+            }
+        }
+        return policy;
+    }
+
+    private static synchronized void initTestLogWriters(int maxOpenFiles) {
+        if (testLogWriters == null) {
+            testLogWriters = new TestLogWriterCache(maxOpenFiles);
+        }
+    }
+
+    private static synchronized void initAsyncLogWriter(long flushInterval, int queueSize) {
+        if (asyncLogWriter == null) {
+            asyncLogWriter = new AsyncLogWriter(flushInterval, queueSize);
+        }
+    }
+
+    /**
+     * Wait till pending log events of the current thread test log (including lines of its worker threads) are written
+     * in async mode. Should be called before test report generation to not lose any lines.
+     */
+    public static void flush() {
+        AsyncLogWriter writer = asyncLogWriter;
+        TestLogWriter logFileWriter = testLogWriter.get();
+        if (writer != null && logFileWriter != null) {
+            writer.flush(logFileWriter);
+        }
+    }
+
+    /**
+     * Write all pending log events of async mode keeping the background writer running, e.g. when the suite is finished.
+     */
+    public static void flushAsyncLog() {
+        AsyncLogWriter writer = asyncLogWriter;
+        if (writer != null) {
+            writer.drain();
+        }
+    }
+
+    /**
+     * Write all pending log events of async mode and stop the background writer. Log events after that are written
+     * by the logging threads directly. Should be called on the JVM shutdown only, as the appender is stopped
+     * after every test.
+     */
+    public static void stopAsyncLog() {
+        AsyncLogWriter writer = asyncLogWriter;
+        if (writer != null) {
+            writer.stop();
+        }
+    }
+
+    /**
+     * Flush and close test log of the current thread. Should be called when test is finished,
+     * so long suites do not keep file handle per each executed test.
+     */
+    public static void closeTestLog() {
+        try {
+            LogRateLimiter limiter = rateLimiter.get();
+            if (limiter != null) {
+                limiter.flushSummary();
+            }
+            TestLogWriter writer = testLogWriter.get();
+            if (writer != null) {
+                // wait for the lines of the worker threads being written and stop sharing the test log with them
+                releaseOwnerTestLog(writer);
+            }
+            flush();
+            if (writer != null && testLogWriters != null) {
+                testLogWriters.close(writer.getFile());
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            testLogWriter.remove();
+            currentTestDirectory.remove();
+            rateLimiter.remove();
+        }
+    }
+
+    /**
+     * Write in-memory log of the current thread test to the disk in log-on-failure mode.
+     * Should be called when test failed or skipped.
+     */
+    public static void persistTestLog() {
+        TestLogBuffer buffer = testLogBuffer.get();
+        if (buffer != null) {
+            try {
+                buffer.persist();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Close all open test logs and wait for the compression of the rolled segments, e.g. when the suite is finished.
+     * Closed logs are reopened by the next write.
+     */
+    public static void closeTestLogs() {
+        if (testLogWriters != null) {
+            try {
+                testLogWriters.closeAll();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+        TestLogWriter.awaitCompression();
+    }
+
+    /**
+     * Release pooled log-on-failure buffers. Should be called when all tests are finished.
+     */
+    public static void releaseTestLogBuffers() {
+        TestLogBuffer.clearPool();
+    }
+
+    /**
+     * Drop in-memory log of the current thread test in log-on-failure mode. test.log is not created for it.
+     * Should be called when test passed.
+     */
+    public static void discardTestLog() {
+        TestLogBuffer buffer = testLogBuffer.get();
+        if (buffer != null) {
+            try {
+                buffer.discard();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * @return number of currently open test log files
+     */
+    public static int getOpenLogFiles() {
+        return TestLogWriter.getOpenStreams();
+    }
+
+    /**
+     * @return number of test log files closed as least recently used to stay within maxOpenFiles limit
+     */
+    public static long getEvictedLogFiles() {
+        return testLogWriters != null ? testLogWriters.getEvictions() : 0;
     }
 
     @Override
@@ -96,70 +407,172 @@ public class ThreadLogAppender extends AbstractAppender {
          */
 
         try {
-            BufferedWriter logFileWriter = testLogBuffer.get();
+            CarinaTestContext context = CarinaTestContext.getAttached();
+            if (context != null) {
+                appendToOwnerTestLog(event, new File(context.getTestDir(), "test.log"));
+                return;
+            }
+
+            TestLogWriter logFileWriter = testLogWriter.get();
 
             // check does writer log to the correct test directory, if not - reinit it
-            if (currentTestDirectory.get() != ReportContext.getTestDir()) {
+            File testDir = ReportContext.getTestDir();
+            if (currentTestDirectory.get() != testDir) {
                 logFileWriter = null;
             }
 
-            String logFilePath = ReportContext.getTestDir() + "/test.log";
             if (logFileWriter == null) {
+                LogRateLimiter previousLimiter = rateLimiter.get();
+                if (previousLimiter != null && testLogWriter.get() != null) {
+                    // summary of the previous test is written to its own log
+                    previousLimiter.flushSummary();
+                }
+                if (testLogWriter.get() != null) {
+                    releaseOwnerTestLog(testLogWriter.get());
+                }
                 // 1st request to log something for this thread/test
-                File testLogFile = new File(logFilePath);
-                currentTestDirectory.set(ReportContext.getTestDir());
-
-                if (!testLogFile.exists()) {
-                    testLogFile.createNewFile();
+                String logFilePath = testDir + "/test.log";
+                currentTestDirectory.set(testDir);
+                // buffered test log is created on persist, so discarded logs do not leave empty files
+                logFileWriter = testLogWriters.get(new File(logFilePath), getPolicy(), storage, logOnFailure);
+                testLogWriter.set(logFileWriter);
+                if (logOnFailure) {
+                    initTestLogBuffer(logFileWriter);
+                    ownerTestLogBuffers.put(logFileWriter.getFile().getPath(), testLogBuffer.get());
                 }
-
-                logFileWriter = new BufferedWriter(new FileWriter(testLogFile, true));
-                testLogBuffer.set(logFileWriter);
-
-                fileNameToWrittenBytes.putIfAbsent(logFilePath, 0L);
+                ownerTestLogs.put(logFileWriter.getFile().getPath(), logFileWriter);
+                initRateLimiter();
             }
 
-            String logLine = this.toLogLine(event);
-            long newWrittenBytes = fileNameToWrittenBytes.get(logFilePath) + logLine.length();
-            if (newWrittenBytes > MAX_LOG_FILE_SIZE_IN_MEGABYTES) {
-                throw new IOException("test Log file size exceeded core limit: " + newWrittenBytes + " > " + MAX_LOG_FILE_SIZE_IN_MEGABYTES);
+            LogRateLimiter limiter = rateLimiter.get();
+            if (limiter == null || limiter.tryAcquire(event)) {
+                writeEvent(event);
             }
-
-            logFileWriter.write(logLine);
-            logFileWriter.flush();
-
-            fileNameToWrittenBytes.computeIfPresent(logFilePath, ($, bytesWritten) -> bytesWritten + logLine.length());
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
 
-    private String toLogLine(LogEvent event) {
-        String logTime = LocalDateTime.ofEpochSecond(event.getInstant().getEpochSecond(),
-                                                     event.getInstant().getNanoOfSecond(),
-                                                     ZoneOffset.UTC)
-                                      .format(LOG_TIME_FORMATTER);
+    /*
+     * Worker threads with propagated context write into the writer (or the log-on-failure buffer) of the owning test,
+     * so their lines are persisted or discarded together with the test log and do not keep own file handles.
+     */
+    private void appendToOwnerTestLog(LogEvent event, File file) throws IOException {
+        TestLogWriter ownerWriter;
+        try {
+            ownerWriter = ownerTestLogs.computeIfPresent(file.getPath(), (path, writer) -> {
+                try {
+                    writeEvent(event, writer, logOnFailure ? ownerTestLogBuffers.get(path) : null, storage.isAsync(), isIndexed());
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                return writer;
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        if (ownerWriter == null) {
+            // owning test is finished (or has not logged yet), so the line is appended without keeping the file open
+            TestLogWriter writer = new TestLogWriter(file, getPolicy());
+            try {
+                // index of the finished test log is not rewritten by the single line
+                writeEvent(event, writer, null, false, false);
+            } finally {
+                writer.close();
+            }
+        }
+    }
+
+    /*
+     * Only entries of the current thread test are removed, the same test log could be registered again by another thread,
+     * e.g. by the retried test.
+     */
+    private static void releaseOwnerTestLog(TestLogWriter writer) {
+        ownerTestLogs.remove(writer.getFile().getPath(), writer);
+        TestLogBuffer buffer = testLogBuffer.get();
+        if (buffer != null) {
+            ownerTestLogBuffers.remove(writer.getFile().getPath(), buffer);
+        }
+    }
+
+    private void writeEvent(LogEvent event) throws IOException {
+        writeEvent(event, testLogWriter.get(), logOnFailure ? testLogBuffer.get() : null, storage.isAsync(), isIndexed());
+    }
+
+    /*
+     * Structured lines are registered in the index, buffered ones are persisted without it
+     */
+    private boolean isIndexed() {
+        return json && !useLayout;
+    }
+
+    private void writeEvent(LogEvent event, TestLogWriter logFileWriter, TestLogBuffer buffer, boolean async, boolean indexed)
+            throws IOException {
+        LogLineFormatter formatter = logLineFormatter.get();
+        byte[] logLine;
+        int length;
+        if (useLayout) {
+            formatter.putThreadId();
+            logLine = getLayout().toByteArray(event);
+            length = logLine.length;
+        } else {
+            length = json ? formatter.formatJson(event) : formatter.format(event);
+            logLine = formatter.getBytes();
+        }
 
-        long threadId = Thread.currentThread().getId();
-        MDC.put("threadId", "-" + threadId);
-        String logLevel = event.getLevel().toString();
+        if (buffer != null) {
+            buffer.write(logLine, length);
+        } else if (async && indexed) {
+            asyncLogWriter.submit(logFileWriter, logLine, length, event.getLevel().name(), event.getTimeMillis());
+        } else if (async) {
+            asyncLogWriter.submit(logFileWriter, logLine, length);
+        } else {
+            if (indexed) {
+                logFileWriter.write(logLine, length, event.getLevel().name(), event.getTimeMillis());
+            } else {
+                logFileWriter.write(logLine, length);
+            }
+            logFileWriter.flush();
+        }
+    }
 
-        Message eventMessage = event.getMessage();
-        String logMessage = eventMessage != null
-                ? eventMessage.getFormattedMessage()
-                : "";
+    private void initRateLimiter() {
+        if (rateLimits.isEmpty() && !collapseDuplicates) {
+            rateLimiter.remove();
+            return;
+        }
+        rateLimiter.set(new LogRateLimiter(rateLimits, collapseDuplicates, summary -> {
+            try {
+                writeEvent(summary);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }));
+    }
 
-        return "[" + logTime + "] " + "[" + threadId + "] " + "[" + logLevel + "] " + logMessage + "\n";
+    private void initTestLogBuffer(TestLogWriter writer) throws IOException {
+        TestLogBuffer buffer = testLogBuffer.get();
+        if (buffer != null && buffer.getFile().equals(writer.getFile())) {
+            // the same test continues logging after its writer was closed
+            buffer.setWriter(writer);
+            return;
+        }
+        if (buffer != null) {
+            // result of the previous test (or configuration method) was not reported, so its log is kept
+            buffer.persist();
+        }
+        testLogBuffer.set(new TestLogBuffer(writer, bufferSize, offHeap));
     }
 
     @Override
     public void stop() {
+        // called by ReportContext.emptyTestDirData() on every test finish, so the background writer keeps running
         try {
-            BufferedWriter fw = testLogBuffer.get();
-            if (fw != null) {
-                fw.close();
-                testLogBuffer.remove();
-            }
+            persistTestLog();
+            // only the current thread test log is released, tests of other threads keep their logs, owner routing
+            // and the pooled buffers
+            closeTestLog();
+            testLogBuffer.remove();
         } catch (Exception e) {
             e.printStackTrace();
         } finally {
@@ -0,0 +1,239 @@
+/*******************************************************************************
+ * Copyright 2020-2022 Zebrunner Inc (https://www.zebrunner.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.zebrunner.carina.core.registrar.resource;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Method;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntSupplier;
+import java.util.function.Supplier;
+
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.testng.ITestNGMethod;
+
+import com.zebrunner.carina.utils.R;
+
+/**
+ * Limits concurrent usage of named resources declared by {@link TestResource} annotations.
+ * Capacities are declared by test_resource_limits property, for example: test_resource_limits=shared_db=1,ios_device=2
+ * Resources without declared capacity are not limited. Changed capacities are applied to the tests started afterwards.
+ * Test waits for the resources no longer than test_resource_timeout seconds.
+ */
+public class TestResourceManager {
+    private static final Logger LOGGER = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+    private static final String TEST_RESOURCE_LIMITS = "test_resource_limits";
+    private static final String TEST_RESOURCE_TIMEOUT = "test_resource_timeout";
+    private static final long WAIT_LOG_INTERVAL = 60;
+
+    private static TestResourceManager instance = null;
+
+    private final Supplier<String> limitsSupplier;
+    private final IntSupplier timeoutSupplier;
+    private final Map<String, Resource> resources = new ConcurrentHashMap<>();
+    private String limits = null;
+
+    // permits acquired by the current thread test
+    private static final ThreadLocal<Map<Resource, Integer>> acquiredPermits = ThreadLocal.withInitial(LinkedHashMap::new);
+
+    TestResourceManager(Supplier<String> limitsSupplier, IntSupplier timeoutSupplier) {
+        this.limitsSupplier = limitsSupplier;
+        this.timeoutSupplier = timeoutSupplier;
+    }
+
+    public static synchronized TestResourceManager getInstance() {
+        if (null == instance) {
+            instance = new TestResourceManager(() -> R.CONFIG.get(TEST_RESOURCE_LIMITS),
+                    () -> R.CONFIG.getInt(TEST_RESOURCE_TIMEOUT));
+        }
+        return instance;
+    }
+
+    /**
+     * Acquire permits of all resources declared for the test method. Blocks current thread until all of them are available
+     * or test_resource_timeout is over. Resources are acquired in alphabetical order to avoid deadlocks between tests.
+     *
+     * @param testMethod {@link ITestNGMethod}
+     * @return false if the permits were not acquired within test_resource_timeout, nothing is held in this case
+     * @throws InterruptedException if the thread was interrupted while waiting
+     */
+    public boolean acquire(ITestNGMethod testMethod) throws InterruptedException {
+        Map<String, Integer> required = getRequiredPermits(testMethod);
+        if (required.isEmpty()) {
+            return true;
+        }
+        init();
+        long timeout = timeoutSupplier.getAsInt();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(timeout);
+        try {
+            for (Map.Entry<String, Integer> entry : required.entrySet()) {
+                Resource resource = resources.get(entry.getKey());
+                if (resource == null) {
+                    LOGGER.debug("Capacity of '{}' resource is not declared in {}. Resource is not limited.", entry.getKey(),
+                            TEST_RESOURCE_LIMITS);
+                    continue;
+                }
+                int permits = Math.min(entry.getValue(), resource.capacity);
+                while (!resource.semaphore.tryAcquire(permits, getWaitInterval(timeout, deadline), TimeUnit.NANOSECONDS)) {
+                    if (timeout > 0 && System.nanoTime() >= deadline) {
+                        LOGGER.warn("Test '{}' was not able to acquire {} permit(s) of '{}' resource within {} seconds.",
+                                testMethod.getMethodName(), permits, entry.getKey(), timeout);
+                        release();
+                        return false;
+                    }
+                    LOGGER.info("Test '{}' is still waiting for {} permit(s) of '{}' resource...", testMethod.getMethodName(), permits,
+                            entry.getKey());
+                }
+                acquiredPermits.get().merge(resource, permits, Integer::sum);
+                LOGGER.debug("Acquired {} permit(s) of '{}' resource.", permits, entry.getKey());
+            }
+        } catch (InterruptedException e) {
+            release();
+            throw e;
+        }
+        return true;
+    }
+
+    /**
+     * Release all permits acquired by the current thread.
+     */
+    public void release() {
+        Map<Resource, Integer> acquired = acquiredPermits.get();
+        for (Map.Entry<Resource, Integer> entry : acquired.entrySet()) {
+            entry.getKey().semaphore.release(entry.getValue());
+            LOGGER.debug("Released {} permit(s) of '{}' resource.", entry.getValue(), entry.getKey().name);
+        }
+        acquiredPermits.remove();
+    }
+
+    private static long getWaitInterval(long timeout, long deadline) {
+        long interval = TimeUnit.SECONDS.toNanos(WAIT_LOG_INTERVAL);
+        if (timeout <= 0) {
+            return interval;
+        }
+        return Math.max(0, Math.min(interval, deadline - System.nanoTime()));
+    }
+
+    /**
+     * Collect resources declared on class and method level. Method level declaration overrides class level one.
+     *
+     * @param testMethod {@link ITestNGMethod}
+     * @return sorted map of resource name to required permits
+     */
+    private Map<String, Integer> getRequiredPermits(ITestNGMethod testMethod) {
+        Map<String, Integer> required = new TreeMap<>();
+        Method method = testMethod.getConstructorOrMethod().getMethod();
+        if (method == null) {
+            return required;
+        }
+        for (TestResource resource : testMethod.getRealClass().getAnnotationsByType(TestResource.class)) {
+            required.put(resource.name(), resource.permits());
+        }
+        for (TestResource resource : method.getAnnotationsByType(TestResource.class)) {
+            required.put(resource.name(), resource.permits());
+        }
+        return required;
+    }
+
+    private synchronized void init() {
+        String value = limitsSupplier.get();
+        if (StringUtils.equals(value, limits)) {
+            return;
+        }
+        limits = value;
+        Map<String, Integer> capacities = parseLimits(value);
+        // resources which are not declared anymore are not limited, permits held by tests are released to the old semaphore
+        resources.keySet().retainAll(capacities.keySet());
+        for (Map.Entry<String, Integer> entry : capacities.entrySet()) {
+            Resource resource = resources.get(entry.getKey());
+            if (resource == null) {
+                resources.put(entry.getKey(), new Resource(entry.getKey(), entry.getValue()));
+                LOGGER.info("Capacity of '{}' resource: {}", entry.getKey(), entry.getValue());
+            } else if (resource.capacity != entry.getValue()) {
+                resource.resize(entry.getValue());
+                LOGGER.info("Capacity of '{}' resource is changed to {}", entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    private static Map<String, Integer> parseLimits(String value) {
+        Map<String, Integer> capacities = new LinkedHashMap<>();
+        if (StringUtils.isBlank(value) || "NULL".equalsIgnoreCase(value)) {
+            return capacities;
+        }
+        for (String limit : value.split(",")) {
+            String[] pair = limit.split("=");
+            if (pair.length != 2 || StringUtils.isBlank(pair[0])) {
+                LOGGER.warn("Invalid resource limit declaration '{}' is ignored, expected format: name=permits", limit);
+                continue;
+            }
+            int capacity;
+            try {
+                capacity = Integer.parseInt(pair[1].trim());
+            } catch (NumberFormatException e) {
+                capacity = 0;
+            }
+            if (capacity <= 0) {
+                LOGGER.warn("Invalid capacity of '{}' resource is ignored, expected positive integer: {}", pair[0].trim(), pair[1]);
+                continue;
+            }
+            capacities.put(pair[0].trim(), capacity);
+        }
+        return capacities;
+    }
+
+    private static class Resource {
+        private final String name;
+        private final ResizableSemaphore semaphore;
+        private volatile int capacity;
+
+        private Resource(String name, int capacity) {
+            this.name = name;
+            this.capacity = capacity;
+            this.semaphore = new ResizableSemaphore(capacity);
+        }
+
+        private void resize(int newCapacity) {
+            if (newCapacity > capacity) {
+                semaphore.release(newCapacity - capacity);
+            } else {
+                // permits held by running tests are returned to the reduced pool on release
+                semaphore.reducePermits(capacity - newCapacity);
+            }
+            capacity = newCapacity;
+        }
+    }
+
+    private static class ResizableSemaphore extends Semaphore {
+        private static final long serialVersionUID = 1L;
+
+        private ResizableSemaphore(int permits) {
+            super(permits, true);
+        }
+
+        @Override
+        protected void reducePermits(int reduction) {
+            super.reducePermits(reduction);
+        }
+    }
+}
@@ -0,0 +1,434 @@
+/*******************************************************************************
+ * Copyright 2020-2022 Zebrunner Inc (https://www.zebrunner.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.zebrunner.carina.core.report;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandles;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.zebrunner.carina.utils.R;
+import com.zebrunner.carina.utils.report.ReportContext;
+
+/**
+ * Archives the report directory of the run to the zip next to it (reports/qa/1641135840000.zip) in parallel:
+ * entries are compressed by the thread pool with their CRCs computed in advance, and the single writer appends
+ * them to the archive in the order of the file tree, so neither the archive nor the whole directory is held in memory.
+ * Already compressed files (images, videos, gz and zip) are stored as is.
+ * Zip64 records are written when the archive has more than 65535 entries or exceeds 4 GB.
+ */
+public class ReportArchiver {
+    private static final Logger LOGGER = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+    private static final String REPORT_ARCHIVE = "report_archive";
+    private static final String REPORT_ARCHIVE_THREADS = "report_archive_threads";
+    static final String ARCHIVE_EXTENSION = ".zip";
+
+    private static final Set<String> STORED_EXTENSIONS = Set.of("png", "jpg", "jpeg", "gif", "webp", "mp4", "webm", "gz", "zip",
+            "jar", "apk", "ipa", "7z");
+    // compressed entries up to this size are kept in memory till written, bigger ones go through the temp file
+    private static final int IN_MEMORY_LIMIT = 4 * 1024 * 1024;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final int LOCAL_HEADER = 0x04034b50;
+    private static final int CENTRAL_HEADER = 0x02014b50;
+    private static final int END_OF_CENTRAL_DIRECTORY = 0x06054b50;
+    private static final int ZIP64_END_OF_CENTRAL_DIRECTORY = 0x06064b50;
+    private static final int ZIP64_LOCATOR = 0x07064b50;
+    private static final int ZIP64_EXTRA = 0x0001;
+    private static final int UTF8_NAMES = 0x0800;
+    private static final int VERSION = 20;
+    private static final int VERSION_ZIP64 = 45;
+    private static final long MAX_32 = 0xFFFFFFFFL;
+    private static final int MAX_16 = 0xFFFF;
+
+    private static ReportArchiver instance = null;
+
+    private final boolean enabled;
+    private final int threads;
+
+    ReportArchiver(boolean enabled, int threads) {
+        this.enabled = enabled;
+        this.threads = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+    }
+
+    public static synchronized ReportArchiver getInstance() {
+        if (null == instance) {
+            instance = new ReportArchiver(R.CONFIG.getBoolean(REPORT_ARCHIVE), R.CONFIG.getInt(REPORT_ARCHIVE_THREADS));
+        }
+        return instance;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Archive the report directory of the current run.
+     *
+     * @return archive file
+     */
+    public File archive() throws IOException {
+        File baseDir = ReportContext.getBaseDir().getAbsoluteFile();
+        File archive = new File(baseDir.getParentFile(), baseDir.getName() + ARCHIVE_EXTENSION);
+        archive(baseDir, archive);
+        return archive;
+    }
+
+    /**
+     * Archive the directory. Archive is written to the temp file and moved to the target when completed.
+     *
+     * @param dir directory to archive, entry names are relative to it
+     * @param archive target zip file
+     */
+    void archive(File dir, File archive) throws IOException {
+        List<Path> files;
+        Path root = dir.toPath();
+        try (Stream<Path> stream = Files.walk(root)) {
+            files = stream.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+        }
+
+        Path temp = new File(archive.getParentFile(), archive.getName() + ".tmp").toPath();
+        ExecutorService executor = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "carina-report-archive");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try (ZipWriter writer = new ZipWriter(Files.newOutputStream(temp))) {
+            // bounded number of entries in progress keeps memory usage constant
+            int window = threads * 4;
+            Deque<Future<Entry>> pending = new ArrayDeque<>();
+            for (Path file : files) {
+                String name = root.relativize(file).toString().replace(File.separatorChar, '/');
+                pending.add(executor.submit(() -> prepare(file, name)));
+                if (pending.size() >= window) {
+                    writer.write(get(pending.poll()));
+                }
+            }
+            while (!pending.isEmpty()) {
+                writer.write(get(pending.poll()));
+            }
+            writer.finish();
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        } finally {
+            executor.shutdownNow();
+        }
+        Files.move(temp, archive.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        LOGGER.debug("{} files of '{}' are archived to '{}'", files.size(), dir.getName(), archive.getName());
+    }
+
+    private static Entry get(Future<Entry> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while archiving the report", e);
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        }
+    }
+
+    private static Entry prepare(Path file, String name) throws IOException {
+        Entry entry = new Entry(file, name, Files.getLastModifiedTime(file).toMillis());
+        CRC32 crc = new CRC32();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        if (isStored(name)) {
+            try (InputStream input = Files.newInputStream(file)) {
+                int read;
+                while ((read = input.read(buffer)) != -1) {
+                    crc.update(buffer, 0, read);
+                    entry.size += read;
+                }
+            }
+            entry.compressedSize = entry.size;
+            entry.crc = crc.getValue();
+            return entry;
+        }
+
+        entry.deflated = true;
+        long fileSize = Files.size(file);
+        OutputStream target;
+        if (fileSize <= IN_MEMORY_LIMIT) {
+            entry.data = new ByteArrayOutputStream((int) Math.max(32, fileSize / 2));
+            target = entry.data;
+        } else {
+            entry.dataFile = Files.createTempFile("carina-archive", ".deflate");
+            // not written entries of the failed archiving
+            entry.dataFile.toFile().deleteOnExit();
+            target = Files.newOutputStream(entry.dataFile);
+        }
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        try (InputStream input = Files.newInputStream(file);
+                DeflaterOutputStream output = new DeflaterOutputStream(target, deflater, BUFFER_SIZE)) {
+            int read;
+            while ((read = input.read(buffer)) != -1) {
+                crc.update(buffer, 0, read);
+                output.write(buffer, 0, read);
+                entry.size += read;
+            }
+            output.finish();
+            entry.compressedSize = deflater.getBytesWritten();
+        } finally {
+            deflater.end();
+        }
+        entry.crc = crc.getValue();
+        return entry;
+    }
+
+    private static boolean isStored(String name) {
+        int dot = name.lastIndexOf('.');
+        return dot >= 0 && STORED_EXTENSIONS.contains(name.substring(dot + 1).toLowerCase(Locale.ROOT));
+    }
+
+    private static class Entry {
+        private final Path file;
+        private final byte[] name;
+        private final long lastModified;
+        private boolean deflated = false;
+        private long crc;
+        private long size = 0;
+        private long compressedSize = 0;
+        private long offset;
+        // compressed data, null for the stored entries
+        private ByteArrayOutputStream data;
+        private Path dataFile;
+
+        private Entry(Path file, String name, long lastModified) {
+            this.file = file;
+            this.name = name.getBytes(StandardCharsets.UTF_8);
+            this.lastModified = lastModified;
+        }
+
+        private boolean isZip64() {
+            return size >= MAX_32 || compressedSize >= MAX_32;
+        }
+    }
+
+    /*
+     * Minimal zip format writer for the entries with precomputed CRC and sizes, so no data descriptors are needed.
+     */
+    private static class ZipWriter implements AutoCloseable {
+        private final OutputStream output;
+        private final byte[] header = new byte[64];
+        private final List<Entry> entries = new ArrayList<>();
+        private long position = 0;
+
+        private ZipWriter(OutputStream output) {
+            this.output = new BufferedOutputStream(output, BUFFER_SIZE);
+        }
+
+        private void write(Entry entry) throws IOException {
+            entry.offset = position;
+            boolean zip64 = entry.isZip64();
+            int length = 0;
+            length = putInt(length, LOCAL_HEADER);
+            length = putShort(length, zip64 ? VERSION_ZIP64 : VERSION);
+            length = putShort(length, UTF8_NAMES);
+            length = putShort(length, entry.deflated ? Deflater.DEFLATED : 0);
+            length = putInt(length, toDosTime(entry.lastModified));
+            length = putInt(length, entry.crc);
+            length = putInt(length, zip64 ? MAX_32 : entry.compressedSize);
+            length = putInt(length, zip64 ? MAX_32 : entry.size);
+            length = putShort(length, entry.name.length);
+            length = putShort(length, zip64 ? 20 : 0);
+            writeHeader(length);
+            writeBytes(entry.name);
+            if (zip64) {
+                length = putShort(0, ZIP64_EXTRA);
+                length = putShort(length, 16);
+                length = putLong(length, entry.size);
+                length = putLong(length, entry.compressedSize);
+                writeHeader(length);
+            }
+
+            if (entry.data != null) {
+                entry.data.writeTo(output);
+                entry.data = null;
+            } else {
+                Path source = entry.dataFile != null ? entry.dataFile : entry.file;
+                try (InputStream input = Files.newInputStream(source)) {
+                    long copied = input.transferTo(output);
+                    if (copied != entry.compressedSize) {
+                        throw new IOException("File is modified while archiving: " + entry.file);
+                    }
+                } finally {
+                    if (entry.dataFile != null) {
+                        Files.deleteIfExists(entry.dataFile);
+                    }
+                }
+            }
+            position += entry.compressedSize;
+            entries.add(entry);
+        }
+
+        private void finish() throws IOException {
+            long centralDirectoryOffset = position;
+            for (Entry entry : entries) {
+                boolean sizes64 = entry.isZip64();
+                boolean offset64 = entry.offset >= MAX_32;
+                int extra = (sizes64 ? 16 : 0) + (offset64 ? 8 : 0);
+                int length = 0;
+                length = putInt(length, CENTRAL_HEADER);
+                length = putShort(length, VERSION_ZIP64);
+                length = putShort(length, extra > 0 ? VERSION_ZIP64 : VERSION);
+                length = putShort(length, UTF8_NAMES);
+                length = putShort(length, entry.deflated ? Deflater.DEFLATED : 0);
+                length = putInt(length, toDosTime(entry.lastModified));
+                length = putInt(length, entry.crc);
+                length = putInt(length, sizes64 ? MAX_32 : entry.compressedSize);
+                length = putInt(length, sizes64 ? MAX_32 : entry.size);
+                length = putShort(length, entry.name.length);
+                length = putShort(length, extra > 0 ? extra + 4 : 0);
+                // comment length, disk number, internal and external attributes
+                length = putShort(length, 0);
+                length = putShort(length, 0);
+                length = putShort(length, 0);
+                length = putInt(length, 0);
+                length = putInt(length, offset64 ? MAX_32 : entry.offset);
+                writeHeader(length);
+                writeBytes(entry.name);
+                if (extra > 0) {
+                    length = putShort(0, ZIP64_EXTRA);
+                    length = putShort(length, extra);
+                    if (sizes64) {
+                        length = putLong(length, entry.size);
+                        length = putLong(length, entry.compressedSize);
+                    }
+                    if (offset64) {
+                        length = putLong(length, entry.offset);
+                    }
+                    writeHeader(length);
+                }
+            }
+            long centralDirectorySize = position - centralDirectoryOffset;
+
+            boolean zip64 = entries.size() >= MAX_16 || centralDirectoryOffset >= MAX_32 || centralDirectorySize >= MAX_32;
+            if (zip64) {
+                long zip64EndOffset = position;
+                int length = 0;
+                length = putInt(length, ZIP64_END_OF_CENTRAL_DIRECTORY);
+                length = putLong(length, 44);
+                length = putShort(length, VERSION_ZIP64);
+                length = putShort(length, VERSION_ZIP64);
+                length = putInt(length, 0);
+                length = putInt(length, 0);
+                length = putLong(length, entries.size());
+                length = putLong(length, entries.size());
+                length = putLong(length, centralDirectorySize);
+                length = putLong(length, centralDirectoryOffset);
+                writeHeader(length);
+
+                length = 0;
+                length = putInt(length, ZIP64_LOCATOR);
+                length = putInt(length, 0);
+                length = putLong(length, zip64EndOffset);
+                length = putInt(length, 1);
+                writeHeader(length);
+            }
+
+            int length = 0;
+            length = putInt(length, END_OF_CENTRAL_DIRECTORY);
+            length = putShort(length, 0);
+            length = putShort(length, 0);
+            length = putShort(length, zip64 ? MAX_16 : entries.size());
+            length = putShort(length, zip64 ? MAX_16 : entries.size());
+            length = putInt(length, zip64 ? MAX_32 : centralDirectorySize);
+            length = putInt(length, zip64 ? MAX_32 : centralDirectoryOffset);
+            length = putShort(length, 0);
+            writeHeader(length);
+            output.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            output.close();
+        }
+
+        private void writeHeader(int length) throws IOException {
+            output.write(header, 0, length);
+            position += length;
+        }
+
+        private void writeBytes(byte[] bytes) throws IOException {
+            output.write(bytes);
+            position += bytes.length;
+        }
+
+        private int putShort(int index, int value) {
+            header[index] = (byte) value;
+            header[index + 1] = (byte) (value >>> 8);
+            return index + 2;
+        }
+
+        private int putInt(int index, long value) {
+            putShort(index, (int) value);
+            putShort(index + 2, (int) (value >>> 16));
+            return index + 4;
+        }
+
+        private int putLong(int index, long value) {
+            putInt(index, value);
+            putInt(index + 4, value >>> 32);
+            return index + 8;
+        }
+    }
+
+    /*
+     * MS-DOS date and time as zip stores them: time in the low 16 bits, date in the high 16 bits.
+     */
+    private static long toDosTime(long millis) {
+        LocalDateTime time = LocalDateTime.ofInstant(Instant.ofEpochMilli(millis), ZoneId.systemDefault());
+        if (time.getYear() < 1980) {
+            return (1 << 21) | (1 << 16);
+        }
+        return ((long) (time.getYear() - 1980) << 25)
+                | ((long) time.getMonthValue() << 21)
+                | ((long) time.getDayOfMonth() << 16)
+                | ((long) time.getHour() << 11)
+                | ((long) time.getMinute() << 5)
+                | (time.getSecond() >> 1);
+    }
+}
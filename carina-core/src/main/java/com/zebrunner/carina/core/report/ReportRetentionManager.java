@@ -0,0 +1,312 @@
+/*******************************************************************************
+ * Copyright 2020-2022 Zebrunner Inc (https://www.zebrunner.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.zebrunner.carina.core.report;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.zebrunner.carina.utils.R;
+import com.zebrunner.carina.utils.report.ReportContext;
+
+/**
+ * Keeps the report directory (all runs under the parent of the {@link ReportContext#getBaseDir()}) within the size budget.
+ * When report_size_budget is exceeded the space is released in the following order:
+ * <ol>
+ * <li>screenshots of the passed tests of the current run, the oldest first</li>
+ * <li>whole directories of the passed tests of the current run</li>
+ * <li>previous runs with their archives, the oldest first</li>
+ * </ol>
+ * Directories of failed and skipped tests are never removed. Independently of the budget artifacts folders of the runs
+ * older than report_artifacts_history runs are removed. All the work is done incrementally by the single background
+ * thread as test directories are registered, so test threads never walk the file tree.
+ * <p>
+ * Only the sibling directories named by the run timestamp are treated as previous runs, the same directories which are
+ * counted by max_screen_history. max_screen_history is applied first, when the report directory is created, so the
+ * budget and the artifacts history are applied to the runs kept by it.
+ * <p>
+ * Passed tests are registered after their report.html is generated, so a thinned test keeps its report.html and log
+ * while the screenshots referenced by the report are removed.
+ * <p>
+ * Screenshots hard linked by {@link ScreenshotProcessor} are counted once and released only when the last link is
+ * removed.
+ */
+public class ReportRetentionManager {
+    private static final Logger LOGGER = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+    private static final String REPORT_SIZE_BUDGET = "report_size_budget";
+    private static final String REPORT_ARTIFACTS_HISTORY = "report_artifacts_history";
+    private static final long MEGABYTE = 1024 * 1024;
+    private static final long FLUSH_TIMEOUT_MINUTES = 5;
+    private static final Pattern RUN_NAME = Pattern.compile("\\d+");
+
+    private static ReportRetentionManager instance = null;
+
+    private final File baseDir;
+    private final String artifactsFolderName;
+    private final long budgetBytes;
+    private final int artifactsHistory;
+    private final ExecutorService executor;
+
+    // state below is accessed by the executor thread only
+    private final Deque<File> passedTests = new ArrayDeque<>();
+    private final Deque<File> thinnedTests = new ArrayDeque<>();
+    private final Deque<File> previousRuns = new ArrayDeque<>();
+    // keys of the counted files, so hard links of the same file are counted once
+    private final Set<Object> countedFiles = new HashSet<>();
+    private long usedBytes = 0;
+    private boolean budgetWarned = false;
+
+    private final AtomicLong usedBytesSnapshot = new AtomicLong();
+    private final AtomicLong prunedBytes = new AtomicLong();
+
+    ReportRetentionManager(File baseDir, String artifactsFolderName, long budgetBytes, int artifactsHistory) {
+        this.baseDir = baseDir;
+        this.artifactsFolderName = artifactsFolderName;
+        this.budgetBytes = budgetBytes;
+        this.artifactsHistory = artifactsHistory;
+        if (!isEnabled()) {
+            this.executor = null;
+            return;
+        }
+        this.executor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "carina-report-retention");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.execute(this::scanPreviousRuns);
+    }
+
+    public static synchronized ReportRetentionManager getInstance() {
+        if (null == instance) {
+            int budget = R.CONFIG.getInt(REPORT_SIZE_BUDGET);
+            instance = new ReportRetentionManager(ReportContext.getBaseDir(), ReportContext.getArtifactsFolder().getName(),
+                    budget > 0 ? budget * MEGABYTE : -1, R.CONFIG.getInt(REPORT_ARTIFACTS_HISTORY));
+        }
+        return instance;
+    }
+
+    public boolean isEnabled() {
+        return budgetBytes > 0 || artifactsHistory > 0;
+    }
+
+    /**
+     * Register directory of the finished test. Should be called when nothing is written to the directory anymore,
+     * i.e. after the test report generation.
+     *
+     * @param testDir test directory
+     * @param passed true if directory could be pruned, directories of failed and skipped tests are kept
+     */
+    public void register(File testDir, boolean passed) {
+        if (!isEnabled()) {
+            return;
+        }
+        executor.execute(() -> {
+            usedBytes += getSize(testDir.toPath());
+            if (passed) {
+                passedTests.add(testDir);
+            }
+            prune();
+        });
+    }
+
+    /**
+     * Wait until all registered directories are processed.
+     */
+    public void flush() {
+        if (!isEnabled()) {
+            return;
+        }
+        try {
+            executor.submit(() -> {
+            }).get(FLUSH_TIMEOUT_MINUTES, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException e) {
+            LOGGER.warn("Report retention is not completed: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * @return size of the previous runs and registered test directories in bytes
+     */
+    public long getUsedBytes() {
+        return usedBytesSnapshot.get();
+    }
+
+    /**
+     * @return number of bytes released by the retention
+     */
+    public long getPrunedBytes() {
+        return prunedBytes.get();
+    }
+
+    private void scanPreviousRuns() {
+        File reportRoot = baseDir.getAbsoluteFile().getParentFile();
+        File[] runs = reportRoot != null ? reportRoot.listFiles(File::isDirectory) : null;
+        List<File> sorted = new ArrayList<>();
+        if (runs != null) {
+            for (File run : runs) {
+                if (RUN_NAME.matcher(run.getName()).matches() && !run.getAbsoluteFile().equals(baseDir.getAbsoluteFile())) {
+                    sorted.add(run);
+                }
+            }
+        }
+        // the newest first, names are run timestamps
+        sorted.sort(Comparator.comparing((File run) -> run.getName().length())
+                .thenComparing(File::getName)
+                .reversed());
+        for (int i = 0; i < sorted.size(); i++) {
+            File run = sorted.get(i);
+            // the current run is the first of the history
+            if (artifactsHistory > 0 && i + 1 >= artifactsHistory) {
+                delete(new File(run, artifactsFolderName).toPath());
+            }
+            usedBytes += getSize(run.toPath()) + getSize(getArchive(run).toPath());
+            previousRuns.addFirst(run);
+        }
+        prune();
+    }
+
+    private void prune() {
+        if (budgetBytes > 0) {
+            while (usedBytes > budgetBytes && !passedTests.isEmpty()) {
+                File testDir = passedTests.poll();
+                thin(testDir);
+                thinnedTests.add(testDir);
+            }
+            while (usedBytes > budgetBytes && !thinnedTests.isEmpty()) {
+                delete(thinnedTests.poll().toPath());
+            }
+            while (usedBytes > budgetBytes && !previousRuns.isEmpty()) {
+                File run = previousRuns.poll();
+                LOGGER.debug("Report of the previous run '{}' is removed as report_size_budget is exceeded", run.getName());
+                delete(run.toPath());
+                delete(getArchive(run).toPath());
+            }
+            if (usedBytes > budgetBytes && !budgetWarned) {
+                budgetWarned = true;
+                LOGGER.warn("Report directory exceeds report_size_budget: {} MB are used by the reports of failed tests and logs",
+                        String.format(Locale.US, "%,d", usedBytes / MEGABYTE));
+            }
+        }
+        usedBytesSnapshot.set(usedBytes);
+    }
+
+    private static File getArchive(File run) {
+        return new File(run.getParentFile(), run.getName() + ReportArchiver.ARCHIVE_EXTENSION);
+    }
+
+    private void thin(File testDir) {
+        File[] files = testDir.listFiles(file -> file.isFile() && ScreenshotProcessor.isImage(file.getName()));
+        if (files != null) {
+            for (File file : files) {
+                delete(file.toPath());
+            }
+        }
+        delete(new File(testDir, ScreenshotProcessor.THUMBNAILS_DIR).toPath());
+    }
+
+    private void delete(Path path) {
+        if (!Files.exists(path)) {
+            return;
+        }
+        try {
+            Files.walkFileTree(path, new SimpleFileVisitor<>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                    // space of the hard linked file is released with its last link
+                    boolean released = getLinkCount(file) <= 1;
+                    Files.delete(file);
+                    Object key = attrs.fileKey();
+                    if (released) {
+                        prunedBytes.addAndGet(attrs.size());
+                        if (key == null || countedFiles.remove(key)) {
+                            usedBytes -= attrs.size();
+                        }
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                    Files.delete(dir);
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            LOGGER.debug("Unable to remove '{}' from the report: {}", path, e.getMessage());
+        }
+    }
+
+    private long getSize(Path path) {
+        if (!Files.exists(path)) {
+            return 0;
+        }
+        long[] size = new long[1];
+        try {
+            Files.walkFileTree(path, new SimpleFileVisitor<>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    Object key = attrs.fileKey();
+                    if (key == null || countedFiles.add(key)) {
+                        size[0] += attrs.size();
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException exc) {
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            LOGGER.debug("Unable to calculate size of '{}': {}", path, e.getMessage());
+        }
+        return size[0];
+    }
+
+    private static int getLinkCount(Path file) {
+        try {
+            return (int) Files.getAttribute(file, "unix:nlink");
+        } catch (UnsupportedOperationException | IllegalArgumentException | IOException e) {
+            return 1;
+        }
+    }
+}
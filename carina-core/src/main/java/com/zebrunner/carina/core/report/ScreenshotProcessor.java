@@ -0,0 +1,323 @@
+/*******************************************************************************
+ * Copyright 2020-2022 Zebrunner Inc (https://www.zebrunner.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.zebrunner.carina.core.report;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandles;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.imageio.ImageIO;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.zebrunner.carina.utils.R;
+
+/**
+ * Post-processes screenshots of the finished test before its report is generated:
+ * <ul>
+ * <li>screenshot_dedup=true removes consecutive frames which perceptual hash (dHash) differs from the previous kept frame
+ * by no more than screenshot_dedup_threshold bits, and replaces images identical to the image of another test
+ * by the hard link to it, so every image content is stored once</li>
+ * <li>screenshot_max_width downscales wider images keeping the aspect ratio</li>
+ * </ul>
+ * Processing is done by the {@link TestReportQueue} workers or, when they are disabled, by the own background thread,
+ * so test threads are not slowed down.
+ */
+public class ScreenshotProcessor {
+    private static final Logger LOGGER = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+    private static final String SCREENSHOT_DEDUP = "screenshot_dedup";
+    private static final String SCREENSHOT_DEDUP_THRESHOLD = "screenshot_dedup_threshold";
+    private static final String SCREENSHOT_MAX_WIDTH = "screenshot_max_width";
+    private static final long FLUSH_TIMEOUT_MINUTES = 10;
+    static final String THUMBNAILS_DIR = "thumbnails";
+
+    private static ScreenshotProcessor instance = null;
+
+    private final boolean dedup;
+    private final int threshold;
+    private final int maxWidth;
+    private final ExecutorService executor;
+    // content hash -> the first stored image with such content
+    private final Map<String, Path> contentStore = new ConcurrentHashMap<>();
+
+    private final AtomicLong duplicates = new AtomicLong();
+    private final AtomicLong linked = new AtomicLong();
+    private final AtomicLong downscaled = new AtomicLong();
+    private final AtomicLong savedBytes = new AtomicLong();
+
+    ScreenshotProcessor(boolean dedup, int threshold, int maxWidth) {
+        this.dedup = dedup;
+        this.threshold = Math.max(0, threshold);
+        this.maxWidth = maxWidth;
+        if (!isEnabled()) {
+            this.executor = null;
+            return;
+        }
+        this.executor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "carina-screenshot-processor");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public static synchronized ScreenshotProcessor getInstance() {
+        if (null == instance) {
+            instance = new ScreenshotProcessor(R.CONFIG.getBoolean(SCREENSHOT_DEDUP), R.CONFIG.getInt(SCREENSHOT_DEDUP_THRESHOLD),
+                    R.CONFIG.getInt(SCREENSHOT_MAX_WIDTH));
+        }
+        return instance;
+    }
+
+    public boolean isEnabled() {
+        return dedup || maxWidth > 0;
+    }
+
+    /**
+     * Process screenshots of the test directory by the background thread. Callback is run by the same thread
+     * after the processing, e.g. to generate the test report. Callback is run in place if processing is disabled.
+     *
+     * @param testDir test directory, should not be bound to the test thread anymore
+     * @param onProcessed callback
+     */
+    public void submit(File testDir, Runnable onProcessed) {
+        if (!isEnabled()) {
+            onProcessed.run();
+            return;
+        }
+        executor.execute(() -> {
+            process(testDir);
+            try {
+                onProcessed.run();
+            } catch (Exception e) {
+                LOGGER.error("Callback of the screenshot processing of '{}' failed", testDir.getName(), e);
+            }
+        });
+    }
+
+    /**
+     * Wait until all submitted test directories are processed.
+     */
+    public void flush() {
+        if (!isEnabled()) {
+            return;
+        }
+        try {
+            executor.submit(() -> {
+            }).get(FLUSH_TIMEOUT_MINUTES, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException e) {
+            LOGGER.warn("Screenshot processing is not completed: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Process screenshots of the test directory in the order of their names, i.e. in the order of capturing.
+     *
+     * @param testDir test directory
+     */
+    public void process(File testDir) {
+        if (!isEnabled()) {
+            return;
+        }
+        File[] images = testDir.listFiles(file -> file.isFile() && isImage(file.getName()));
+        if (images == null) {
+            return;
+        }
+        Arrays.sort(images);
+
+        long previousHash = 0;
+        boolean hasPrevious = false;
+        for (File image : images) {
+            try {
+                BufferedImage content = ImageIO.read(image);
+                if (content == null) {
+                    continue;
+                }
+                if (dedup) {
+                    long hash = getPerceptualHash(content);
+                    if (hasPrevious && Long.bitCount(hash ^ previousHash) <= threshold) {
+                        remove(testDir, image);
+                        continue;
+                    }
+                    previousHash = hash;
+                    hasPrevious = true;
+                }
+                if (maxWidth > 0 && content.getWidth() > maxWidth) {
+                    downscale(image, content);
+                }
+                if (dedup) {
+                    store(image.toPath());
+                }
+            } catch (IOException e) {
+                LOGGER.warn("Unable to process screenshot '{}': {}", image.getName(), e.getMessage());
+            }
+        }
+    }
+
+    public long getDuplicates() {
+        return duplicates.get();
+    }
+
+    public long getLinked() {
+        return linked.get();
+    }
+
+    public long getDownscaled() {
+        return downscaled.get();
+    }
+
+    /**
+     * @return bytes of disk space released by removed duplicates, hard links and downscaling
+     */
+    public long getSavedBytes() {
+        return savedBytes.get();
+    }
+
+    /**
+     * Difference hash: the image is reduced to 9x8 grayscale pixels and every bit tells whether the pixel is brighter
+     * than its right neighbour. Near-identical images (cursor blinking, compression noise) get equal or close hashes.
+     *
+     * @param image {@link BufferedImage}
+     * @return 64 bit hash
+     */
+    static long getPerceptualHash(BufferedImage image) {
+        BufferedImage reduced = new BufferedImage(9, 8, BufferedImage.TYPE_BYTE_GRAY);
+        Graphics2D graphics = reduced.createGraphics();
+        try {
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            graphics.drawImage(image, 0, 0, 9, 8, null);
+        } finally {
+            graphics.dispose();
+        }
+        long hash = 0;
+        for (int y = 0; y < 8; y++) {
+            for (int x = 0; x < 8; x++) {
+                hash <<= 1;
+                if (reduced.getRaster().getSample(x, y, 0) > reduced.getRaster().getSample(x + 1, y, 0)) {
+                    hash |= 1;
+                }
+            }
+        }
+        return hash;
+    }
+
+    private void remove(File testDir, File image) throws IOException {
+        long size = image.length();
+        Files.delete(image.toPath());
+        Files.deleteIfExists(new File(new File(testDir, THUMBNAILS_DIR), image.getName()).toPath());
+        duplicates.incrementAndGet();
+        savedBytes.addAndGet(size);
+        LOGGER.debug("Screenshot '{}' is removed as duplicate of the previous one", image.getName());
+    }
+
+    private void downscale(File image, BufferedImage content) throws IOException {
+        String format = getFormat(image.getName());
+        int height = Math.max(1, (int) ((long) content.getHeight() * maxWidth / content.getWidth()));
+        // jpeg has no alpha channel
+        int type = "png".equals(format) ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB;
+        BufferedImage scaled = new BufferedImage(maxWidth, height, type);
+        Graphics2D graphics = scaled.createGraphics();
+        try {
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            graphics.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            graphics.drawImage(content, 0, 0, maxWidth, height, null);
+        } finally {
+            graphics.dispose();
+        }
+
+        long size = image.length();
+        Path temp = new File(image.getParentFile(), image.getName() + ".tmp").toPath();
+        if (!ImageIO.write(scaled, format, temp.toFile())) {
+            Files.deleteIfExists(temp);
+            return;
+        }
+        Files.move(temp, image.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        downscaled.incrementAndGet();
+        savedBytes.addAndGet(size - image.length());
+    }
+
+    private void store(Path image) throws IOException {
+        String hash = getContentHash(image);
+        Path stored = contentStore.putIfAbsent(hash, image);
+        if (stored == null || stored.equals(image)) {
+            return;
+        }
+        if (!Files.exists(stored)) {
+            // the first image was removed, e.g. by the report retention, so the next ones are linked to this one
+            contentStore.replace(hash, stored, image);
+            return;
+        }
+        long size = Files.size(image);
+        Path temp = image.resolveSibling(image.getFileName() + ".tmp");
+        try {
+            Files.createLink(temp, stored);
+        } catch (IOException | UnsupportedOperationException e) {
+            // file system without hard links or another volume, the copy is kept
+            LOGGER.debug("Unable to link screenshot '{}' to '{}': {}", image, stored, e.getMessage());
+            return;
+        }
+        Files.move(temp, image, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        linked.incrementAndGet();
+        savedBytes.addAndGet(size);
+    }
+
+    private static String getContentHash(Path image) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        try (InputStream stream = new DigestInputStream(Files.newInputStream(image), digest)) {
+            stream.transferTo(OutputStream.nullOutputStream());
+        }
+        return Base64.getEncoder().encodeToString(digest.digest());
+    }
+
+    static boolean isImage(String name) {
+        String lowerCase = name.toLowerCase(Locale.ROOT);
+        return lowerCase.endsWith(".png") || lowerCase.endsWith(".jpg") || lowerCase.endsWith(".jpeg");
+    }
+
+    private static String getFormat(String name) {
+        return name.toLowerCase(Locale.ROOT).endsWith(".png") ? "png" : "jpg";
+    }
+}
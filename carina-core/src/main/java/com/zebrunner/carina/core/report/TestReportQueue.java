@@ -0,0 +1,263 @@
+/*******************************************************************************
+ * Copyright 2020-2022 Zebrunner Inc (https://www.zebrunner.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.zebrunner.carina.core.report;
+
+import java.io.File;
+import java.lang.invoke.MethodHandles;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.zebrunner.carina.utils.R;
+import com.zebrunner.carina.utils.report.ReportContext;
+
+/**
+ * Generates per-test screenshot reports on the background workers, so test threads only enqueue the test directory.
+ * Directory is always handled by the same worker, so reports of the single directory are generated in the order
+ * of submission. Queue of every worker is bounded, test threads wait for the free slot when it is full.
+ * Screenshots are post-processed by {@link ScreenshotProcessor} before the report generation.
+ * Generation is synchronous if test_report_threads=0.
+ */
+public class TestReportQueue {
+    private static final Logger LOGGER = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+    private static final String TEST_REPORT_THREADS = "test_report_threads";
+    private static final String TEST_REPORT_QUEUE_SIZE = "test_report_queue_size";
+    private static final long FLUSH_TIMEOUT_MINUTES = 10;
+
+    private static TestReportQueue instance = null;
+
+    private final Consumer<File> generator;
+    private final Worker[] workers;
+    // submitted but not generated yet, including reports in progress
+    private final AtomicInteger depth = new AtomicInteger();
+    private final LongAccumulator maxDepth = new LongAccumulator(Math::max, 0);
+    private final AtomicLong generated = new AtomicLong();
+    private final LongAccumulator maxLagMillis = new LongAccumulator(Math::max, 0);
+
+    TestReportQueue(int threads, int queueSize, Consumer<File> generator) {
+        this.generator = generator;
+        this.workers = new Worker[Math.max(0, threads)];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new Worker(i, queueSize);
+            workers[i].start();
+        }
+    }
+
+    public static synchronized TestReportQueue getInstance() {
+        if (null == instance) {
+            int threads = R.CONFIG.getInt(TEST_REPORT_THREADS);
+            int queueSize = R.CONFIG.getInt(TEST_REPORT_QUEUE_SIZE);
+            instance = new TestReportQueue(threads, queueSize > 0 ? queueSize : 1000, TestReportQueue::generateTestReport);
+        }
+        return instance;
+    }
+
+    /**
+     * @return true if reports are generated by the background workers
+     */
+    public boolean isEnabled() {
+        return workers.length > 0;
+    }
+
+    /**
+     * Enqueue report generation of the test directory. Directory should not be bound to the test thread anymore,
+     * i.e. {@link ReportContext#emptyTestDirData()} should be called before.
+     *
+     * @param testDir test directory
+     */
+    public void submit(File testDir) {
+        submit(testDir, null);
+    }
+
+    /**
+     * Enqueue report generation of the test directory with the callback run by the worker after the generation.
+     *
+     * @param testDir test directory
+     * @param onGenerated callback, could be null
+     */
+    public void submit(File testDir, Runnable onGenerated) {
+        if (!isEnabled()) {
+            generate(testDir, System.nanoTime(), onGenerated);
+            return;
+        }
+        Worker worker = workers[Math.floorMod(testDir.getAbsolutePath().hashCode(), workers.length)];
+        maxDepth.accumulate(depth.incrementAndGet());
+        try {
+            worker.queue.put(new Task(testDir, onGenerated, null));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            depth.decrementAndGet();
+            LOGGER.warn("Interrupted while waiting for the free slot of the test report queue, report of '{}' is generated in place",
+                    testDir.getName());
+            generate(testDir, System.nanoTime(), onGenerated);
+        }
+    }
+
+    /**
+     * Wait until all reports submitted before the call are generated.
+     */
+    public void flush() {
+        if (!isEnabled()) {
+            return;
+        }
+        CountDownLatch barrier = new CountDownLatch(workers.length);
+        try {
+            for (Worker worker : workers) {
+                worker.queue.put(new Task(null, null, barrier));
+            }
+            if (!barrier.await(FLUSH_TIMEOUT_MINUTES, TimeUnit.MINUTES)) {
+                LOGGER.warn("Test reports are not generated in {} minutes, {} reports are still in the queue", FLUSH_TIMEOUT_MINUTES,
+                        getDepth());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            LOGGER.warn("Interrupted while waiting for the test reports generation");
+        }
+    }
+
+    /**
+     * @return number of the submitted reports which are not generated yet
+     */
+    public int getDepth() {
+        return depth.get();
+    }
+
+    /**
+     * @return max number of the submitted reports which were not generated yet
+     */
+    public long getMaxDepth() {
+        return maxDepth.get();
+    }
+
+    /**
+     * @return time in milliseconds the oldest not started report is waiting in the queue
+     */
+    public long getLagMillis() {
+        long now = System.nanoTime();
+        long lag = 0;
+        for (Worker worker : workers) {
+            Task task = worker.queue.peek();
+            if (task != null) {
+                lag = Math.max(lag, TimeUnit.NANOSECONDS.toMillis(now - task.submitted));
+            }
+        }
+        return lag;
+    }
+
+    /**
+     * @return max time in milliseconds the report was waiting in the queue before generation
+     */
+    public long getMaxLagMillis() {
+        return maxLagMillis.get();
+    }
+
+    /**
+     * @return number of the generated reports
+     */
+    public long getGenerated() {
+        return generated.get();
+    }
+
+    private void generate(File testDir, long submitted, Runnable onGenerated) {
+        maxLagMillis.accumulate(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - submitted));
+        try {
+            generator.accept(testDir);
+        } catch (Exception e) {
+            LOGGER.error("Unable to generate report of the test directory '{}'", testDir.getName(), e);
+        }
+        generated.incrementAndGet();
+        if (onGenerated != null) {
+            try {
+                onGenerated.run();
+            } catch (Exception e) {
+                LOGGER.error("Callback of the report generation of '{}' failed", testDir.getName(), e);
+            }
+        }
+    }
+
+    private static void generateTestReport(File testDir) {
+        // screenshots are deduplicated and downscaled before they get into the report
+        ScreenshotProcessor.getInstance().process(testDir);
+        generateReport(testDir);
+    }
+
+    /**
+     * Generate report of the test directory which is not bound to the current thread, e.g. by the background thread.
+     *
+     * @param testDir test directory
+     */
+    public static void generateReport(File testDir) {
+        // bind the existing test directory to the worker thread for the time of generation
+        ReportContext.setCustomTestDirName(testDir.getName());
+        try {
+            ReportContext.generateTestReport();
+        } finally {
+            // unbinds the directory and closes the test log of the worker thread only, logs of the running tests
+            // and the async log writer are not affected by ThreadLogAppender.stop()
+            ReportContext.emptyTestDirData();
+        }
+    }
+
+    private static class Task {
+        private final File testDir;
+        private final Runnable onGenerated;
+        private final CountDownLatch barrier;
+        private final long submitted = System.nanoTime();
+
+        private Task(File testDir, Runnable onGenerated, CountDownLatch barrier) {
+            this.testDir = testDir;
+            this.onGenerated = onGenerated;
+            this.barrier = barrier;
+        }
+    }
+
+    private class Worker extends Thread {
+        private final BlockingQueue<Task> queue;
+
+        private Worker(int index, int queueSize) {
+            super("carina-test-report-" + index);
+            this.queue = new ArrayBlockingQueue<>(queueSize);
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Task task;
+                try {
+                    task = queue.take();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (task.barrier != null) {
+                    task.barrier.countDown();
+                    continue;
+                }
+                generate(task.testDir, task.submitted, task.onGenerated);
+                depth.decrementAndGet();
+            }
+        }
+    }
+}
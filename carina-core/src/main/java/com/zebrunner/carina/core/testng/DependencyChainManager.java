@@ -0,0 +1,267 @@
+/*******************************************************************************
+ * Copyright 2020-2022 Zebrunner Inc (https://www.zebrunner.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.zebrunner.carina.core.testng;
+
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.testng.IMethodInstance;
+import org.testng.ITestNGMethod;
+import org.testng.ITestResult;
+
+import com.zebrunner.carina.utils.R;
+
+/**
+ * Splits suite methods into chains (connected components of dependsOnMethods/dependsOnGroups graph).
+ * Every chain is executed by the single thread with its drivers kept alive between chain methods,
+ * while independent chains and standalone methods run in parallel.
+ * <p>
+ * Single thread execution relies on TestNG "testng.thread.affinity" system property which is enabled for the time
+ * of the suite: from {@link #init(List)} till {@link #finish()} restoring the previous value.
+ */
+public class DependencyChainManager {
+    private static final Logger LOGGER = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+    private static final String DEPENDENCY_CHAIN_SCHEDULING = "dependency_chain_scheduling";
+    // TestNG runs dependent methods in the thread of their upstream method when this property is enabled
+    private static final String TESTNG_THREAD_AFFINITY = "testng.thread.affinity";
+
+    private static DependencyChainManager instance = null;
+
+    // qualified method name -> chain id
+    private final Map<String, Integer> chains = new ConcurrentHashMap<>();
+    // chain id -> qualified names of the chain methods
+    private final Map<Integer, Set<String>> chainMethods = new ConcurrentHashMap<>();
+    // method of the test class instance -> finished and expected invocations (data provider rows, invocationCount)
+    private final Map<String, int[]> invocations = new HashMap<>();
+
+    private String previousThreadAffinity = null;
+
+    private DependencyChainManager() {
+    }
+
+    public static synchronized DependencyChainManager getInstance() {
+        if (null == instance) {
+            instance = new DependencyChainManager();
+        }
+        return instance;
+    }
+
+    public boolean isEnabled() {
+        return R.CONFIG.getBoolean(DEPENDENCY_CHAIN_SCHEDULING);
+    }
+
+    /**
+     * Calculate dependency chains for all suite methods and enable TestNG thread affinity.
+     *
+     * @param methods all suite methods
+     */
+    public synchronized void init(List<ITestNGMethod> methods) {
+        previousThreadAffinity = System.setProperty(TESTNG_THREAD_AFFINITY, "true");
+
+        Map<String, Integer> components = getComponents(methods);
+        chains.putAll(components);
+
+        Map<Integer, Set<String>> members = new HashMap<>();
+        for (Map.Entry<String, Integer> entry : components.entrySet()) {
+            members.computeIfAbsent(entry.getValue(), k -> ConcurrentHashMap.newKeySet()).add(entry.getKey());
+        }
+        for (Map.Entry<Integer, Set<String>> entry : members.entrySet()) {
+            if (entry.getValue().size() > 1) {
+                LOGGER.info("Dependency chain #{}: {}", entry.getKey(), entry.getValue());
+                chainMethods.put(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Restore TestNG thread affinity property changed by {@link #init(List)} and forget chains of the finished suite.
+     */
+    public synchronized void finish() {
+        if (previousThreadAffinity != null) {
+            System.setProperty(TESTNG_THREAD_AFFINITY, previousThreadAffinity);
+        } else {
+            System.clearProperty(TESTNG_THREAD_AFFINITY);
+        }
+        previousThreadAffinity = null;
+        chains.clear();
+        chainMethods.clear();
+        invocations.clear();
+    }
+
+    /**
+     * Reorder methods so that methods of the same chain are executed one by one.
+     * Chain takes the place of its first method, order inside chain and of the standalone methods is preserved.
+     *
+     * @param methods list of {@link IMethodInstance} provided by TestNG
+     * @return reordered list of methods
+     */
+    public List<IMethodInstance> sort(List<IMethodInstance> methods) {
+        Map<Object, List<IMethodInstance>> groups = new LinkedHashMap<>();
+        for (IMethodInstance method : methods) {
+            Integer chain = getChain(method.getMethod());
+            Object group = chain != null ? chain : method;
+            groups.computeIfAbsent(group, k -> new ArrayList<>()).add(method);
+        }
+        List<IMethodInstance> sorted = new ArrayList<>(methods.size());
+        groups.values().forEach(sorted::addAll);
+        return sorted;
+    }
+
+    /**
+     * Register finished invocation of the method and check if there are invocations in its chain which are still not executed.
+     * Invocations are counted per test class instance, so every instance created by factory runs the whole chain, and
+     * method is finished after all its data provider rows and invocationCount invocations.
+     *
+     * @param result {@link ITestResult}
+     * @return true if drivers should be kept for the rest of the chain
+     */
+    public synchronized boolean hasPendingMethods(ITestResult result) {
+        ITestNGMethod method = result.getMethod();
+        Integer chain = getChain(method);
+        if (chain == null) {
+            return false;
+        }
+        String instanceKey = getInstanceKey(result.getInstance());
+        int[] counts = invocations.computeIfAbsent(getKey(method) + instanceKey, k -> new int[2]);
+        if (!result.wasRetried()) {
+            counts[0]++;
+        }
+        counts[1] = Math.max(1, method.getInvocationCount()) * Math.max(1, method.getParameterInvocationCount());
+
+        List<String> pending = new ArrayList<>();
+        String classPrefix = method.getRealClass().getName() + ".";
+        for (String chainMethod : chainMethods.get(chain)) {
+            // methods of other classes linked by groups are executed by their own instances
+            boolean isPending = chainMethod.startsWith(classPrefix)
+                    ? isPending(invocations.get(chainMethod + instanceKey))
+                    : isPending(chainMethod);
+            if (isPending) {
+                pending.add(chainMethod);
+            }
+        }
+        LOGGER.debug("Pending methods in dependency chain #{}: {}", chain, pending);
+        return !pending.isEmpty();
+    }
+
+    private boolean isPending(String method) {
+        boolean started = false;
+        for (Map.Entry<String, int[]> entry : invocations.entrySet()) {
+            if (entry.getKey().startsWith(method + "@")) {
+                started = true;
+                if (isPending(entry.getValue())) {
+                    return true;
+                }
+            }
+        }
+        return !started;
+    }
+
+    private static boolean isPending(int[] counts) {
+        return counts == null || counts[0] < counts[1];
+    }
+
+    private static String getInstanceKey(Object instance) {
+        return "@" + System.identityHashCode(instance);
+    }
+
+    /**
+     * Get id of the chain the method belongs to.
+     *
+     * @param method {@link ITestNGMethod}
+     * @return chain id or null for standalone method
+     */
+    private Integer getChain(ITestNGMethod method) {
+        Integer chain = chains.get(getKey(method));
+        return chain != null && chainMethods.containsKey(chain) ? chain : null;
+    }
+
+    /**
+     * Find connected components of methods dependency graph using union-find.
+     *
+     * @param methods list of {@link ITestNGMethod}
+     * @return map of qualified method name to component id
+     */
+    static Map<String, Integer> getComponents(List<ITestNGMethod> methods) {
+        Map<String, String> parents = new HashMap<>();
+        Map<String, List<String>> groups = new HashMap<>();
+        for (ITestNGMethod method : methods) {
+            parents.put(getKey(method), getKey(method));
+            for (String group : method.getGroups()) {
+                groups.computeIfAbsent(group, k -> new ArrayList<>()).add(getKey(method));
+            }
+        }
+
+        for (ITestNGMethod method : methods) {
+            String key = getKey(method);
+            for (String dependency : method.getMethodsDependedUpon()) {
+                String dependencyKey = parents.containsKey(dependency)
+                        ? dependency
+                        : method.getRealClass().getName() + "." + dependency.substring(dependency.lastIndexOf('.') + 1);
+                if (parents.containsKey(dependencyKey)) {
+                    union(parents, key, dependencyKey);
+                }
+            }
+            for (String group : method.getGroupsDependedUpon()) {
+                for (String groupMethod : groups.getOrDefault(group, List.of())) {
+                    union(parents, key, groupMethod);
+                }
+            }
+        }
+
+        Map<String, Integer> roots = new HashMap<>();
+        Map<String, Integer> components = new LinkedHashMap<>();
+        for (ITestNGMethod method : methods) {
+            String root = find(parents, getKey(method));
+            components.put(getKey(method), roots.computeIfAbsent(root, k -> roots.size() + 1));
+        }
+        return components;
+    }
+
+    private static String find(Map<String, String> parents, String key) {
+        String root = key;
+        while (!root.equals(parents.get(root))) {
+            root = parents.get(root);
+        }
+        // path compression
+        while (!key.equals(root)) {
+            String parent = parents.get(key);
+            parents.put(key, root);
+            key = parent;
+        }
+        return root;
+    }
+
+    private static void union(Map<String, String> parents, String key1, String key2) {
+        String root1 = find(parents, key1);
+        String root2 = find(parents, key2);
+        if (!root1.equals(root2)) {
+            parents.put(root2, root1);
+        }
+    }
+
+    private static String getKey(ITestNGMethod method) {
+        return method.getRealClass().getName() + "." + method.getMethodName();
+    }
+}
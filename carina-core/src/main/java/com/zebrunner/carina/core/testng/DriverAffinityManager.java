@@ -0,0 +1,194 @@
+/*******************************************************************************
+ * Copyright 2020-2022 Zebrunner Inc (https://www.zebrunner.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.zebrunner.carina.core.testng;
+
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.commons.lang3.StringUtils;
+import org.openqa.selenium.Capabilities;
+import org.openqa.selenium.HasCapabilities;
+import org.openqa.selenium.remote.CapabilityType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.testng.IMethodInstance;
+import org.testng.ITestNGMethod;
+import org.testng.xml.XmlClass;
+import org.testng.xml.XmlTest;
+
+import com.zebrunner.carina.utils.Configuration;
+import com.zebrunner.carina.utils.R;
+import com.zebrunner.carina.webdriver.CarinaDriver;
+import com.zebrunner.carina.webdriver.IDriverPool;
+
+/**
+ * Groups test methods by capabilities they are going to request and keeps drivers between consecutive
+ * tests of the same thread while their capabilities are the same.
+ * <p>
+ * TestNG doesn't allow to bind methods to the particular worker threads, so groups are not routed to dedicated threads:
+ * methods of the same group are placed one after another in the execution order instead, so every thread picks
+ * consecutive tests of the same group in most cases. Before reuse, drivers kept by the thread are verified against
+ * capabilities requested by the next test and quit on any mismatch.
+ */
+public class DriverAffinityManager {
+    private static final Logger LOGGER = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+    private static final String DRIVER_AFFINITY_SCHEDULING = "driver_affinity_scheduling";
+    private static final String CAPABILITIES_PREFIX = "capabilities.";
+    private static final String PLATFORM_NAME = "platformName";
+
+    private static DriverAffinityManager instance = null;
+
+    // affinity key of the drivers kept by the current thread after previous test
+    private static final ThreadLocal<String> KEPT_DRIVERS_AFFINITY = new ThreadLocal<>();
+    private static final IDriverPool DRIVER_POOL = new IDriverPool() {
+    };
+
+    private DriverAffinityManager() {
+    }
+
+    public static synchronized DriverAffinityManager getInstance() {
+        if (null == instance) {
+            instance = new DriverAffinityManager();
+        }
+        return instance;
+    }
+
+    public boolean isEnabled() {
+        return R.CONFIG.getBoolean(DRIVER_AFFINITY_SCHEDULING);
+    }
+
+    /**
+     * Reorder methods so that methods requesting the same capabilities are executed one by one.
+     * Group takes the place of its first method, order inside groups is preserved.
+     *
+     * @param methods list of {@link IMethodInstance} provided by TestNG
+     * @return reordered list of methods
+     */
+    public List<IMethodInstance> sort(List<IMethodInstance> methods) {
+        Map<String, List<IMethodInstance>> groups = new LinkedHashMap<>();
+        for (IMethodInstance method : methods) {
+            groups.computeIfAbsent(getAffinityKey(method.getMethod()), k -> new ArrayList<>()).add(method);
+        }
+        LOGGER.debug("Methods were grouped by capabilities: {}", groups.keySet());
+        List<IMethodInstance> sorted = new ArrayList<>(methods.size());
+        groups.values().forEach(sorted::addAll);
+        return sorted;
+    }
+
+    /**
+     * Remember that drivers of the current thread are kept after the test method.
+     *
+     * @param method finished {@link ITestNGMethod}
+     */
+    public void keepDrivers(ITestNGMethod method) {
+        KEPT_DRIVERS_AFFINITY.set(getAffinityKey(method));
+    }
+
+    /**
+     * Verify if drivers kept by the current thread could be reused by the test method: the method belongs to the same
+     * group and every kept driver was started with capabilities the method is going to request.
+     * Kept drivers are consumed by this call, so it returns true for all subsequent calls.
+     *
+     * @param method {@link ITestNGMethod} which is going to be executed
+     * @return false if kept drivers should be quit
+     */
+    public boolean isReusable(ITestNGMethod method) {
+        String keptAffinity = KEPT_DRIVERS_AFFINITY.get();
+        KEPT_DRIVERS_AFFINITY.remove();
+        if (keptAffinity == null) {
+            return true;
+        }
+        Map<String, String> requested = getRequestedCapabilities(method);
+        boolean isReusable = keptAffinity.equals(requested.toString());
+        if (isReusable) {
+            for (Map.Entry<String, CarinaDriver> entry : DRIVER_POOL.getDrivers().entrySet()) {
+                Object driver = entry.getValue().getDriver();
+                if (driver instanceof HasCapabilities && !isMatching(requested, ((HasCapabilities) driver).getCapabilities())) {
+                    LOGGER.debug("Driver '{}' was started with other capabilities than {} requests", entry.getKey(), method.getMethodName());
+                    isReusable = false;
+                    break;
+                }
+            }
+        }
+        LOGGER.debug("Drivers kept for [{}] are {}reused by {}", keptAffinity, isReusable ? "" : "not ", method.getMethodName());
+        return isReusable;
+    }
+
+    /**
+     * Verify if capabilities of the started driver correspond to the requested ones.
+     * Capabilities which are not requested explicitly or not reported by the driver are ignored.
+     *
+     * @param requested capabilities resolved by {@link #getAffinityKey(ITestNGMethod)}
+     * @param actual {@link Capabilities} of the driver
+     * @return false if any of the requested capabilities has another value
+     */
+    static boolean isMatching(Map<String, String> requested, Capabilities actual) {
+        for (Map.Entry<String, String> entry : requested.entrySet()) {
+            String value = entry.getValue();
+            if (StringUtils.isBlank(value) || "*".equals(value) || "NULL".equalsIgnoreCase(value)) {
+                continue;
+            }
+            String name = Configuration.Parameter.BROWSER.getKey().equals(entry.getKey()) ? CapabilityType.BROWSER_NAME : entry.getKey();
+            Object actualValue = actual.getCapability(name);
+            if (actualValue != null && !value.equalsIgnoreCase(String.valueOf(actualValue))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Resolve capabilities the test method is going to request: platform and browser from configuration
+     * overridden by capabilities declared as parameters on test and class level of suite xml.
+     *
+     * @param method {@link ITestNGMethod}
+     * @return affinity key
+     */
+    public String getAffinityKey(ITestNGMethod method) {
+        return getRequestedCapabilities(method).toString();
+    }
+
+    private Map<String, String> getRequestedCapabilities(ITestNGMethod method) {
+        Map<String, String> parameters = new TreeMap<>();
+        parameters.put(PLATFORM_NAME, Configuration.getPlatform());
+        parameters.put(Configuration.Parameter.BROWSER.getKey(), Configuration.getBrowser());
+
+        XmlTest xmlTest = method.getXmlTest();
+        if (xmlTest != null) {
+            putCapabilities(parameters, xmlTest.getAllParameters());
+            for (XmlClass xmlClass : xmlTest.getXmlClasses()) {
+                if (xmlClass.getName().equals(method.getRealClass().getName())) {
+                    putCapabilities(parameters, xmlClass.getAllParameters());
+                }
+            }
+        }
+        return parameters;
+    }
+
+    private void putCapabilities(Map<String, String> parameters, Map<String, String> xmlParameters) {
+        for (Map.Entry<String, String> entry : xmlParameters.entrySet()) {
+            if (entry.getKey().startsWith(CAPABILITIES_PREFIX)
+                    || Configuration.Parameter.BROWSER.getKey().equals(entry.getKey())) {
+                parameters.put(entry.getKey().replace(CAPABILITIES_PREFIX, ""), entry.getValue());
+            }
+        }
+    }
+}
@@ -0,0 +1,228 @@
+/*******************************************************************************
+ * Copyright 2020-2022 Zebrunner Inc (https://www.zebrunner.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.zebrunner.carina.core.testng;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.testng.IMethodInstance;
+import org.testng.ITestNGMethod;
+import org.testng.ITestResult;
+
+import com.zebrunner.carina.utils.R;
+
+/**
+ * Keeps local per-test outcome history between runs (last status, failure rate and retries)
+ * and uses it to put the most risky test methods at the beginning of the run.
+ */
+public class TestHistoryManager {
+    private static final Logger LOGGER = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+    private static final String HISTORY_FILE = "test_history_file";
+    private static final String FAILURE_FIRST_ORDER = "failure_first_order";
+    private static final String MAX_FAILURES = "max_failures";
+
+    private static TestHistoryManager instance = null;
+
+    private final Map<String, TestHistoryItem> history = new ConcurrentHashMap<>();
+    private final AtomicInteger failures = new AtomicInteger(0);
+    private final File historyFile;
+    private final boolean failureFirstOrder;
+    private final int maxFailures;
+
+    TestHistoryManager(File historyFile, boolean failureFirstOrder, int maxFailures) {
+        this.historyFile = historyFile;
+        this.failureFirstOrder = failureFirstOrder;
+        this.maxFailures = maxFailures;
+        // history is loaded once, so finishing tests never wait for the file
+        if (failureFirstOrder) {
+            load();
+        }
+    }
+
+    public static synchronized TestHistoryManager getInstance() {
+        if (null == instance) {
+            instance = new TestHistoryManager(new File(R.CONFIG.get(HISTORY_FILE)), R.CONFIG.getBoolean(FAILURE_FIRST_ORDER),
+                    R.CONFIG.getInt(MAX_FAILURES));
+        }
+        return instance;
+    }
+
+    public boolean isFailureFirstOrder() {
+        return failureFirstOrder;
+    }
+
+    /**
+     * Reorder methods so that the ones failed in the last run go first, then the ones with the highest failure rate
+     * and then the most retried (flaky) ones. Order of methods without any history is preserved.
+     *
+     * @param methods list of {@link IMethodInstance} provided by TestNG
+     * @return reordered list of methods
+     */
+    public List<IMethodInstance> sort(List<IMethodInstance> methods) {
+        List<IMethodInstance> sorted = new ArrayList<>(methods);
+        sorted.sort(Comparator.comparing((IMethodInstance method) -> getItem(method.getMethod()), TestHistoryItem.RISK_COMPARATOR));
+        LOGGER.debug("Methods were reordered according to the failure history.");
+        return sorted;
+    }
+
+    /**
+     * Register finished test method outcome.
+     *
+     * @param result {@link ITestResult}
+     */
+    public void register(ITestResult result) {
+        if (result.getStatus() == ITestResult.FAILURE && !result.wasRetried()) {
+            failures.incrementAndGet();
+        }
+
+        if (!isFailureFirstOrder()) {
+            return;
+        }
+
+        TestHistoryItem item = history.computeIfAbsent(getKey(result.getMethod()), k -> new TestHistoryItem());
+        synchronized (item) {
+            if (result.wasRetried()) {
+                // retry registered by RetryAnalyzerInterceptor, final status will be registered on the next attempt
+                item.retries++;
+                return;
+            }
+            if (result.getStatus() == ITestResult.SKIP) {
+                // skipped tests (dependencies, expected skip, max_failures) say nothing about the test itself
+                return;
+            }
+            item.runs++;
+            item.lastFailed = result.getStatus() == ITestResult.FAILURE;
+            if (item.lastFailed) {
+                item.failures++;
+            }
+        }
+    }
+
+    /**
+     * Verify if the limit of failures declared by max_failures property is reached.
+     *
+     * @return true if the rest of tests should be skipped
+     */
+    public boolean isFailuresLimitReached() {
+        return maxFailures > 0 && failures.get() >= maxFailures;
+    }
+
+    public int getFailuresCount() {
+        return failures.get();
+    }
+
+    /**
+     * Store updated history into the test_history_file.
+     */
+    public synchronized void save() {
+        if (!failureFirstOrder) {
+            return;
+        }
+        File file = historyFile;
+        Properties properties = new Properties();
+        for (Map.Entry<String, TestHistoryItem> entry : history.entrySet()) {
+            properties.setProperty(entry.getKey(), entry.getValue().toString());
+        }
+        try {
+            if (file.getParentFile() != null) {
+                file.getParentFile().mkdirs();
+            }
+            try (OutputStream os = new FileOutputStream(file)) {
+                properties.store(os, "Carina test history");
+            }
+            LOGGER.debug("Test history saved into: {}", file.getAbsolutePath());
+        } catch (Exception e) {
+            LOGGER.error("Unable to save test history into: " + file.getAbsolutePath(), e);
+        }
+    }
+
+    private void load() {
+        File file = historyFile;
+        if (!file.exists()) {
+            LOGGER.debug("Test history file doesn't exist yet: {}", file.getAbsolutePath());
+            return;
+        }
+        Properties properties = new Properties();
+        try (InputStream is = new FileInputStream(file)) {
+            properties.load(is);
+            for (String key : properties.stringPropertyNames()) {
+                history.put(key, TestHistoryItem.parse(properties.getProperty(key)));
+            }
+            LOGGER.debug("Loaded history for {} test methods.", history.size());
+        } catch (Exception e) {
+            LOGGER.error("Unable to load test history from: " + file.getAbsolutePath(), e);
+        }
+    }
+
+    private TestHistoryItem getItem(ITestNGMethod method) {
+        return history.getOrDefault(getKey(method), TestHistoryItem.EMPTY);
+    }
+
+    private static String getKey(ITestNGMethod method) {
+        return method.getRealClass().getName() + "." + method.getMethodName();
+    }
+
+    static class TestHistoryItem {
+        static final TestHistoryItem EMPTY = new TestHistoryItem();
+
+        static final Comparator<TestHistoryItem> RISK_COMPARATOR = Comparator
+                .comparing((TestHistoryItem item) -> item.lastFailed)
+                .thenComparingDouble(TestHistoryItem::getFailureRate)
+                .thenComparingInt(item -> item.retries)
+                .reversed();
+
+        int runs = 0;
+        int failures = 0;
+        int retries = 0;
+        boolean lastFailed = false;
+
+        double getFailureRate() {
+            return runs > 0 ? (double) failures / runs : 0;
+        }
+
+        static TestHistoryItem parse(String value) {
+            // runs,failures,retries,lastFailed
+            TestHistoryItem item = new TestHistoryItem();
+            String[] values = value.split(",");
+            if (values.length == 4) {
+                item.runs = Integer.parseInt(values[0].trim());
+                item.failures = Integer.parseInt(values[1].trim());
+                item.retries = Integer.parseInt(values[2].trim());
+                item.lastFailed = Boolean.parseBoolean(values[3].trim());
+            }
+            return item;
+        }
+
+        @Override
+        public String toString() {
+            return runs + "," + failures + "," + retries + "," + lastFailed;
+        }
+    }
+}
@@ -0,0 +1,610 @@
+/*******************************************************************************
+ * Copyright 2020-2022 Zebrunner Inc (https://www.zebrunner.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.zebrunner.carina.core.testng;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.apache.commons.lang3.StringUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.testng.ITestNGMethod;
+
+import com.zebrunner.carina.utils.R;
+
+/**
+ * Records set of classes executed by each test method (using JaCoCo agent runtime if it is attached to the JVM)
+ * and stores it as local index. Index is used by IMPACT filter to run only tests affected by the changed sources.
+ * <p>
+ * JaCoCo probes are boolean so the agent data is reset on every read to see what each test executes. Data reset this way
+ * is accumulated and appended to the agent destfile on {@link #save()}, so coverage report of the run stays complete
+ * (requires default JaCoCo <i>output=file</i> and <i>append=true</i> options).
+ * Classes executed by configuration methods (&#64;BeforeClass, &#64;BeforeMethod, &#64;AfterClass etc.) are attributed to
+ * all test methods of the class.
+ */
+public class TestImpactManager {
+    private static final Logger LOGGER = LoggerFactory.getLogger(MethodHandles.lookup().lookupClass());
+
+    private static final String IMPACT_RECORDING = "test_impact_recording";
+    private static final String IMPACT_INDEX_FILE = "test_impact_index_file";
+
+    private static final String JACOCO_RT_CLASS = "org.jacoco.agent.rt.RT";
+    private static final String JACOCO_AGENT_CLASS = "org.jacoco.agent.rt.IAgent";
+    private static final String JACOCO_AGENT_JAR = "jacocoagent";
+
+    // JaCoCo execution data format constants
+    private static final byte BLOCK_HEADER = 0x01;
+    private static final byte BLOCK_SESSION_INFO = 0x10;
+    private static final byte BLOCK_EXECUTION_DATA = 0x11;
+    private static final char MAGIC_NUMBER = 0xC0C0;
+    private static final char FORMAT_VERSION = 0x1007;
+
+    private static final String CLASSES_SECTION = "#classes";
+    private static final String TESTS_SECTION = "#tests";
+    private static final String CONFIGURATION_PREFIX = "#configuration:";
+
+    private static TestImpactManager instance = null;
+
+    // test method -> executed classes
+    private final Map<String, Set<String>> index = new LinkedHashMap<>();
+    // currently running test and configuration methods which receive coverage data
+    private final Map<String, Set<String>> running = new HashMap<>();
+    // test class -> classes executed by its configuration methods
+    private final Map<String, Set<String>> configurations = new HashMap<>();
+    // test methods recorded in current run
+    private final Set<String> recorded = new HashSet<>();
+    // execution data reset from the agent: class id and name -> probes
+    private final Map<String, boolean[]> coverage = new LinkedHashMap<>();
+
+    private final File indexFile;
+    private boolean recording;
+    private ExecutionDataSource source;
+    private File coverageFile;
+    private char formatVersion = FORMAT_VERSION;
+
+    /**
+     * Source of JaCoCo execution data in the format of {@code IAgent.getExecutionData(boolean)}.
+     */
+    interface ExecutionDataSource {
+        byte[] getExecutionData(boolean reset) throws Exception;
+    }
+
+    TestImpactManager(File indexFile, boolean recording, ExecutionDataSource source, File coverageFile) {
+        this.indexFile = indexFile;
+        this.recording = recording;
+        this.source = source;
+        this.coverageFile = coverageFile;
+        load();
+    }
+
+    public static synchronized TestImpactManager getInstance() {
+        if (null == instance) {
+            instance = new TestImpactManager(new File(R.CONFIG.get(IMPACT_INDEX_FILE)), R.CONFIG.getBoolean(IMPACT_RECORDING), null, null);
+        }
+        return instance;
+    }
+
+    public boolean isRecording() {
+        return recording;
+    }
+
+    /**
+     * Start collecting executed classes for the test method.
+     *
+     * @param method {@link ITestNGMethod}
+     */
+    public synchronized void startRecording(ITestNGMethod method) {
+        if (!recording || !initAgent()) {
+            return;
+        }
+        // classes executed between tests (data providers, configuration methods invoked without listener notification)
+        // are attributed to the starting test as well
+        Set<String> executed = collect();
+        // coverage of parallel tests could not be separated so it is attributed to all of them
+        running.computeIfAbsent(getKey(method), k -> new TreeSet<>()).addAll(executed);
+    }
+
+    /**
+     * Finish collecting executed classes for the test method.
+     *
+     * @param method {@link ITestNGMethod}
+     */
+    public synchronized void stopRecording(ITestNGMethod method) {
+        if (!recording || source == null) {
+            return;
+        }
+        collect();
+        Set<String> classes = running.remove(getKey(method));
+        if (classes != null) {
+            classes.addAll(configurations.getOrDefault(getTestClass(method), Set.of()));
+            // data of the previous runs is replaced, retries of the test in the current run are merged
+            if (recorded.add(getKey(method))) {
+                index.put(getKey(method), classes);
+            } else {
+                index.get(getKey(method)).addAll(classes);
+            }
+        }
+    }
+
+    /**
+     * Start collecting executed classes for the configuration method of the test class.
+     *
+     * @param method configuration {@link ITestNGMethod}
+     */
+    public synchronized void startConfiguration(ITestNGMethod method) {
+        if (!recording || !initAgent()) {
+            return;
+        }
+        collect();
+        running.computeIfAbsent(CONFIGURATION_PREFIX + getKey(method), k -> new TreeSet<>());
+    }
+
+    /**
+     * Finish collecting executed classes for the configuration method. Collected classes are attributed to all test
+     * methods of the class.
+     *
+     * @param method configuration {@link ITestNGMethod}
+     */
+    public synchronized void stopConfiguration(ITestNGMethod method) {
+        if (!recording || source == null) {
+            return;
+        }
+        collect();
+        Set<String> classes = running.remove(CONFIGURATION_PREFIX + getKey(method));
+        if (classes != null) {
+            configurations.computeIfAbsent(getTestClass(method), k -> new TreeSet<>()).addAll(classes);
+        }
+    }
+
+    /**
+     * Verify if the test method could be affected by any of the changed classes.
+     * Methods absent in the index are treated as affected.
+     *
+     * @param method {@link ITestNGMethod}
+     * @param changedClasses fully qualified names of changed classes
+     * @return true if test method should be executed
+     */
+    public synchronized boolean isAffected(ITestNGMethod method, Set<String> changedClasses) {
+        String testClass = getTestClass(method);
+        if (isChanged(testClass, changedClasses)) {
+            return true;
+        }
+        Set<String> classes = index.get(getKey(method));
+        if (classes == null) {
+            LOGGER.debug("There is no impact data for {}", getKey(method));
+            return true;
+        }
+        for (String clazz : classes) {
+            if (isChanged(clazz, changedClasses)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Store recorded data into the test_impact_index_file and append execution data reset during recording to the
+     * JaCoCo destfile.
+     */
+    public synchronized void save() {
+        if (!recording || source == null) {
+            return;
+        }
+        collect();
+        // configuration methods executed after the tests (@AfterMethod, @AfterClass)
+        for (String key : recorded) {
+            Set<String> classes = configurations.get(StringUtils.substringBeforeLast(key, "."));
+            if (classes != null) {
+                index.get(key).addAll(classes);
+            }
+        }
+        // test methods which don't exist anymore
+        for (Iterator<String> iterator = index.keySet().iterator(); iterator.hasNext();) {
+            String key = iterator.next();
+            if (!recorded.contains(key) && !exists(key)) {
+                LOGGER.debug("Test method doesn't exist anymore, impact data is removed: {}", key);
+                iterator.remove();
+            }
+        }
+        saveCoverage();
+
+        File file = indexFile;
+        // dictionary of classes to keep index compact
+        Map<String, Integer> classIds = new LinkedHashMap<>();
+        for (Set<String> classes : index.values()) {
+            for (String clazz : classes) {
+                classIds.putIfAbsent(clazz, classIds.size());
+            }
+        }
+        try {
+            if (file.getParentFile() != null) {
+                file.getParentFile().mkdirs();
+            }
+            try (BufferedWriter writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8)) {
+                writer.write(CLASSES_SECTION);
+                writer.newLine();
+                for (Map.Entry<String, Integer> entry : classIds.entrySet()) {
+                    writer.write(entry.getValue() + " " + entry.getKey());
+                    writer.newLine();
+                }
+                writer.write(TESTS_SECTION);
+                writer.newLine();
+                for (Map.Entry<String, Set<String>> entry : index.entrySet()) {
+                    StringBuilder line = new StringBuilder(entry.getKey());
+                    for (String clazz : entry.getValue()) {
+                        line.append(' ').append(classIds.get(clazz));
+                    }
+                    writer.write(line.toString());
+                    writer.newLine();
+                }
+            }
+            LOGGER.info("Test impact index for {} test methods saved into: {}", index.size(), file.getAbsolutePath());
+        } catch (IOException e) {
+            LOGGER.error("Unable to save test impact index into: " + file.getAbsolutePath(), e);
+        }
+    }
+
+    private void load() {
+        File file = indexFile;
+        if (!file.exists()) {
+            LOGGER.debug("Test impact index doesn't exist yet: {}", file.getAbsolutePath());
+            return;
+        }
+        Map<String, String> classNames = new HashMap<>();
+        boolean tests = false;
+        try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty() || CLASSES_SECTION.equals(line)) {
+                    continue;
+                }
+                if (TESTS_SECTION.equals(line)) {
+                    tests = true;
+                    continue;
+                }
+                String[] values = line.split(" ");
+                if (!tests) {
+                    classNames.put(values[0], values[1]);
+                } else {
+                    Set<String> classes = index.computeIfAbsent(values[0], k -> new TreeSet<>());
+                    for (int i = 1; i < values.length; i++) {
+                        classes.add(classNames.get(values[i]));
+                    }
+                }
+            }
+            LOGGER.debug("Loaded test impact data for {} test methods.", index.size());
+        } catch (Exception e) {
+            LOGGER.error("Unable to load test impact index from: " + file.getAbsolutePath(), e);
+        }
+    }
+
+    /**
+     * Read executed classes and attribute them to all running test and configuration methods.
+     *
+     * @return classes executed since the previous read
+     */
+    private Set<String> collect() {
+        Set<String> classes = readExecutedClasses();
+        for (Set<String> testClasses : running.values()) {
+            testClasses.addAll(classes);
+        }
+        return classes;
+    }
+
+    private boolean initAgent() {
+        if (source != null) {
+            return true;
+        }
+        try {
+            Class<?> rt = Class.forName(JACOCO_RT_CLASS);
+            Object agent = rt.getMethod("getAgent").invoke(null);
+            Method getExecutionData = Class.forName(JACOCO_AGENT_CLASS).getMethod("getExecutionData", boolean.class);
+            source = reset -> (byte[]) getExecutionData.invoke(agent, reset);
+            coverageFile = getAgentDestFile();
+            LOGGER.info("JaCoCo agent detected. Test impact data will be recorded.");
+            return true;
+        } catch (Exception e) {
+            LOGGER.warn("Test impact recording is enabled but JaCoCo agent is not attached to the JVM!");
+            recording = false;
+            return false;
+        }
+    }
+
+    /**
+     * Find JaCoCo destfile in the agent options to preserve execution data reset during recording.
+     *
+     * @return destfile or null if agent doesn't write execution data into the file
+     */
+    private static File getAgentDestFile() {
+        for (String argument : ManagementFactory.getRuntimeMXBean().getInputArguments()) {
+            if (!argument.startsWith("-javaagent:") || !argument.contains(JACOCO_AGENT_JAR)) {
+                continue;
+            }
+            Map<String, String> options = new HashMap<>();
+            for (String option : StringUtils.substringAfter(argument, "=").split(",")) {
+                options.put(StringUtils.substringBefore(option, "="), StringUtils.substringAfter(option, "="));
+            }
+            if (!"file".equals(options.getOrDefault("output", "file"))) {
+                LOGGER.warn("JaCoCo agent output is not a file, coverage of the tests is reset by impact recording.");
+                return null;
+            }
+            if ("false".equals(options.get("append"))) {
+                LOGGER.warn("JaCoCo agent uses append=false, coverage of the tests is reset by impact recording.");
+                return null;
+            }
+            return new File(options.getOrDefault("destfile", "jacoco.exec"));
+        }
+        return null;
+    }
+
+    /**
+     * Read and reset execution data of JaCoCo agent. Read data is accumulated to be written back to the destfile.
+     *
+     * @return set of classes with at least one executed probe
+     */
+    private Set<String> readExecutedClasses() {
+        Set<String> classes = new HashSet<>();
+        try {
+            byte[] data = source.getExecutionData(true);
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+            while (true) {
+                byte type;
+                try {
+                    type = in.readByte();
+                } catch (EOFException e) {
+                    break;
+                }
+                switch (type) {
+                case BLOCK_HEADER:
+                    in.readChar(); // magic number
+                    formatVersion = in.readChar();
+                    break;
+                case BLOCK_SESSION_INFO:
+                    in.readUTF(); // session id
+                    in.readLong(); // start timestamp
+                    in.readLong(); // dump timestamp
+                    break;
+                case BLOCK_EXECUTION_DATA:
+                    long id = in.readLong();
+                    String name = in.readUTF();
+                    boolean[] probes = readProbes(in);
+                    if (merge(id, name, probes)) {
+                        classes.add(name.replace('/', '.'));
+                    }
+                    break;
+                default:
+                    throw new IOException("Unknown JaCoCo execution data block: " + type);
+                }
+            }
+        } catch (Exception e) {
+            LOGGER.debug("Unable to read JaCoCo execution data.", e);
+        }
+        return classes;
+    }
+
+    /**
+     * Merge probes of the class into the accumulated execution data.
+     *
+     * @return true if any probe was hit
+     */
+    private boolean merge(long id, String name, boolean[] probes) {
+        boolean hit = false;
+        for (boolean probe : probes) {
+            hit |= probe;
+        }
+        if (hit && coverageFile != null) {
+            boolean[] merged = coverage.get(id + " " + name);
+            if (merged == null || merged.length != probes.length) {
+                coverage.put(id + " " + name, Arrays.copyOf(probes, probes.length));
+            } else {
+                for (int i = 0; i < probes.length; i++) {
+                    merged[i] |= probes[i];
+                }
+            }
+        }
+        return hit;
+    }
+
+    /**
+     * Append accumulated execution data as separate session to the JaCoCo destfile. Agent appends its own session
+     * on JVM shutdown and JaCoCo merges all of them in the report.
+     */
+    private void saveCoverage() {
+        if (coverageFile == null || coverage.isEmpty()) {
+            return;
+        }
+        try {
+            if (coverageFile.getAbsoluteFile().getParentFile() != null) {
+                coverageFile.getAbsoluteFile().getParentFile().mkdirs();
+            }
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(coverageFile, true)))) {
+                out.writeByte(BLOCK_HEADER);
+                out.writeChar(MAGIC_NUMBER);
+                out.writeChar(formatVersion);
+                out.writeByte(BLOCK_SESSION_INFO);
+                out.writeUTF("carina-test-impact");
+                out.writeLong(System.currentTimeMillis());
+                out.writeLong(System.currentTimeMillis());
+                for (Map.Entry<String, boolean[]> entry : coverage.entrySet()) {
+                    out.writeByte(BLOCK_EXECUTION_DATA);
+                    out.writeLong(Long.parseLong(StringUtils.substringBefore(entry.getKey(), " ")));
+                    out.writeUTF(StringUtils.substringAfter(entry.getKey(), " "));
+                    writeProbes(out, entry.getValue());
+                }
+            }
+            LOGGER.debug("Execution data of {} classes appended to: {}", coverage.size(), coverageFile.getAbsolutePath());
+            coverage.clear();
+        } catch (IOException e) {
+            LOGGER.error("Unable to append execution data into: " + coverageFile.getAbsolutePath(), e);
+        }
+    }
+
+    /**
+     * Read boolean probes array in JaCoCo compact format.
+     */
+    private static boolean[] readProbes(DataInputStream in) throws IOException {
+        boolean[] probes = new boolean[readVarInt(in)];
+        int buffer = 0;
+        for (int i = 0; i < probes.length; i++) {
+            if ((i % 8) == 0) {
+                buffer = in.readByte();
+            }
+            probes[i] = (buffer & 0x01) != 0;
+            buffer >>>= 1;
+        }
+        return probes;
+    }
+
+    private static int readVarInt(DataInputStream in) throws IOException {
+        int value = 0xFF & in.readByte();
+        if ((value & 0x80) == 0) {
+            return value;
+        }
+        return (value & 0x7F) | (readVarInt(in) << 7);
+    }
+
+    /**
+     * Write boolean probes array in JaCoCo compact format.
+     */
+    private static void writeProbes(DataOutputStream out, boolean[] probes) throws IOException {
+        writeVarInt(out, probes.length);
+        int buffer = 0;
+        for (int i = 0; i < probes.length; i++) {
+            if (probes[i]) {
+                buffer |= 0x01 << (i % 8);
+            }
+            if ((i % 8) == 7 || i == probes.length - 1) {
+                out.writeByte(buffer);
+                buffer = 0;
+            }
+        }
+    }
+
+    private static void writeVarInt(DataOutputStream out, int value) throws IOException {
+        if ((value & 0xFFFFFF80) == 0) {
+            out.writeByte(value);
+        } else {
+            out.writeByte(0x80 | (value & 0x7F));
+            writeVarInt(out, value >>> 7);
+        }
+    }
+
+    /**
+     * Convert list of changed files (for example output of "git diff --name-only") to the set of class names.
+     * Returns null if any of the changed files is not a java source so impact could not be calculated.
+     *
+     * @param files changed files
+     * @return set of fully qualified class names or null
+     */
+    public static Set<String> toClassNames(List<String> files) {
+        Set<String> classes = new HashSet<>();
+        for (String file : files) {
+            String path = file.trim().replace("\\", "/");
+            if (path.isEmpty()) {
+                continue;
+            }
+            if (!path.endsWith(".java")) {
+                LOGGER.info("Changed file is not a java source, impact could not be calculated: {}", path);
+                return null;
+            }
+            path = StringUtils.removeEnd(path, ".java");
+            if (path.contains("/java/")) {
+                path = StringUtils.substringAfterLast(path, "/java/");
+            }
+            classes.add(path.replace('/', '.'));
+        }
+        return classes;
+    }
+
+    /**
+     * Read changed files from the files (if exist) or use values as is.
+     *
+     * @param values list of files with changes or changed files itself
+     * @return list of changed files
+     */
+    public static List<String> readChangedFiles(List<String> values) {
+        List<String> files = new ArrayList<>();
+        for (String value : values) {
+            File file = new File(value.trim());
+            if (file.isFile() && !value.trim().endsWith(".java")) {
+                try {
+                    files.addAll(Files.readAllLines(file.toPath(), StandardCharsets.UTF_8));
+                } catch (IOException e) {
+                    LOGGER.error("Unable to read list of changed files from: " + file.getAbsolutePath(), e);
+                }
+            } else {
+                files.add(value);
+            }
+        }
+        return files;
+    }
+
+    private static boolean isChanged(String clazz, Set<String> changedClasses) {
+        // nested and anonymous classes belong to the source of the top level class
+        String topLevelClass = StringUtils.substringBefore(clazz, "$");
+        return changedClasses.contains(topLevelClass);
+    }
+
+    /**
+     * Verify if the test method from the index still exists.
+     */
+    private static boolean exists(String key) {
+        String className = StringUtils.substringBeforeLast(key, ".");
+        String methodName = StringUtils.substringAfterLast(key, ".");
+        try {
+            Class<?> clazz = Class.forName(className, false, TestImpactManager.class.getClassLoader());
+            for (Method method : clazz.getMethods()) {
+                if (method.getName().equals(methodName)) {
+                    return true;
+                }
+            }
+            return false;
+        } catch (ClassNotFoundException | LinkageError e) {
+            return false;
+        }
+    }
+
+    private static String getTestClass(ITestNGMethod method) {
+        return method.getRealClass().getName();
+    }
+
+    private static String getKey(ITestNGMethod method) {
+        return method.getRealClass().getName() + "." + method.getMethodName();
+    }
+}
@@ -30,6 +30,7 @@ import org.testng.ITestNGMethod;
 import org.testng.ITestResult;
 
 import com.zebrunner.agent.testng.listener.RunContextService;
+import com.zebrunner.carina.core.context.CarinaTestContext;
 import com.zebrunner.carina.utils.Configuration;
 import com.zebrunner.carina.utils.ParameterGenerator;
 import com.zebrunner.carina.utils.commons.SpecialKeywords;
@@ -53,6 +54,21 @@ public class TestNamingService {
         return testName.get();
     }
 
+    /**
+     * Get full test name of the current thread without failing when it is not generated yet.
+     * Worker threads with propagated context get name of the owning test.
+     *
+     * @return String test name or null
+     */
+    public static String getCurrentTestName() {
+        String name = testName.get();
+        if (name == null) {
+            CarinaTestContext context = CarinaTestContext.getAttached();
+            name = context != null ? context.getTestName() : null;
+        }
+        return name;
+    }
+
     /**
      * Get full test name based on test class, method and other generic information. It is generated by TestNameListener automatically.
      *
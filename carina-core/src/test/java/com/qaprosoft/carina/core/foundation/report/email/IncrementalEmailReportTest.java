@@ -0,0 +1,94 @@
+/*******************************************************************************
+ * Copyright 2020-2022 Zebrunner Inc (https://www.zebrunner.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.qaprosoft.carina.core.foundation.report.email;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.zebrunner.carina.utils.report.TestResultItem;
+import com.zebrunner.carina.utils.report.TestResultType;
+
+/**
+ * Tests for {@link IncrementalEmailReport}
+ */
+public class IncrementalEmailReportTest {
+
+    @Test
+    public void testReportIsAssembledFromFragments() throws IOException {
+        File dir = Files.createTempDirectory("email-report").toFile();
+        File reportFile = new File(dir, "emailable-report.html");
+        IncrementalEmailReport report = new IncrementalEmailReport(new File(dir, "fragments"), reportFile);
+
+        report.push(new TestResultItem("b-package", "Test b1", "", TestResultType.PASS, "", "b1.log", ""));
+        report.push(new TestResultItem("a-package", "Test a1", "", TestResultType.SKIP, "", "a1.log", "retry"));
+        // retried test replaces the previous result
+        report.push(new TestResultItem("a-package", "Test a1", "", TestResultType.PASS, "", "a1.log", ""));
+        report.write(reportFile, "Suite", "env", "1.0", "chrome", "now", List.of());
+
+        String html = Files.readString(reportFile.toPath());
+        Assert.assertTrue(html.contains("Suite"), "Header should be rendered");
+        Assert.assertFalse(html.contains("SKIPPED"), "Row of the retried test should be replaced");
+        Assert.assertTrue(html.indexOf("a-package") < html.indexOf("b-package"), "Packages should be sorted");
+        Assert.assertTrue(html.indexOf("Test a1") < html.indexOf("Test b1"), "Rows should be grouped by package");
+        Assert.assertEquals(html.indexOf("Test a1"), html.lastIndexOf("Test a1"), "Test row should be written once");
+        Assert.assertFalse(new File(reportFile.getPath() + ".tmp").exists());
+    }
+
+    @Test
+    public void testRowsAreSortedByTestName() throws IOException {
+        File dir = Files.createTempDirectory("email-report").toFile();
+        File reportFile = new File(dir, "emailable-report.html");
+        IncrementalEmailReport report = new IncrementalEmailReport(new File(dir, "fragments"), reportFile);
+
+        report.push(new TestResultItem("a-package", "Test a3", "", TestResultType.PASS, "", "a3.log", ""));
+        report.push(new TestResultItem("a-package", "Test a1", "", TestResultType.FAIL, "", "a1.log", "retry"));
+        report.push(new TestResultItem("a-package", "Test a2", "", TestResultType.PASS, "", "a2.log", ""));
+        // retried test is appended to the end of the fragment
+        report.push(new TestResultItem("a-package", "Test a1", "", TestResultType.PASS, "", "a1.log", ""));
+        report.write(reportFile, "Suite", "env", "1.0", "chrome", "now", List.of());
+
+        String html = Files.readString(reportFile.toPath());
+        Assert.assertTrue(html.indexOf("Test a1") < html.indexOf("Test a2"), "Rows should be sorted by test name");
+        Assert.assertTrue(html.indexOf("Test a2") < html.indexOf("Test a3"), "Rows should be sorted by test name");
+        Assert.assertEquals(html.indexOf("Test a1"), html.lastIndexOf("Test a1"), "Test row should be written once");
+    }
+
+    @Test
+    public void testPartialReportIsNotWrittenAfterFinalReport() throws IOException {
+        File dir = Files.createTempDirectory("email-report").toFile();
+        File reportFile = new File(dir, "emailable-report.html");
+        IncrementalEmailReport report = new IncrementalEmailReport(new File(dir, "fragments"), reportFile);
+        report.start("Suite", "env", "1.0", "chrome");
+
+        report.push(new TestResultItem("a-package", "Test a1", "", TestResultType.PASS, "", "a1.log", ""));
+        report.writePartialReport();
+        String html = Files.readString(reportFile.toPath());
+        Assert.assertTrue(html.contains("IN PROGRESS"), "Partial report should be written");
+        Assert.assertTrue(html.contains("Test a1"));
+
+        report.push(new TestResultItem("a-package", "Test a2", "", TestResultType.FAIL, "", "a2.log", ""));
+        report.write(reportFile, "Suite", "env", "1.0", "chrome", "now", List.of());
+        report.writePartialReport();
+        html = Files.readString(reportFile.toPath());
+        Assert.assertFalse(html.contains("IN PROGRESS"), "Final report should not be replaced by the partial one");
+        Assert.assertTrue(html.indexOf("Test a1") < html.indexOf("Test a2"));
+    }
+}
@@ -0,0 +1,58 @@
+/*******************************************************************************
+ * Copyright 2020-2022 Zebrunner Inc (https://www.zebrunner.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.qaprosoft.carina.core.foundation.report.email;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Tests for {@link ReportTemplate}
+ */
+public class ReportTemplateTest {
+
+    @Test
+    public void testRender() throws IOException {
+        ReportTemplate template = ReportTemplate.compile("<h2>${title}</h2><table>${result_rows}</table>${unknown}${");
+        StringWriter writer = new StringWriter();
+        template.render(writer, (placeholder, out) -> {
+            if ("${title}".equals(placeholder)) {
+                out.write("Suite");
+                return true;
+            } else if ("${result_rows}".equals(placeholder)) {
+                for (int i = 0; i < 3; i++) {
+                    out.write("<tr>" + i + "</tr>");
+                }
+                return true;
+            }
+            return false;
+        });
+        Assert.assertEquals(writer.toString(), "<h2>Suite</h2><table><tr>0</tr><tr>1</tr><tr>2</tr></table>${unknown}${");
+    }
+
+    @Test
+    public void testRenderWithoutPlaceholders() throws IOException {
+        StringWriter writer = new StringWriter();
+        ReportTemplate.compile("<br/>").render(writer, (placeholder, out) -> true);
+        Assert.assertEquals(writer.toString(), "<br/>");
+
+        writer = new StringWriter();
+        ReportTemplate.compile(null).render(writer, (placeholder, out) -> true);
+        Assert.assertEquals(writer.toString(), "");
+    }
+}
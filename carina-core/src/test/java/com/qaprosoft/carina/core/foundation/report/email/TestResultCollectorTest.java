@@ -0,0 +1,46 @@
+/*******************************************************************************
+ * Copyright 2020-2022 Zebrunner Inc (https://www.zebrunner.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.qaprosoft.carina.core.foundation.report.email;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.zebrunner.carina.utils.report.TestResult;
+import com.zebrunner.carina.utils.report.TestResultItem;
+import com.zebrunner.carina.utils.report.TestResultType;
+
+/**
+ * Tests for {@link TestResultCollector}
+ */
+public class TestResultCollectorTest {
+
+    @Test
+    public void testSuiteCountersAreUpdatedOnPush() {
+        // collector is shared by the whole run, so only the difference is verified
+        TestResult before = TestResultCollector.getSuiteResult();
+
+        TestResultCollector.push(new TestResultItem("collector", "Test counters 1", "", TestResultType.SKIP, "", "", "retry"));
+        TestResultCollector.push(new TestResultItem("collector", "Test counters 2", "", TestResultType.FAIL, "", "", "error"));
+        // retried test replaces the previous result
+        TestResultCollector.push(new TestResultItem("collector", "Test counters 1", "", TestResultType.PASS, "", "", ""));
+
+        TestResult after = TestResultCollector.getSuiteResult();
+        Assert.assertEquals(after.getAmountOfPassed() - before.getAmountOfPassed(), 1);
+        Assert.assertEquals(after.getAmountOfFailed() - before.getAmountOfFailed(), 1);
+        Assert.assertEquals(after.getAmountOfSkipped() - before.getAmountOfSkipped(), 0);
+        Assert.assertEquals(after.getTestResultType(), TestResultType.FAIL);
+    }
+}
@@ -0,0 +1,88 @@
+/*******************************************************************************
+ * Copyright 2020-2022 Zebrunner Inc (https://www.zebrunner.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.qaprosoft.carina.core.foundation.report.email;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.zebrunner.carina.utils.report.TestResultItem;
+import com.zebrunner.carina.utils.report.TestResultType;
+
+/**
+ * Tests for {@link TestResultStore}
+ */
+public class TestResultStoreTest {
+
+    @Test
+    public void testResultsAreReadBack() throws IOException {
+        File file = Files.createTempFile("test-results", ".bin").toFile();
+        TestResultStore store = new TestResultStore(file);
+
+        TestResultItem failed = new TestResultItem("store", "Test failed", "description", TestResultType.FAIL, null,
+                "test.log", "Assertion failed: \u00fcber\n\tat Test.java:1");
+        TestResultItem passed = new TestResultItem("store", "Test passed", "", TestResultType.PASS, "screenshots", "test.log", null);
+        TestResultStore.Record failedRecord = store.append(failed);
+        TestResultStore.Record passedRecord = store.append(passed);
+
+        Assert.assertSame(failedRecord.getPack(), passedRecord.getPack(), "Package name should be interned");
+        Assert.assertEquals(passedRecord.getResult(), TestResultType.PASS);
+
+        TestResultItem item = store.read(failedRecord);
+        Assert.assertEquals(item.getTest(), "Test failed");
+        Assert.assertEquals(item.getDescription(), "description");
+        Assert.assertNull(item.getLinkToScreenshots());
+        Assert.assertEquals(item.getFailReason(), failed.getFailReason());
+
+        item = store.read(passedRecord);
+        Assert.assertEquals(item.getLinkToScreenshots(), "screenshots");
+        Assert.assertNull(item.getFailReason());
+
+        store.close();
+        Assert.assertEquals(store.read(passedRecord).getTest(), "Test passed", "Closed file should be reopened on access");
+        store.close();
+    }
+
+    @Test
+    public void testWholeItemIsRestored() throws IOException {
+        File file = Files.createTempFile("test-results", ".bin").toFile();
+        TestResultStore store = new TestResultStore(file);
+        Assert.assertTrue(TestResultStore.isSupported());
+
+        TestResultItem config = new TestResultItem("store", "Before method", "description", TestResultType.FAIL, "screenshots",
+                "test.log", "Setup failed");
+        config.setConfig(true);
+        TestResultStore.Record record = store.append(config);
+
+        TestResultItem summary = record.getSummary();
+        Assert.assertTrue(summary.isConfig());
+        Assert.assertNull(summary.getFailReason(), "Bulky fields should not be kept in memory");
+        Assert.assertNull(summary.getDescription());
+
+        TestResultItem item = store.read(record);
+        Assert.assertTrue(item.isConfig(), "Fields which are not spilled should be restored");
+        Assert.assertEquals(item.getResult(), TestResultType.FAIL);
+        Assert.assertEquals(item.getDescription(), "description");
+        Assert.assertEquals(item.getLinkToScreenshots(), "screenshots");
+        Assert.assertEquals(item.getLinkToLog(), "test.log");
+        Assert.assertEquals(item.getFailReason(), "Setup failed");
+        Assert.assertNotSame(item, summary);
+        store.close();
+    }
+}
@@ -0,0 +1,96 @@
+/*******************************************************************************
+ * Copyright 2020-2022 Zebrunner Inc (https://www.zebrunner.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.zebrunner.carina.core.export;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import com.zebrunner.carina.utils.report.TestResultType;
+
+/**
+ * Tests for {@link JUnitXmlExporter} and {@link NdjsonExporter}
+ */
+public class ResultExporterTest {
+
+    @Test
+    public void testJUnitXmlCountersArePatchedOnClose() throws Exception {
+        File file = Files.createTempFile("junit-report", ".xml").toFile();
+        file.deleteOnExit();
+
+        JUnitXmlExporter exporter = new JUnitXmlExporter(file, "Smoke <suite>");
+        exporter.write(createResult("passed", TestResultType.PASS, null));
+        exporter.write(createResult("failed", TestResultType.FAIL, "expected [1] but found [2]\n\tat Test.java:10"));
+        ExportedResult retried = createResult("failed", TestResultType.SKIP, "retry");
+        retried.setRetried(true);
+        exporter.write(retried);
+        exporter.write(createResult("skipped", TestResultType.SKIP, "depends on failed"));
+        exporter.close();
+
+        Document document = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(file);
+        Element suite = document.getDocumentElement();
+        Assert.assertEquals(suite.getAttribute("name"), "Smoke <suite>");
+        Assert.assertEquals(Integer.parseInt(suite.getAttribute("tests")), 3, "Retried attempt should not be counted");
+        Assert.assertEquals(Integer.parseInt(suite.getAttribute("failures")), 1);
+        Assert.assertEquals(Integer.parseInt(suite.getAttribute("skipped")), 1);
+
+        Element failure = (Element) document.getElementsByTagName("failure").item(0);
+        Assert.assertEquals(failure.getAttribute("message"), "expected [1] but found [2]");
+        Assert.assertEquals(document.getElementsByTagName("property").getLength(), 5 * 3);
+    }
+
+    @Test
+    public void testNdjsonLinePerAttempt() throws IOException {
+        File file = Files.createTempFile("test-results", ".ndjson").toFile();
+        file.deleteOnExit();
+
+        NdjsonExporter exporter = new NdjsonExporter(file);
+        exporter.write(createResult("passed", TestResultType.PASS, null));
+        // lines are flushed without waiting for close
+        Assert.assertEquals(Files.readAllLines(file.toPath(), StandardCharsets.UTF_8).size(), 1);
+        exporter.write(createResult("failed \"quoted\"", TestResultType.FAIL, "line1\nline2"));
+        exporter.close();
+
+        List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+        Assert.assertEquals(lines.size(), 2);
+        Assert.assertTrue(lines.get(1).startsWith("{\"test\":\"failed \\\"quoted\\\"\",\"class\":\"com.example.LoginTest\""),
+                lines.get(1));
+        Assert.assertTrue(lines.get(1).contains("\"owner\":\"qpsdemo\",\"priority\":\"P1\",\"tags\":{\"feature\":[\"login\"]},"
+                + "\"testrail\":[\"C42\"],\"qtest\":[]"), lines.get(1));
+        Assert.assertTrue(lines.get(1).endsWith("\"failure\":\"line1\\nline2\"}"), lines.get(1));
+    }
+
+    private static ExportedResult createResult(String test, TestResultType type, String failReason) {
+        ExportedResult result = new ExportedResult(test, "com.example.LoginTest", "testLogin", type, 1000, 2500, failReason);
+        result.setOwner("qpsdemo");
+        result.setPriority("P1");
+        result.setTags(Map.of("feature", List.of("login")));
+        result.setTestRailCases(Set.of("C42"));
+        result.setLogLink("http://localhost/test.log");
+        return result;
+    }
+}
@@ -0,0 +1,65 @@
+/*******************************************************************************
+ * Copyright 2020-2022 Zebrunner Inc (https://www.zebrunner.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.zebrunner.carina.core.failure;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Tests for {@link FailureFingerprint}
+ */
+public class FailureFingerprintTest {
+
+    @Test
+    public void testIdsAreIgnored() {
+        FailureFingerprint first = FailureFingerprint.of(fail("Element 'button' is not found in session 5f2c9a1b3d after 10 seconds"));
+        FailureFingerprint second = FailureFingerprint.of(fail("Element 'button' is not found in session 77aa01cc9e after 20 seconds"));
+        Assert.assertEquals(first, second);
+        Assert.assertEquals(first.getSummary(), "java.lang.IllegalStateException: Element 'button' is not found in session <id> after <n> seconds");
+    }
+
+    @Test
+    public void testTypesAndCausesAreCompared() {
+        FailureFingerprint failure = FailureFingerprint.of(fail("message"));
+        Assert.assertNotEquals(FailureFingerprint.of(new IllegalArgumentException("message")), failure);
+
+        IllegalStateException withCause = fail("message");
+        withCause.initCause(new NullPointerException());
+        Assert.assertNotEquals(FailureFingerprint.of(withCause), failure);
+    }
+
+    @Test
+    public void testTraceIsNormalized() {
+        IllegalStateException failure = fail("Element is not found in session 5f2c9a1b3d");
+        failure.initCause(new NullPointerException("id 42"));
+        String trace = FailureFingerprint.of(failure).getTrace();
+        Assert.assertTrue(trace.startsWith("java.lang.IllegalStateException: Element is not found in session <id>\n\tat "), trace);
+        Assert.assertTrue(trace.contains("\nCaused by: java.lang.NullPointerException: id <n>\n"), trace);
+        Assert.assertFalse(trace.contains("5f2c9a1b3d"), trace);
+    }
+
+    @Test
+    public void testNormalizeMessage() {
+        Assert.assertEquals(FailureFingerprint.normalizeMessage("id 123e4567-e89b-12d3-a456-426614174000 at 2022-01-02 15:04:05\nsecond line"),
+                "id <uuid> at <n>-<n>-<n> <n>:<n>:<n>");
+        Assert.assertEquals(FailureFingerprint.normalizeMessage(null), "");
+    }
+
+    private static IllegalStateException fail(String message) {
+        // the same place of the failure for all tests
+        return new IllegalStateException(message);
+    }
+}
@@ -0,0 +1,132 @@
+/*******************************************************************************
+ * Copyright 2020-2022 Zebrunner Inc (https://www.zebrunner.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.zebrunner.carina.core.log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Tests for {@link AsyncLogWriter}
+ */
+public class AsyncLogWriterTest {
+
+    private static final TestLogPolicy POLICY = new TestLogPolicy(1024, 0, false, TestLogPolicy.Retention.HEAD);
+
+    @Test
+    public void testReopenedWriterIsCountedByLimit() throws IOException {
+        File dir = Files.createTempDirectory("async-log-writer").toFile();
+        TestLogWriterCache cache = new TestLogWriterCache(1);
+        AsyncLogWriter asyncWriter = new AsyncLogWriter(60_000, 10);
+        try {
+            TestLogWriter first = cache.get(new File(dir, "first.log"), POLICY);
+            cache.close(first.getFile());
+            TestLogWriter second = cache.get(new File(dir, "second.log"), POLICY);
+
+            // line of the finished test arrives after its log was closed
+            submit(asyncWriter, first, "late line\n");
+            asyncWriter.drain();
+
+            Assert.assertTrue(first.isOpen());
+            Assert.assertFalse(second.isOpen(), "Reopened writer should evict another one to stay within the limit");
+            Assert.assertEquals(cache.size(), 1);
+            Assert.assertEquals(Files.readString(first.getFile().toPath()), "late line\n");
+        } finally {
+            asyncWriter.stop();
+            cache.closeAll();
+        }
+    }
+
+    @Test
+    public void testFlushWaitsForLinesOfTheTestLog() throws IOException {
+        File dir = Files.createTempDirectory("async-log-writer").toFile();
+        TestLogWriterCache cache = new TestLogWriterCache(10);
+        // background thread would not write lines by itself during the test
+        AsyncLogWriter asyncWriter = new AsyncLogWriter(60_000, 100);
+        try {
+            TestLogWriter writer = cache.get(new File(dir, "test.log"), POLICY);
+            for (int i = 0; i < 5; i++) {
+                submit(asyncWriter, writer, "line " + i + "\n");
+            }
+            asyncWriter.flush(writer);
+            Assert.assertEquals(Files.readString(writer.getFile().toPath()), "line 0\nline 1\nline 2\nline 3\nline 4\n");
+        } finally {
+            asyncWriter.stop();
+            cache.closeAll();
+        }
+    }
+
+    @Test
+    public void testQueueIsBounded() throws Exception {
+        File dir = Files.createTempDirectory("async-log-writer").toFile();
+        TestLogWriterCache cache = new TestLogWriterCache(10);
+        AsyncLogWriter asyncWriter = new AsyncLogWriter(60_000, 2);
+        try {
+            TestLogWriter writer = cache.get(new File(dir, "test.log"), POLICY);
+            Thread producer = new Thread(() -> {
+                try {
+                    for (int i = 0; i < 3; i++) {
+                        submit(asyncWriter, writer, "line " + i + "\n");
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            producer.start();
+            producer.join(500);
+            Assert.assertTrue(producer.isAlive(), "Producer should wait for the free slot");
+            Assert.assertEquals(asyncWriter.getPendingLines(), 2);
+
+            asyncWriter.drain();
+            producer.join(5000);
+            Assert.assertFalse(producer.isAlive());
+            asyncWriter.flush(writer);
+            Assert.assertEquals(Files.readString(writer.getFile().toPath()), "line 0\nline 1\nline 2\n");
+        } finally {
+            asyncWriter.stop();
+            cache.closeAll();
+        }
+    }
+
+    @Test
+    public void testLinesAreWrittenDirectlyAfterStop() throws IOException {
+        File dir = Files.createTempDirectory("async-log-writer").toFile();
+        TestLogWriterCache cache = new TestLogWriterCache(10);
+        AsyncLogWriter asyncWriter = new AsyncLogWriter(60_000, 10);
+        try {
+            TestLogWriter writer = cache.get(new File(dir, "test.log"), POLICY);
+            submit(asyncWriter, writer, "before stop\n");
+            asyncWriter.stop();
+            Assert.assertEquals(Files.readString(writer.getFile().toPath()), "before stop\n", "Pending lines should be written on stop");
+
+            submit(asyncWriter, writer, "after stop\n");
+            Assert.assertEquals(asyncWriter.getPendingLines(), 0);
+            Assert.assertEquals(Files.readString(writer.getFile().toPath()), "before stop\nafter stop\n");
+        } finally {
+            cache.closeAll();
+        }
+    }
+
+    private static void submit(AsyncLogWriter writer, TestLogWriter logWriter, String line) throws IOException {
+        byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+        writer.submit(logWriter, bytes, bytes.length);
+    }
+}
@@ -0,0 +1,102 @@
+/*******************************************************************************
+ * Copyright 2020-2022 Zebrunner Inc (https://www.zebrunner.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.zebrunner.carina.core.log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.core.layout.PatternLayout;
+import org.apache.logging.log4j.message.SimpleMessage;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Tests for {@link BatchedConsoleAppender}
+ */
+public class BatchedConsoleAppenderTest {
+
+    @Test
+    public void testEventsAreWrittenInBatches() {
+        CountingStream stream = new CountingStream();
+        BatchedConsoleAppender appender = new BatchedConsoleAppender("test", null,
+                PatternLayout.newBuilder().withPattern("%m%n").build(), stream, 60_000, 100);
+
+        for (int i = 0; i < 10; i++) {
+            appender.append(createEvent("line " + i));
+        }
+        Assert.assertEquals(stream.writes, 0, "Events should be written by the background thread");
+
+        appender.drain();
+        Assert.assertEquals(stream.writes, 1, "Batch should be written by the single write");
+        Assert.assertEquals(stream.flushes, 1);
+        Assert.assertTrue(stream.toString(StandardCharsets.UTF_8).startsWith("line 0\nline 1\n"));
+        Assert.assertTrue(stream.toString(StandardCharsets.UTF_8).endsWith("line 9\n"));
+    }
+
+    @Test
+    public void testFullQueueIsWrittenSynchronously() {
+        CountingStream stream = new CountingStream();
+        BatchedConsoleAppender appender = new BatchedConsoleAppender("test", null,
+                PatternLayout.newBuilder().withPattern("%m%n").build(), stream, 60_000, 2);
+
+        appender.append(createEvent("1"));
+        appender.append(createEvent("2"));
+        appender.append(createEvent("3"));
+        Assert.assertEquals(stream.toString(StandardCharsets.UTF_8), "1\n2\n3\n", "Pending events should be written in order");
+    }
+
+    @Test
+    public void testStopWritesPendingEvents() {
+        CountingStream stream = new CountingStream();
+        BatchedConsoleAppender appender = new BatchedConsoleAppender("test", null,
+                PatternLayout.newBuilder().withPattern("%m%n").build(), stream, 60_000, 100);
+        appender.start();
+
+        appender.append(createEvent("1"));
+        appender.append(createEvent("2"));
+        Assert.assertTrue(appender.stop(1, TimeUnit.SECONDS), "Writer thread should be completed");
+        Assert.assertTrue(appender.isStopped());
+        Assert.assertEquals(stream.toString(StandardCharsets.UTF_8), "1\n2\n");
+    }
+
+    private static Log4jLogEvent createEvent(String message) {
+        return Log4jLogEvent.newBuilder()
+                .setLevel(Level.INFO)
+                .setMessage(new SimpleMessage(message))
+                .build();
+    }
+
+    private static class CountingStream extends ByteArrayOutputStream {
+        private int writes = 0;
+        private int flushes = 0;
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) {
+            writes++;
+            super.write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            flushes++;
+            super.flush();
+        }
+    }
+}
@@ -0,0 +1,97 @@
+/*******************************************************************************
+ * Copyright 2020-2022 Zebrunner Inc (https://www.zebrunner.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.zebrunner.carina.core.log;
+
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.message.SimpleMessage;
+import org.testng.Assert;
+import org.testng.SkipException;
+import org.testng.annotations.Test;
+
+/**
+ * Tests for {@link LogLineFormatter}
+ */
+public class LogLineFormatterTest {
+
+    // 2022-01-02 15:04:05 UTC
+    private static final long TIME_MILLIS = 1641135845000L;
+
+    @Test
+    public void testLogLineFormat() {
+        LogLineFormatter formatter = new LogLineFormatter(42);
+        int length = formatter.format(createEvent("message with \u00fcnicode and \ud83d\ude00"));
+
+        Assert.assertEquals(new String(formatter.getBytes(), 0, length, StandardCharsets.UTF_8),
+                "[2022-01-02 03:04:05] [42] [INFO] message with \u00fcnicode and \ud83d\ude00\n");
+    }
+
+    @Test
+    public void testJsonLineFormat() {
+        LogLineFormatter formatter = new LogLineFormatter(42);
+        LogEvent event = Log4jLogEvent.newBuilder()
+                .setLevel(Level.ERROR)
+                .setLoggerName("com.example.Test")
+                .setThreadName("main")
+                .setMessage(new SimpleMessage("quote \" and\nnew line"))
+                .setTimeMillis(TIME_MILLIS + 7)
+                .build();
+        int length = formatter.formatJson(event);
+
+        Assert.assertEquals(new String(formatter.getBytes(), 0, length, StandardCharsets.UTF_8),
+                "{\"timestamp\":\"2022-01-02T15:04:05.007Z\",\"thread\":\"main\",\"level\":\"ERROR\","
+                        + "\"logger\":\"com.example.Test\",\"test\":null,\"message\":\"quote \\\" and\\nnew line\"}\n");
+    }
+
+    @Test
+    public void testFormattingDoesNotAllocate() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)
+                || !((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported()) {
+            throw new SkipException("Thread allocated memory measurement is not supported by JVM");
+        }
+        com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) bean;
+
+        LogLineFormatter formatter = new LogLineFormatter(Thread.currentThread().getId());
+        LogEvent event = createEvent("Some regular log message of the test");
+        // warm up buffers, time prefix cache and JIT
+        for (int i = 0; i < 100_000; i++) {
+            formatter.format(event);
+        }
+
+        int events = 100_000;
+        long threadId = Thread.currentThread().getId();
+        long before = threadBean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < events; i++) {
+            formatter.format(event);
+        }
+        long allocatedPerEvent = (threadBean.getThreadAllocatedBytes(threadId) - before) / events;
+
+        Assert.assertTrue(allocatedPerEvent < 8, "Formatting allocates " + allocatedPerEvent + " bytes per event");
+    }
+
+    private static LogEvent createEvent(String message) {
+        return Log4jLogEvent.newBuilder()
+                .setLevel(Level.INFO)
+                .setMessage(new SimpleMessage(message))
+                .setTimeMillis(TIME_MILLIS)
+                .build();
+    }
+}
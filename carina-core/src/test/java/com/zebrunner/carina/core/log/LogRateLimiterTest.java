@@ -0,0 +1,82 @@
+/*******************************************************************************
+ * Copyright 2020-2022 Zebrunner Inc (https://www.zebrunner.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.zebrunner.carina.core.log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.message.SimpleMessage;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Tests for {@link LogRateLimiter}
+ */
+public class LogRateLimiterTest {
+
+    @Test
+    public void testDuplicatesAreCollapsed() {
+        List<String> summaries = new ArrayList<>();
+        LogRateLimiter limiter = new LogRateLimiter(Map.of(), true,
+                summary -> summaries.add(summary.getMessage().getFormattedMessage()));
+
+        Assert.assertTrue(limiter.tryAcquire(createEvent(Level.INFO, "polling")));
+        for (int i = 0; i < 4312; i++) {
+            Assert.assertFalse(limiter.tryAcquire(createEvent(Level.INFO, "polling")));
+        }
+        Assert.assertTrue(summaries.isEmpty());
+
+        Assert.assertTrue(limiter.tryAcquire(createEvent(Level.INFO, "done")));
+        Assert.assertEquals(summaries, List.of("Last message repeated 4,312 times"));
+        // the same text of another level is not a duplicate
+        Assert.assertTrue(limiter.tryAcquire(createEvent(Level.WARN, "done")));
+    }
+
+    @Test
+    public void testRateLimitPerLevel() {
+        List<String> summaries = new ArrayList<>();
+        AtomicLong clock = new AtomicLong();
+        LogRateLimiter limiter = new LogRateLimiter(LogRateLimiter.parseLimits("debug=2"), false,
+                summary -> summaries.add(summary.getMessage().getFormattedMessage()), clock::get);
+
+        Assert.assertTrue(limiter.tryAcquire(createEvent(Level.DEBUG, "1")));
+        Assert.assertTrue(limiter.tryAcquire(createEvent(Level.DEBUG, "2")));
+        Assert.assertFalse(limiter.tryAcquire(createEvent(Level.DEBUG, "3")));
+        // other levels are not limited
+        Assert.assertTrue(limiter.tryAcquire(createEvent(Level.INFO, "4")));
+        Assert.assertEquals(summaries, List.of("Lines suppressed by rate limit: DEBUG=1"));
+
+        // bucket is refilled in half a second by one token
+        clock.addAndGet(500_000_000L);
+        Assert.assertTrue(limiter.tryAcquire(createEvent(Level.DEBUG, "5")));
+        Assert.assertFalse(limiter.tryAcquire(createEvent(Level.DEBUG, "6")));
+
+        limiter.flushSummary();
+        Assert.assertEquals(summaries.size(), 2);
+    }
+
+    private static LogEvent createEvent(Level level, String message) {
+        return Log4jLogEvent.newBuilder()
+                .setLevel(level)
+                .setMessage(new SimpleMessage(message))
+                .build();
+    }
+}
@@ -0,0 +1,74 @@
+/*******************************************************************************
+ * Copyright 2020-2022 Zebrunner Inc (https://www.zebrunner.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.zebrunner.carina.core.log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Tests for {@link MappedFileOutputStream}
+ */
+public class MappedFileOutputStreamTest {
+
+    @Test
+    public void testWriteAcrossRegionsAndTruncate() throws IOException {
+        File file = Files.createTempFile("test", ".log").toFile();
+        file.deleteOnExit();
+
+        MappedFileOutputStream stream = new MappedFileOutputStream(file, 8);
+        stream.write("first line\n".getBytes(StandardCharsets.UTF_8));
+        stream.write('x');
+        Assert.assertTrue(file.length() >= 12, "File should be extended by mapped regions");
+        stream.close();
+        Assert.assertEquals(file.length(), 12, "File should be truncated to the written length");
+
+        // reopened stream appends
+        stream = new MappedFileOutputStream(file, 8);
+        stream.write("\nsecond line\n".getBytes(StandardCharsets.UTF_8));
+        stream.close();
+
+        Assert.assertEquals(Files.readString(file.toPath()), "first line\nx\nsecond line\n");
+    }
+
+    @Test
+    public void testFileIsTruncatedAfterRegionsAreReleased() throws IOException {
+        Assert.assertTrue(MappedFileOutputStream.isSupported(), "Mapped regions should be released explicitly");
+        File file = Files.createTempFile("test", ".log").toFile();
+        file.deleteOnExit();
+        Files.writeString(file.toPath(), "existing\n");
+
+        MappedFileOutputStream stream = new MappedFileOutputStream(file, 1024);
+        Assert.assertEquals(file.length(), 9 + 1024, "File should be extended by the mapped region");
+        stream.close();
+        Assert.assertEquals(file.length(), 9, "Unused mapped region should be truncated");
+
+        // several filled regions
+        stream = new MappedFileOutputStream(file, 4);
+        for (int i = 0; i < 10; i++) {
+            stream.write(("line" + i + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+        stream.close();
+        stream.close();
+        Assert.assertEquals(file.length(), 9 + 60);
+        Assert.assertTrue(Files.readString(file.toPath()).endsWith("line8\nline9\n"));
+        Assert.assertTrue(file.delete(), "File should not be locked by the released mapping");
+    }
+}
@@ -0,0 +1,114 @@
+/*******************************************************************************
+ * Copyright 2020-2022 Zebrunner Inc (https://www.zebrunner.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.zebrunner.carina.core.log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Tests for {@link TestLogBuffer}
+ */
+public class TestLogBufferTest {
+
+    private static final TestLogPolicy POLICY = new TestLogPolicy(1024, 0, false, TestLogPolicy.Retention.HEAD);
+
+    @Test
+    public void testFailedTestLogIsPersisted() throws IOException {
+        File log = createLogFile();
+        TestLogWriter writer = new TestLogWriter(log, POLICY);
+        // 8 bytes per line, so buffer keeps the last 3 lines only
+        TestLogBuffer buffer = new TestLogBuffer(writer, 24, true);
+        for (int i = 0; i < 5; i++) {
+            write(buffer, "line " + i + "\n\n");
+        }
+        Assert.assertEquals(log.length(), 0, "Log should not be written before test result");
+
+        buffer.persist();
+        write(buffer, "after\n");
+        writer.close();
+
+        String content = Files.readString(log.toPath());
+        Assert.assertTrue(content.startsWith("[First 16 bytes"), content);
+        Assert.assertTrue(content.endsWith("line 2\n\nline 3\n\nline 4\n\nafter\n"), content);
+    }
+
+    @Test
+    public void testPassedTestLogIsDiscarded() throws IOException {
+        File log = createLogFile();
+        TestLogWriter writer = new TestLogWriter(log, POLICY);
+        TestLogBuffer buffer = new TestLogBuffer(writer, 1024, false);
+        write(buffer, "line\n");
+
+        buffer.discard();
+        writer.close();
+
+        String content = Files.readString(log.toPath());
+        Assert.assertFalse(content.contains("line\n"), content);
+        Assert.assertTrue(content.contains("5 bytes are discarded"), content);
+    }
+
+    @Test
+    public void testDiscardedTestLogIsNotCreated() throws IOException {
+        File log = createLogFile();
+        TestLogBuffer buffer = new TestLogBuffer(new TestLogWriter(log, POLICY, TestLogStorage.BUFFERED, true), 1024, false);
+        write(buffer, "line\n");
+        buffer.discard();
+        Assert.assertFalse(log.exists(), "Test log should not be created for the discarded log");
+
+        File failedLog = createLogFile();
+        TestLogWriter writer = new TestLogWriter(failedLog, POLICY, TestLogStorage.BUFFERED, true);
+        buffer = new TestLogBuffer(writer, 1024, false);
+        write(buffer, "line\n");
+        Assert.assertFalse(failedLog.exists(), "Test log should be created on persist");
+        buffer.persist();
+        writer.close();
+        Assert.assertEquals(Files.readString(failedLog.toPath()), "line\n");
+    }
+
+    @Test
+    public void testBufferPoolIsLimited() throws IOException {
+        TestLogBuffer.clearPool();
+        TestLogWriter writer = new TestLogWriter(createLogFile(), POLICY, TestLogStorage.BUFFERED, true);
+        TestLogBuffer[] buffers = new TestLogBuffer[TestLogBuffer.MAX_POOLED_BUFFERS + 2];
+        for (int i = 0; i < buffers.length; i++) {
+            buffers[i] = new TestLogBuffer(writer, 16, false);
+            write(buffers[i], "line\n");
+        }
+        for (TestLogBuffer buffer : buffers) {
+            buffer.discard();
+        }
+        Assert.assertEquals(TestLogBuffer.getPooledBuffers(), TestLogBuffer.MAX_POOLED_BUFFERS);
+
+        TestLogBuffer.clearPool();
+        Assert.assertEquals(TestLogBuffer.getPooledBuffers(), 0);
+    }
+
+    private static void write(TestLogBuffer buffer, String line) throws IOException {
+        byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+        buffer.write(bytes, bytes.length);
+    }
+
+    private static File createLogFile() throws IOException {
+        File dir = Files.createTempDirectory("test-log-buffer").toFile();
+        dir.deleteOnExit();
+        return new File(dir, "test.log");
+    }
+}
@@ -0,0 +1,86 @@
+/*******************************************************************************
+ * Copyright 2020-2022 Zebrunner Inc (https://www.zebrunner.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.zebrunner.carina.core.log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Tests for {@link TestLogWriterCache}
+ */
+public class TestLogWriterCacheTest {
+
+    private static final TestLogPolicy POLICY = new TestLogPolicy(1024, 0, false, TestLogPolicy.Retention.HEAD);
+
+    @Test
+    public void testLeastRecentlyUsedWriterIsClosed() throws IOException {
+        File dir = Files.createTempDirectory("test-log-cache").toFile();
+        TestLogWriterCache cache = new TestLogWriterCache(2);
+
+        TestLogWriter first = cache.get(new File(dir, "first.log"), POLICY);
+        TestLogWriter second = cache.get(new File(dir, "second.log"), POLICY);
+        write(first, "first 1\n");
+        TestLogWriter third = cache.get(new File(dir, "third.log"), POLICY);
+
+        Assert.assertFalse(first.isOpen(), "Least recently used writer should be closed");
+        Assert.assertTrue(second.isOpen());
+        Assert.assertTrue(third.isOpen());
+        Assert.assertEquals(cache.size(), 2);
+        Assert.assertEquals(cache.getEvictions(), 1);
+
+        // closed writer continues the same file
+        cache.touch(first);
+        write(first, "first 2\n");
+        first.flush();
+        Assert.assertFalse(second.isOpen(), "Writer should be closed when evicted one is reopened");
+        Assert.assertEquals(Files.readString(new File(dir, "first.log").toPath()), "first 1\nfirst 2\n");
+
+        cache.closeAll();
+        Assert.assertFalse(first.isOpen());
+        Assert.assertFalse(third.isOpen());
+        Assert.assertEquals(cache.size(), 0);
+    }
+
+    @Test
+    public void testEvictedWriterIsRegisteredAgainOnWrite() throws IOException {
+        File dir = Files.createTempDirectory("test-log-cache").toFile();
+        TestLogWriterCache cache = new TestLogWriterCache(1);
+
+        TestLogWriter first = cache.get(new File(dir, "first.log"), POLICY);
+        TestLogWriter second = cache.get(new File(dir, "second.log"), POLICY);
+        Assert.assertFalse(first.isOpen());
+
+        // the owner writes without checking the writer state
+        write(first, "first 1\n");
+        Assert.assertTrue(first.isOpen());
+        Assert.assertFalse(second.isOpen(), "Reopened writer should evict another one to stay within the limit");
+        Assert.assertEquals(cache.size(), 1);
+
+        cache.close(first.getFile());
+        Assert.assertFalse(first.isOpen(), "Reopened writer should be closed by the test finish");
+        Assert.assertEquals(Files.readString(first.getFile().toPath()), "first 1\n");
+    }
+
+    private static void write(TestLogWriter writer, String line) throws IOException {
+        byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+        writer.write(bytes, bytes.length);
+    }
+}
@@ -0,0 +1,129 @@
+/*******************************************************************************
+ * Copyright 2020-2022 Zebrunner Inc (https://www.zebrunner.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.zebrunner.carina.core.log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.zip.GZIPInputStream;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Tests for {@link TestLogWriter}
+ */
+public class TestLogWriterTest {
+
+    @Test
+    public void testHeadRetentionCountsBytes() throws IOException {
+        File log = createLogFile();
+        // 10 bytes per line as umlaut is encoded by 2 bytes
+        TestLogWriter writer = new TestLogWriter(log, new TestLogPolicy(50, 0, false, TestLogPolicy.Retention.HEAD));
+        for (int i = 0; i < 10; i++) {
+            write(writer, "line \u00fc " + i + "\n");
+        }
+        writer.close();
+
+        String content = Files.readString(log.toPath());
+        Assert.assertTrue(content.startsWith("line \u00fc 0\n"), content);
+        Assert.assertTrue(content.contains("line \u00fc 4\n"), content);
+        Assert.assertFalse(content.contains("line \u00fc 5\n"), "Log should be truncated by the byte size: " + content);
+        Assert.assertTrue(content.contains("truncated"), "Truncation marker is missed: " + content);
+    }
+
+    @Test
+    public void testRollingWithCompression() throws IOException {
+        File log = createLogFile();
+        TestLogWriter writer = new TestLogWriter(log, new TestLogPolicy(1000, 20, true, TestLogPolicy.Retention.HEAD));
+        for (int i = 0; i < 5; i++) {
+            write(writer, "line " + i + "\n");
+        }
+        writer.close();
+        TestLogWriter.awaitCompression();
+
+        File firstSegment = new File(log.getParentFile(), "test.log.1.gz");
+        Assert.assertTrue(firstSegment.exists(), "Completed segment should be compressed");
+        Assert.assertFalse(new File(log.getParentFile(), "test.log.1").exists(), "Uncompressed segment should be removed");
+        Assert.assertEquals(readCompressed(firstSegment), "line 0\nline 1\n");
+        Assert.assertEquals(Files.readString(log.toPath()), "line 4\n");
+    }
+
+    @Test
+    public void testHeadTailRetention() throws IOException {
+        File log = createLogFile();
+        // head: first 35 bytes, tail: last ~35 bytes in 14 bytes segments
+        TestLogWriter writer = new TestLogWriter(log, new TestLogPolicy(70, 14, false, TestLogPolicy.Retention.HEAD_TAIL));
+        for (int i = 0; i < 30; i++) {
+            write(writer, String.format("line %02d\n", i));
+        }
+        writer.close();
+
+        File dir = log.getParentFile();
+        Assert.assertEquals(Files.readString(new File(dir, "test.log.1").toPath()), "line 00\n");
+        Assert.assertFalse(new File(dir, "test.log.10").exists(), "Middle segments should be removed");
+        Assert.assertTrue(Files.readString(log.toPath()).endsWith("line 29\n"));
+
+        long total = 0;
+        for (File file : dir.listFiles()) {
+            total += file.length();
+        }
+        Assert.assertTrue(total < 70 + 200, "Log size is not bounded: " + total);
+    }
+
+    @Test
+    public void testStructuredLogIndex() throws IOException {
+        File log = createLogFile();
+        TestLogWriter writer = new TestLogWriter(log, new TestLogPolicy(1000, 0, false, TestLogPolicy.Retention.HEAD));
+        // 2022-01-02T15:04:05Z
+        long time = 1641135845000L;
+        writeIndexed(writer, "{\"level\":\"INFO\"}\n", "INFO", time);
+        writeIndexed(writer, "{\"level\":\"ERROR\"}\n", "ERROR", time + 60_000);
+        writeIndexed(writer, "{\"level\":\"INFO\"}\n", "INFO", time + 61_000);
+        writer.close();
+
+        String index = Files.readString(new File(log.getPath() + TestLogIndex.INDEX_SUFFIX).toPath());
+        Assert.assertEquals(index, "{\"segments\":[0],"
+                + "\"minutes\":{\"2022-01-02T15:04:00Z\":0,\"2022-01-02T15:05:00Z\":17},"
+                + "\"levels\":{\"ERROR\":[17]},"
+                + "\"counts\":{\"INFO\":2,\"ERROR\":1}}\n");
+    }
+
+    private static void writeIndexed(TestLogWriter writer, String line, String level, long time) throws IOException {
+        byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+        writer.write(bytes, bytes.length, level, time);
+    }
+
+    private static void write(TestLogWriter writer, String line) throws IOException {
+        byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+        writer.write(bytes, bytes.length);
+    }
+
+    private static File createLogFile() throws IOException {
+        File dir = Files.createTempDirectory("test-log").toFile();
+        dir.deleteOnExit();
+        return new File(dir, "test.log");
+    }
+
+    private static String readCompressed(File file) throws IOException {
+        try (InputStream in = new GZIPInputStream(new FileInputStream(file))) {
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,108 @@
+/*******************************************************************************
+ * Copyright 2020-2022 Zebrunner Inc (https://www.zebrunner.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.zebrunner.carina.core.log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.impl.Log4jLogEvent;
+import org.apache.logging.log4j.message.SimpleMessage;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.zebrunner.carina.core.context.CarinaExecutors;
+import com.zebrunner.carina.utils.report.ReportContext;
+
+/**
+ * Tests for {@link ThreadLogAppender}
+ */
+public class ThreadLogAppenderTest {
+
+    @Test
+    public void testWorkerLinesOfFailedTestArePersisted() throws Exception {
+        ThreadLogAppender appender = createAppender();
+        ExecutorService executor = CarinaExecutors.newFixedThreadPool(1);
+        try {
+            File log = new File(ReportContext.setCustomTestDirName(UUID.randomUUID().toString()), "test.log");
+            appender.append(createEvent("owner line"));
+            executor.submit(() -> appender.append(createEvent("worker line"))).get();
+            Assert.assertFalse(read(log).contains("worker line"), "Log should not be written before test result");
+
+            ThreadLogAppender.persistTestLog();
+            ThreadLogAppender.closeTestLog();
+
+            String content = read(log);
+            Assert.assertTrue(content.contains("owner line"), content);
+            Assert.assertTrue(content.contains("worker line"), content);
+        } finally {
+            executor.shutdownNow();
+            ReportContext.emptyTestDirData();
+        }
+    }
+
+    @Test
+    public void testWorkerLinesOfPassedTestAreDiscarded() throws Exception {
+        ThreadLogAppender appender = createAppender();
+        ExecutorService executor = CarinaExecutors.newFixedThreadPool(1);
+        try {
+            File log = new File(ReportContext.setCustomTestDirName(UUID.randomUUID().toString()), "test.log");
+            appender.append(createEvent("owner line"));
+            executor.submit(() -> appender.append(createEvent("worker line"))).get();
+
+            ThreadLogAppender.discardTestLog();
+            Assert.assertFalse(log.exists(), "Test log should not be created for the passed test");
+            Assert.assertEquals(ReportContext.getTestLogLink(), "", "Passed test should not link the missing test log");
+            ThreadLogAppender.closeTestLog();
+            int openFiles = ThreadLogAppender.getOpenLogFiles();
+            // worker outlives the test
+            executor.submit(() -> appender.append(createEvent("late line"))).get();
+
+            String content = read(log);
+            Assert.assertFalse(content.contains("owner line"), content);
+            Assert.assertFalse(content.contains("worker line"), content);
+            Assert.assertFalse(content.contains("bytes are discarded"), content);
+            Assert.assertTrue(content.endsWith("late line\n") && content.indexOf('\n') == content.length() - 1,
+                    "Test log should contain the late line only: " + content);
+            Assert.assertEquals(ThreadLogAppender.getOpenLogFiles(), openFiles, "Worker should not keep test log open");
+        } finally {
+            executor.shutdownNow();
+            ReportContext.emptyTestDirData();
+        }
+    }
+
+    private static ThreadLogAppender createAppender() {
+        return ThreadLogAppender.create("test", null, null, "buffered", false, 200, 1024, "text", false, 1024, 0, false, "head", 256,
+                true, 1, false, "", false);
+    }
+
+    private static String read(File log) throws IOException {
+        return log.exists() ? Files.readString(log.toPath()) : "";
+    }
+
+    private static LogEvent createEvent(String message) {
+        return Log4jLogEvent.newBuilder()
+                .setLevel(Level.INFO)
+                .setLoggerName("test")
+                .setMessage(new SimpleMessage(message))
+                .setTimeMillis(System.currentTimeMillis())
+                .build();
+    }
+}
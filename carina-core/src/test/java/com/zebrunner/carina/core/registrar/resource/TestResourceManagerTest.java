@@ -0,0 +1,126 @@
+/*******************************************************************************
+ * Copyright 2020-2022 Zebrunner Inc (https://www.zebrunner.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.zebrunner.carina.core.registrar.resource;
+
+import java.lang.reflect.Proxy;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.testng.Assert;
+import org.testng.ITestNGMethod;
+import org.testng.annotations.Test;
+import org.testng.internal.ConstructorOrMethod;
+
+/**
+ * Tests for {@link TestResourceManager}
+ */
+public class TestResourceManagerTest {
+
+    @Test
+    public void testInvalidLimitsAreIgnored() throws Exception {
+        TestResourceManager manager = new TestResourceManager(() -> "invalid=x,zero=0,broken,device=1", () -> 1);
+        ITestNGMethod method = createMethod("useAll");
+
+        Assert.assertTrue(manager.acquire(method));
+        try {
+            // invalid and zero capacities are not limited, so the other test waits for the device only
+            Assert.assertFalse(acquireInOtherThread(manager, method), "Device should be busy");
+            Assert.assertTrue(acquireInOtherThread(manager, createMethod("useInvalid")), "Invalid resources should not be limited");
+        } finally {
+            manager.release();
+        }
+        Assert.assertTrue(acquireInOtherThread(manager, method), "Device should be released");
+    }
+
+    @Test
+    public void testChangedCapacityIsApplied() throws Exception {
+        AtomicReference<String> limits = new AtomicReference<>("device=1");
+        TestResourceManager manager = new TestResourceManager(limits::get, () -> 1);
+        ITestNGMethod method = createMethod("useDevice");
+
+        Assert.assertTrue(manager.acquire(method));
+        try {
+            Assert.assertFalse(acquireInOtherThread(manager, method));
+            limits.set("device=2");
+            Assert.assertTrue(acquireInOtherThread(manager, method), "Increased capacity should be applied");
+            limits.set("NULL");
+            Assert.assertTrue(acquireInOtherThread(manager, method), "Not declared resource should not be limited");
+        } finally {
+            manager.release();
+        }
+    }
+
+    @Test
+    public void testPermitsAreReleasedOnTimeout() throws Exception {
+        TestResourceManager manager = new TestResourceManager(() -> "device=1,db=1", () -> 1);
+
+        Assert.assertTrue(manager.acquire(createMethod("useDevice")));
+        try {
+            // db is acquired before the device, so it should be released when the device wait is timed out
+            Assert.assertFalse(acquireInOtherThread(manager, createMethod("useAll")));
+            Assert.assertTrue(acquireInOtherThread(manager, createMethod("useDb")), "DB should be released after the timeout");
+        } finally {
+            manager.release();
+        }
+    }
+
+    @TestResource(name = "device")
+    @TestResource(name = "db")
+    @TestResource(name = "invalid")
+    @TestResource(name = "zero")
+    private void useAll() {
+    }
+
+    @TestResource(name = "invalid")
+    @TestResource(name = "zero")
+    private void useInvalid() {
+    }
+
+    @TestResource(name = "device")
+    private void useDevice() {
+    }
+
+    @TestResource(name = "db")
+    private void useDb() {
+    }
+
+    private static boolean acquireInOtherThread(TestResourceManager manager, ITestNGMethod method)
+            throws InterruptedException, ExecutionException {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return manager.acquire(method);
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            } finally {
+                manager.release();
+            }
+        }).get();
+    }
+
+    private static ITestNGMethod createMethod(String name) throws NoSuchMethodException {
+        ConstructorOrMethod method = new ConstructorOrMethod(TestResourceManagerTest.class.getDeclaredMethod(name));
+        return proxy(ITestNGMethod.class, Map.of("getConstructorOrMethod", method, "getRealClass", TestResourceManagerTest.class,
+                "getMethodName", name));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(Class<T> type, Map<String, Object> values) {
+        return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type },
+                (proxy, method, args) -> values.get(method.getName()));
+    }
+}
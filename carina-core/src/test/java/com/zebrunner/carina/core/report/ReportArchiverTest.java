@@ -0,0 +1,77 @@
+/*******************************************************************************
+ * Copyright 2020-2022 Zebrunner Inc (https://www.zebrunner.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.zebrunner.carina.core.report;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Tests for {@link ReportArchiver}
+ */
+public class ReportArchiverTest {
+
+    @Test
+    public void testArchiveIsReadableByZipFile() throws IOException {
+        File dir = Files.createTempDirectory("report").toFile();
+        String log = "INFO line of the test log\n".repeat(10000);
+        write(new File(dir, "test/test.log"), log.getBytes(StandardCharsets.UTF_8));
+        byte[] screenshot = new byte[100000];
+        new Random(1).nextBytes(screenshot);
+        write(new File(dir, "test/1.png"), screenshot);
+        write(new File(dir, "empty.txt"), new byte[0]);
+        // bigger than the in-memory limit of the compressed entry
+        byte[] big = new byte[5 * 1024 * 1024];
+        write(new File(dir, "artifacts/big.bin"), big);
+        for (int i = 0; i < 50; i++) {
+            write(new File(dir, "logs/log-" + i + ".txt"), ("log " + i).getBytes(StandardCharsets.UTF_8));
+        }
+
+        File archive = new File(dir.getParentFile(), dir.getName() + ".zip");
+        archive.deleteOnExit();
+        new ReportArchiver(true, 3).archive(dir, archive);
+
+        try (ZipFile zip = new ZipFile(archive, StandardCharsets.UTF_8)) {
+            Assert.assertEquals(zip.size(), 54);
+
+            ZipEntry logEntry = zip.getEntry("test/test.log");
+            Assert.assertEquals(logEntry.getMethod(), ZipEntry.DEFLATED);
+            Assert.assertTrue(logEntry.getCompressedSize() < logEntry.getSize(), "Log should be compressed");
+            Assert.assertEquals(new String(zip.getInputStream(logEntry).readAllBytes(), StandardCharsets.UTF_8), log);
+
+            ZipEntry screenshotEntry = zip.getEntry("test/1.png");
+            Assert.assertEquals(screenshotEntry.getMethod(), ZipEntry.STORED, "Images should not be recompressed");
+            Assert.assertEquals(zip.getInputStream(screenshotEntry).readAllBytes(), screenshot);
+
+            Assert.assertEquals(zip.getInputStream(zip.getEntry("empty.txt")).readAllBytes().length, 0);
+            Assert.assertEquals(zip.getInputStream(zip.getEntry("artifacts/big.bin")).readAllBytes(), big);
+            Assert.assertEquals(new String(zip.getInputStream(zip.getEntry("logs/log-7.txt")).readAllBytes(),
+                    StandardCharsets.UTF_8), "log 7");
+        }
+    }
+
+    private static void write(File file, byte[] content) throws IOException {
+        file.getParentFile().mkdirs();
+        Files.write(file.toPath(), content);
+    }
+}
@@ -0,0 +1,140 @@
+/*******************************************************************************
+ * Copyright 2020-2022 Zebrunner Inc (https://www.zebrunner.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.zebrunner.carina.core.report;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Tests for {@link ReportRetentionManager}
+ */
+public class ReportRetentionManagerTest {
+
+    private static final int KB = 1024;
+
+    @Test
+    public void testArtifactsOfOldRunsAreRemoved() throws IOException {
+        File root = Files.createTempDirectory("reports").toFile();
+        File oldRun = createRun(root, "1", 1000);
+        File previousRun = createRun(root, "2", 2000);
+        writeFile(new File(oldRun, "downloads/file.zip"), KB);
+        writeFile(new File(previousRun, "downloads/file.zip"), KB);
+        File baseDir = createRun(root, "3", 3000);
+
+        ReportRetentionManager manager = new ReportRetentionManager(baseDir, "downloads", -1, 2);
+        manager.flush();
+
+        Assert.assertFalse(new File(oldRun, "downloads").exists(), "Artifacts of the run out of history should be removed");
+        Assert.assertTrue(new File(oldRun, "test.log").exists());
+        Assert.assertTrue(new File(previousRun, "downloads/file.zip").exists());
+    }
+
+    @Test
+    public void testPassedTestsArePrunedFirst() throws IOException {
+        File root = Files.createTempDirectory("reports").toFile();
+        File previousRun = createRun(root, "1", 1000);
+        writeFile(new File(previousRun, "test/1.png"), 4 * KB);
+        File baseDir = createRun(root, "2", 2000);
+
+        File failed = new File(baseDir, "failed");
+        writeFile(new File(failed, "1.png"), 4 * KB);
+        File passed = new File(baseDir, "passed");
+        writeFile(new File(passed, "1.png"), 4 * KB);
+        writeFile(new File(passed, "thumbnails/1.png"), KB);
+        writeFile(new File(passed, "test.log"), KB);
+
+        // previous run 5 KB, failed 4 KB, passed 6 KB
+        ReportRetentionManager manager = new ReportRetentionManager(baseDir, "downloads", 14 * KB, -1);
+        manager.register(failed, false);
+        manager.register(passed, true);
+        manager.flush();
+
+        Assert.assertFalse(new File(passed, "1.png").exists(), "Screenshots of the passed test should be removed");
+        Assert.assertFalse(new File(passed, "thumbnails").exists());
+        Assert.assertTrue(new File(passed, "test.log").exists(), "Thinning is enough to fit the budget");
+        Assert.assertTrue(previousRun.exists());
+        Assert.assertEquals(manager.getUsedBytes(), 10 * KB);
+
+        File anotherFailed = new File(baseDir, "another");
+        writeFile(new File(anotherFailed, "1.png"), 8 * KB);
+        manager.register(anotherFailed, false);
+        manager.flush();
+
+        Assert.assertFalse(passed.exists(), "Passed test should be removed before previous runs");
+        Assert.assertFalse(previousRun.exists(), "Previous run should be removed when passed tests are not enough");
+        Assert.assertTrue(new File(failed, "1.png").exists(), "Failed tests should be kept");
+        Assert.assertTrue(new File(anotherFailed, "1.png").exists());
+    }
+
+    @Test
+    public void testOnlyRunDirectoriesArePruned() throws IOException {
+        File root = Files.createTempDirectory("reports").toFile();
+        File previousRun = createRun(root, "1", 1000);
+        writeFile(new File(previousRun, "test/1.png"), KB);
+        File other = createRun(root, "gallery", 500);
+        File baseDir = createRun(root, "2", 2000);
+
+        ReportRetentionManager manager = new ReportRetentionManager(baseDir, "downloads", KB, -1);
+        manager.flush();
+
+        Assert.assertFalse(previousRun.exists(), "Previous run should be removed as the budget is exceeded");
+        Assert.assertTrue(other.exists(), "Directory which is not a run should be kept");
+    }
+
+    @Test
+    public void testHardLinksAreCountedOnce() throws IOException {
+        File root = Files.createTempDirectory("reports").toFile();
+        File baseDir = createRun(root, "1", 1000);
+        File first = new File(baseDir, "first");
+        writeFile(new File(first, "1.png"), 4 * KB);
+        File second = new File(baseDir, "second");
+        second.mkdirs();
+        Files.createLink(new File(second, "1.png").toPath(), new File(first, "1.png").toPath());
+
+        ReportRetentionManager manager = new ReportRetentionManager(baseDir, "downloads", 4 * KB, -1);
+        manager.register(first, false);
+        manager.register(second, true);
+        manager.flush();
+
+        Assert.assertEquals(manager.getUsedBytes(), 4 * KB, "Hard linked screenshot should be counted once");
+
+        File third = new File(baseDir, "third");
+        writeFile(new File(third, "1.png"), KB);
+        manager.register(third, false);
+        manager.flush();
+
+        Assert.assertFalse(new File(second, "1.png").exists());
+        Assert.assertTrue(new File(first, "1.png").exists());
+        Assert.assertEquals(manager.getPrunedBytes(), 0, "Space is not released while the file has other links");
+        Assert.assertEquals(manager.getUsedBytes(), 5 * KB);
+    }
+
+    private static File createRun(File root, String name, long lastModified) throws IOException {
+        File run = new File(root, name);
+        writeFile(new File(run, "test.log"), KB);
+        Assert.assertTrue(run.setLastModified(lastModified));
+        return run;
+    }
+
+    private static void writeFile(File file, int size) throws IOException {
+        file.getParentFile().mkdirs();
+        Files.write(file.toPath(), new byte[size]);
+    }
+}
@@ -0,0 +1,150 @@
+/*******************************************************************************
+ * Copyright 2020-2022 Zebrunner Inc (https://www.zebrunner.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.zebrunner.carina.core.report;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.imageio.ImageIO;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Tests for {@link ScreenshotProcessor}
+ */
+public class ScreenshotProcessorTest {
+
+    @Test
+    public void testConsecutiveDuplicatesAreRemoved() throws IOException {
+        File testDir = Files.createTempDirectory("test").toFile();
+        writeImage(new File(testDir, "1.png"), Color.WHITE, 200);
+        // one changed pixel does not change the perceptual hash
+        BufferedImage cursor = createImage(Color.WHITE, 200);
+        cursor.setRGB(50, 50, Color.BLACK.getRGB());
+        ImageIO.write(cursor, "png", new File(testDir, "2.png"));
+        writeImage(new File(testDir, "3.png"), Color.BLUE, 200);
+        writeImage(new File(testDir, "4.png"), Color.WHITE, 200);
+        File thumbnails = new File(testDir, "thumbnails");
+        thumbnails.mkdir();
+        writeImage(new File(thumbnails, "2.png"), Color.WHITE, 20);
+
+        ScreenshotProcessor processor = new ScreenshotProcessor(true, 0, -1);
+        processor.process(testDir);
+
+        Assert.assertTrue(new File(testDir, "1.png").exists());
+        Assert.assertFalse(new File(testDir, "2.png").exists(), "Duplicate of the previous frame should be removed");
+        Assert.assertFalse(new File(thumbnails, "2.png").exists(), "Thumbnail of the duplicate should be removed");
+        Assert.assertTrue(new File(testDir, "3.png").exists());
+        Assert.assertTrue(new File(testDir, "4.png").exists(), "Only consecutive frames are deduplicated");
+        Assert.assertEquals(processor.getDuplicates(), 1);
+    }
+
+    @Test
+    public void testIdenticalImagesOfTestsAreStoredOnce() throws IOException {
+        File firstDir = Files.createTempDirectory("test").toFile();
+        File secondDir = Files.createTempDirectory("test").toFile();
+        writeImage(new File(firstDir, "1.png"), Color.RED, 100);
+        writeImage(new File(secondDir, "1.png"), Color.RED, 100);
+
+        ScreenshotProcessor processor = new ScreenshotProcessor(true, 0, -1);
+        processor.process(firstDir);
+        processor.process(secondDir);
+
+        Assert.assertEquals(processor.getLinked(), 1);
+        Assert.assertTrue(Files.isSameFile(new File(firstDir, "1.png").toPath(), new File(secondDir, "1.png").toPath()));
+        Assert.assertNotNull(ImageIO.read(new File(secondDir, "1.png")));
+    }
+
+    @Test
+    public void testRemovedImageIsReplacedInContentStore() throws IOException {
+        File firstDir = Files.createTempDirectory("test").toFile();
+        File secondDir = Files.createTempDirectory("test").toFile();
+        File thirdDir = Files.createTempDirectory("test").toFile();
+        writeImage(new File(firstDir, "1.png"), Color.RED, 100);
+        writeImage(new File(secondDir, "1.png"), Color.RED, 100);
+        writeImage(new File(thirdDir, "1.png"), Color.RED, 100);
+
+        ScreenshotProcessor processor = new ScreenshotProcessor(true, 0, -1);
+        processor.process(firstDir);
+        // e.g. removed by the report retention
+        Files.delete(new File(firstDir, "1.png").toPath());
+        processor.process(secondDir);
+        processor.process(thirdDir);
+
+        Assert.assertEquals(processor.getLinked(), 1);
+        Assert.assertTrue(Files.isSameFile(new File(secondDir, "1.png").toPath(), new File(thirdDir, "1.png").toPath()),
+                "Image should be linked to the one stored instead of the removed image");
+    }
+
+    @Test
+    public void testSubmittedDirectoryIsProcessedInBackground() throws IOException {
+        File testDir = Files.createTempDirectory("test").toFile();
+        writeImage(new File(testDir, "1.png"), Color.WHITE, 200);
+        writeImage(new File(testDir, "2.png"), Color.WHITE, 200);
+
+        ScreenshotProcessor processor = new ScreenshotProcessor(true, 0, -1);
+        AtomicReference<Thread> callbackThread = new AtomicReference<>();
+        AtomicBoolean processed = new AtomicBoolean();
+        processor.submit(testDir, () -> {
+            callbackThread.set(Thread.currentThread());
+            processed.set(!new File(testDir, "2.png").exists());
+        });
+        processor.flush();
+
+        Assert.assertNotNull(callbackThread.get(), "Callback should be run");
+        Assert.assertNotSame(callbackThread.get(), Thread.currentThread(), "Screenshots should be processed in background");
+        Assert.assertTrue(processed.get(), "Callback should be run after the processing");
+    }
+
+    @Test
+    public void testDownscale() throws IOException {
+        File testDir = Files.createTempDirectory("test").toFile();
+        writeImage(new File(testDir, "wide.png"), Color.GREEN, 400);
+        writeImage(new File(testDir, "narrow.png"), Color.GREEN, 100);
+
+        ScreenshotProcessor processor = new ScreenshotProcessor(false, 0, 200);
+        processor.process(testDir);
+
+        BufferedImage wide = ImageIO.read(new File(testDir, "wide.png"));
+        Assert.assertEquals(wide.getWidth(), 200);
+        Assert.assertEquals(wide.getHeight(), 100, "Aspect ratio should be kept");
+        Assert.assertEquals(ImageIO.read(new File(testDir, "narrow.png")).getWidth(), 100);
+        Assert.assertEquals(processor.getDownscaled(), 1);
+    }
+
+    private static void writeImage(File file, Color color, int width) throws IOException {
+        ImageIO.write(createImage(color, width), "png", file);
+    }
+
+    private static BufferedImage createImage(Color color, int width) {
+        BufferedImage image = new BufferedImage(width, width / 2, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = image.createGraphics();
+        graphics.setColor(color);
+        graphics.fillRect(0, 0, width, width / 2);
+        // gradient stripe so the hash depends on the content
+        graphics.setColor(Color.GRAY);
+        graphics.fillRect(width / 4, 0, width / 8, width / 2);
+        graphics.dispose();
+        return image;
+    }
+}
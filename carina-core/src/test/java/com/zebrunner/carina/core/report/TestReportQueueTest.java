@@ -0,0 +1,97 @@
+/*******************************************************************************
+ * Copyright 2020-2022 Zebrunner Inc (https://www.zebrunner.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.zebrunner.carina.core.report;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Tests for {@link TestReportQueue}
+ */
+public class TestReportQueueTest {
+
+    @Test
+    public void testFlushWaitsForSubmittedReports() throws InterruptedException {
+        List<String> generated = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        TestReportQueue queue = new TestReportQueue(2, 10, dir -> {
+            if ("slow".equals(dir.getName())) {
+                started.countDown();
+                await(release);
+            }
+            generated.add(dir.getName());
+        });
+
+        queue.submit(new File("slow"));
+        started.await();
+        for (int i = 0; i < 5; i++) {
+            queue.submit(new File("test" + i));
+        }
+        Assert.assertTrue(queue.getDepth() >= 1, "Slow report should be counted till generated");
+
+        release.countDown();
+        queue.flush();
+        Assert.assertEquals(generated.size(), 6);
+        Assert.assertEquals(queue.getDepth(), 0);
+        Assert.assertEquals(queue.getGenerated(), 6);
+        Assert.assertEquals(queue.getLagMillis(), 0);
+        Assert.assertTrue(queue.getMaxDepth() >= 2, "Max depth should include reports waiting for the slow one");
+    }
+
+    @Test
+    public void testReportsOfDirectoryAreOrdered() {
+        List<File> generated = Collections.synchronizedList(new ArrayList<>());
+        TestReportQueue queue = new TestReportQueue(4, 2, generated::add);
+
+        List<File> submitted = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            // the same directory submitted by retries, instances are compared by identity
+            File dir = new File("retried");
+            submitted.add(dir);
+            queue.submit(dir);
+        }
+        queue.flush();
+        Assert.assertEquals(generated.size(), submitted.size());
+        for (int i = 0; i < submitted.size(); i++) {
+            Assert.assertSame(generated.get(i), submitted.get(i), "Report " + i + " is generated out of order");
+        }
+    }
+
+    @Test
+    public void testSynchronousGenerationWithoutWorkers() {
+        List<String> generated = new ArrayList<>();
+        TestReportQueue queue = new TestReportQueue(0, 10, dir -> generated.add(Thread.currentThread().getName()));
+
+        Assert.assertFalse(queue.isEnabled());
+        queue.submit(new File("test"));
+        Assert.assertEquals(generated, List.of(Thread.currentThread().getName()));
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,105 @@
+/*******************************************************************************
+ * Copyright 2020-2022 Zebrunner Inc (https://www.zebrunner.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.zebrunner.carina.core.testng;
+
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.testng.Assert;
+import org.testng.ITestNGMethod;
+import org.testng.ITestResult;
+import org.testng.annotations.Test;
+
+/**
+ * Tests for {@link DependencyChainManager}
+ */
+public class DependencyChainManagerTest {
+
+    private static final String[] NONE = new String[0];
+
+    @Test
+    public void testComponentsOfDependentMethods() {
+        String prefix = DependencyChainManagerTest.class.getName() + ".";
+        List<ITestNGMethod> methods = List.of(
+                createMethod("login", NONE, NONE, NONE, 1),
+                createMethod("openCart", new String[] { prefix + "login" }, NONE, NONE, 1),
+                // short name of the method of the same class
+                createMethod("checkout", new String[] { "openCart" }, NONE, NONE, 1),
+                createMethod("createUser", NONE, new String[] { "setup" }, NONE, 1),
+                createMethod("deleteUser", NONE, NONE, new String[] { "setup" }, 1),
+                createMethod("standalone", NONE, NONE, NONE, 1));
+
+        Map<String, Integer> components = DependencyChainManager.getComponents(methods);
+        Assert.assertEquals(components.get(prefix + "openCart"), components.get(prefix + "login"));
+        Assert.assertEquals(components.get(prefix + "checkout"), components.get(prefix + "login"));
+        Assert.assertEquals(components.get(prefix + "deleteUser"), components.get(prefix + "createUser"));
+        Assert.assertNotEquals(components.get(prefix + "createUser"), components.get(prefix + "login"));
+        Assert.assertNotEquals(components.get(prefix + "standalone"), components.get(prefix + "login"));
+        Assert.assertNotEquals(components.get(prefix + "standalone"), components.get(prefix + "createUser"));
+    }
+
+    @Test
+    public void testChainIsPendingTillAllInvocationsOfEveryInstance() {
+        ITestNGMethod login = createMethod("login", NONE, NONE, NONE, 1);
+        // data provider with 2 rows
+        ITestNGMethod search = createMethod("search", new String[] { "login" }, NONE, NONE, 2);
+        DependencyChainManager manager = DependencyChainManager.getInstance();
+        String previous = System.getProperty("testng.thread.affinity");
+        manager.init(List.of(login, search));
+        try {
+            Assert.assertEquals(System.getProperty("testng.thread.affinity"), "true");
+            // two instances created by factory
+            Object first = new Object();
+            Object second = new Object();
+
+            Assert.assertTrue(manager.hasPendingMethods(createResult(login, first, false)));
+            Assert.assertTrue(manager.hasPendingMethods(createResult(search, first, false)));
+            // retried invocation is not counted
+            Assert.assertTrue(manager.hasPendingMethods(createResult(search, first, true)));
+            Assert.assertFalse(manager.hasPendingMethods(createResult(search, first, false)), "Chain of the first instance is finished");
+
+            Assert.assertTrue(manager.hasPendingMethods(createResult(login, second, false)));
+        } finally {
+            manager.finish();
+        }
+        Assert.assertEquals(System.getProperty("testng.thread.affinity"), previous, "Thread affinity should be restored");
+    }
+
+    private static ITestNGMethod createMethod(String name, String[] methodsDependedUpon, String[] groups, String[] groupsDependedUpon,
+            int parameterInvocationCount) {
+        Map<String, Object> values = new HashMap<>();
+        values.put("getRealClass", DependencyChainManagerTest.class);
+        values.put("getMethodName", name);
+        values.put("getMethodsDependedUpon", methodsDependedUpon);
+        values.put("getGroups", groups);
+        values.put("getGroupsDependedUpon", groupsDependedUpon);
+        values.put("getInvocationCount", 1);
+        values.put("getParameterInvocationCount", parameterInvocationCount);
+        return proxy(ITestNGMethod.class, values);
+    }
+
+    private static ITestResult createResult(ITestNGMethod method, Object instance, boolean retried) {
+        return proxy(ITestResult.class, Map.of("getMethod", method, "getInstance", instance, "wasRetried", retried));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(Class<T> type, Map<String, Object> values) {
+        return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type },
+                (proxy, method, args) -> values.get(method.getName()));
+    }
+}
@@ -0,0 +1,101 @@
+/*******************************************************************************
+ * Copyright 2020-2022 Zebrunner Inc (https://www.zebrunner.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.zebrunner.carina.core.testng;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.openqa.selenium.MutableCapabilities;
+import org.testng.Assert;
+import org.testng.IMethodInstance;
+import org.testng.ITestNGMethod;
+import org.testng.annotations.Test;
+import org.testng.xml.XmlSuite;
+import org.testng.xml.XmlTest;
+
+/**
+ * Tests for {@link DriverAffinityManager}
+ */
+public class DriverAffinityManagerTest {
+
+    @Test
+    public void testMethodsAreGroupedByCapabilities() {
+        XmlTest android = createXmlTest("capabilities.platformName", "ANDROID");
+        XmlTest ios = createXmlTest("capabilities.platformName", "IOS");
+        List<IMethodInstance> methods = new ArrayList<>();
+        methods.add(createInstance("android1", android));
+        methods.add(createInstance("ios1", ios));
+        methods.add(createInstance("android2", android));
+        methods.add(createInstance("ios2", ios));
+
+        List<String> sorted = new ArrayList<>();
+        for (IMethodInstance method : DriverAffinityManager.getInstance().sort(methods)) {
+            sorted.add(method.getMethod().getMethodName());
+        }
+        Assert.assertEquals(sorted, List.of("android1", "android2", "ios1", "ios2"));
+    }
+
+    @Test
+    public void testKeptDriversOfAnotherGroupAreNotReused() {
+        DriverAffinityManager manager = DriverAffinityManager.getInstance();
+        XmlTest android = createXmlTest("capabilities.platformName", "ANDROID");
+        XmlTest ios = createXmlTest("capabilities.platformName", "IOS");
+
+        manager.keepDrivers(createMethod("android1", android));
+        Assert.assertTrue(manager.isReusable(createMethod("android2", android)));
+
+        manager.keepDrivers(createMethod("android2", android));
+        Assert.assertFalse(manager.isReusable(createMethod("ios1", ios)));
+        // kept drivers are consumed by the verification
+        Assert.assertTrue(manager.isReusable(createMethod("ios1", ios)));
+    }
+
+    @Test
+    public void testDriverCapabilitiesAreVerified() {
+        Map<String, String> requested = Map.of("platformName", "ANDROID", "browser", "chrome", "deviceName", "");
+        MutableCapabilities capabilities = new MutableCapabilities();
+        capabilities.setCapability("platformName", "android");
+        capabilities.setCapability("browserName", "chrome");
+        capabilities.setCapability("deviceName", "Pixel");
+        Assert.assertTrue(DriverAffinityManager.isMatching(requested, capabilities));
+
+        capabilities.setCapability("browserName", "firefox");
+        Assert.assertFalse(DriverAffinityManager.isMatching(requested, capabilities), "Driver of another browser should not be reused");
+    }
+
+    private static XmlTest createXmlTest(String name, String value) {
+        XmlTest xmlTest = new XmlTest(new XmlSuite());
+        xmlTest.setParameters(Map.of(name, value));
+        return xmlTest;
+    }
+
+    private static IMethodInstance createInstance(String name, XmlTest xmlTest) {
+        return proxy(IMethodInstance.class, Map.of("getMethod", createMethod(name, xmlTest)));
+    }
+
+    private static ITestNGMethod createMethod(String name, XmlTest xmlTest) {
+        return proxy(ITestNGMethod.class, Map.of("getRealClass", DriverAffinityManagerTest.class, "getMethodName", name,
+                "getXmlTest", xmlTest));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(Class<T> type, Map<String, Object> values) {
+        return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type },
+                (proxy, method, args) -> values.get(method.getName()));
+    }
+}
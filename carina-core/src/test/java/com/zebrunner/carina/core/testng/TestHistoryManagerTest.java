@@ -0,0 +1,118 @@
+/*******************************************************************************
+ * Copyright 2020-2022 Zebrunner Inc (https://www.zebrunner.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.zebrunner.carina.core.testng;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.testng.Assert;
+import org.testng.IMethodInstance;
+import org.testng.ITestNGMethod;
+import org.testng.ITestResult;
+import org.testng.annotations.Test;
+
+/**
+ * Tests for {@link TestHistoryManager}
+ */
+public class TestHistoryManagerTest {
+
+    private static final String PREFIX = TestHistoryManagerTest.class.getName() + ".";
+
+    @Test
+    public void testRiskyMethodsGoFirst() throws IOException {
+        File file = Files.createTempFile("test-history", ".properties").toFile();
+        file.deleteOnExit();
+        // runs,failures,retries,lastFailed
+        Files.writeString(file.toPath(), PREFIX + "lastFailed=10,1,0,true\n"
+                + PREFIX + "unstable=10,5,0,false\n"
+                + PREFIX + "flaky=10,0,3,false\n"
+                + PREFIX + "stable=10,0,0,false\n");
+
+        TestHistoryManager manager = new TestHistoryManager(file, true, -1);
+        List<IMethodInstance> methods = new ArrayList<>();
+        for (String name : List.of("stable", "unknown", "flaky", "unstable", "lastFailed")) {
+            ITestNGMethod method = createMethod(name);
+            methods.add(proxy(IMethodInstance.class, Map.of("getMethod", method)));
+        }
+
+        List<String> sorted = new ArrayList<>();
+        for (IMethodInstance method : manager.sort(methods)) {
+            sorted.add(method.getMethod().getMethodName());
+        }
+        Assert.assertEquals(sorted, List.of("lastFailed", "unstable", "flaky", "stable", "unknown"));
+    }
+
+    @Test
+    public void testHistoryIsUpdatedAndSaved() throws IOException {
+        File file = Files.createTempFile("test-history", ".properties").toFile();
+        file.deleteOnExit();
+        Files.writeString(file.toPath(), PREFIX + "login=1,0,0,false\n");
+
+        TestHistoryManager manager = new TestHistoryManager(file, true, -1);
+        manager.register(createResult("login", ITestResult.FAILURE, true));
+        manager.register(createResult("login", ITestResult.FAILURE, false));
+        // skipped test says nothing about the test itself
+        manager.register(createResult("login", ITestResult.SKIP, false));
+        manager.save();
+
+        String saved = Files.readString(file.toPath());
+        Assert.assertTrue(saved.contains("login=2,1,1,true"), saved);
+    }
+
+    @Test
+    public void testMaxFailuresLimit() {
+        TestHistoryManager manager = new TestHistoryManager(new File("not-used.properties"), false, 2);
+
+        manager.register(createResult("first", ITestResult.FAILURE, false));
+        // retried attempt is not a failure of the test yet
+        manager.register(createResult("second", ITestResult.FAILURE, true));
+        manager.register(createResult("third", ITestResult.SKIP, false));
+        manager.register(createResult("fourth", ITestResult.SUCCESS, false));
+        Assert.assertFalse(manager.isFailuresLimitReached());
+        Assert.assertEquals(manager.getFailuresCount(), 1);
+
+        manager.register(createResult("second", ITestResult.FAILURE, false));
+        Assert.assertTrue(manager.isFailuresLimitReached());
+    }
+
+    @Test
+    public void testNoFailuresLimitByDefault() {
+        TestHistoryManager manager = new TestHistoryManager(new File("not-used.properties"), false, -1);
+        for (int i = 0; i < 10; i++) {
+            manager.register(createResult("test" + i, ITestResult.FAILURE, false));
+        }
+        Assert.assertFalse(manager.isFailuresLimitReached());
+    }
+
+    private static ITestNGMethod createMethod(String name) {
+        return proxy(ITestNGMethod.class, Map.of("getRealClass", TestHistoryManagerTest.class, "getMethodName", name));
+    }
+
+    private static ITestResult createResult(String name, int status, boolean retried) {
+        return proxy(ITestResult.class, Map.of("getMethod", createMethod(name), "getStatus", status, "wasRetried", retried));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(Class<T> type, Map<String, Object> values) {
+        return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type },
+                (proxy, method, args) -> values.get(method.getName()));
+    }
+}
@@ -0,0 +1,178 @@
+/*******************************************************************************
+ * Copyright 2020-2022 Zebrunner Inc (https://www.zebrunner.com).
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package com.zebrunner.carina.core.testng;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.testng.Assert;
+import org.testng.ITestNGMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Tests for {@link TestImpactManager}
+ */
+public class TestImpactManagerTest {
+
+    @Test
+    public void testChangedFilesToClassNames() {
+        Set<String> classes = TestImpactManager.toClassNames(List.of(
+                "carina-core/src/main/java/com/zebrunner/carina/core/log/ThreadLogAppender.java",
+                "src\\test\\java\\com\\example\\MyTest.java",
+                ""));
+
+        Assert.assertNotNull(classes);
+        Assert.assertEquals(classes.size(), 2);
+        Assert.assertTrue(classes.contains("com.zebrunner.carina.core.log.ThreadLogAppender"));
+        Assert.assertTrue(classes.contains("com.example.MyTest"));
+    }
+
+    @Test
+    public void testNonJavaChangeDisablesImpact() {
+        Set<String> classes = TestImpactManager.toClassNames(List.of(
+                "src/main/java/com/example/Page.java",
+                "pom.xml"));
+
+        Assert.assertNull(classes, "Impact should not be calculated for non java changes");
+    }
+
+    @Test
+    public void testConfigurationMethodsAreAttributedToClassTests() throws IOException {
+        File indexFile = Files.createTempFile("test-impact", ".idx").toFile();
+        indexFile.deleteOnExit();
+        Deque<byte[]> data = new ArrayDeque<>();
+        TestImpactManager manager = new TestImpactManager(indexFile, true, reset -> data.isEmpty() ? executionData() : data.poll(), null);
+
+        // @BeforeClass
+        data.add(executionData());
+        data.add(executionData("com/example/Setup"));
+        manager.startConfiguration(createMethod("beforeClass"));
+        manager.stopConfiguration(createMethod("beforeClass"));
+        // @BeforeMethod invoked without listener notification is attributed to the starting test
+        data.add(executionData("com/example/Prepare"));
+        data.add(executionData("com/example/LoginPage"));
+        manager.startRecording(createMethod("login"));
+        manager.stopRecording(createMethod("login"));
+        data.add(executionData());
+        data.add(executionData("com/example/SearchPage"));
+        manager.startRecording(createMethod("search"));
+        manager.stopRecording(createMethod("search"));
+        // @AfterClass
+        data.add(executionData());
+        data.add(executionData("com/example/Teardown"));
+        manager.startConfiguration(createMethod("afterClass"));
+        manager.stopConfiguration(createMethod("afterClass"));
+        manager.save();
+
+        TestImpactManager loaded = new TestImpactManager(indexFile, false, null, null);
+        Assert.assertTrue(loaded.isAffected(createMethod("login"), Set.of("com.example.Setup")));
+        Assert.assertTrue(loaded.isAffected(createMethod("search"), Set.of("com.example.Setup")));
+        Assert.assertTrue(loaded.isAffected(createMethod("search"), Set.of("com.example.Teardown")));
+        Assert.assertTrue(loaded.isAffected(createMethod("login"), Set.of("com.example.Prepare")));
+        Assert.assertFalse(loaded.isAffected(createMethod("search"), Set.of("com.example.LoginPage")));
+        Assert.assertFalse(loaded.isAffected(createMethod("login"), Set.of("com.example.Other")));
+    }
+
+    @Test
+    public void testRemovedTestsAreDroppedFromIndex() throws IOException {
+        File indexFile = Files.createTempFile("test-impact", ".idx").toFile();
+        indexFile.deleteOnExit();
+        Files.writeString(indexFile.toPath(), "#classes\n0 com.example.Page\n#tests\n"
+                + "com.example.RemovedTest.test 0\n"
+                + TestImpactManagerTest.class.getName() + ".testNonJavaChangeDisablesImpact 0\n");
+
+        TestImpactManager manager = new TestImpactManager(indexFile, true, reset -> executionData(), null);
+        manager.startRecording(createMethod("login"));
+        manager.stopRecording(createMethod("login"));
+        manager.save();
+
+        String saved = Files.readString(indexFile.toPath());
+        Assert.assertFalse(saved.contains("RemovedTest"), saved);
+        Assert.assertTrue(saved.contains(".testNonJavaChangeDisablesImpact 0"), saved);
+        Assert.assertTrue(saved.contains(".login"), saved);
+    }
+
+    @Test
+    public void testResetExecutionDataIsAppendedToCoverageFile() throws IOException {
+        File indexFile = Files.createTempFile("test-impact", ".idx").toFile();
+        File coverageFile = Files.createTempFile("jacoco", ".exec").toFile();
+        indexFile.deleteOnExit();
+        coverageFile.deleteOnExit();
+        Deque<byte[]> data = new ArrayDeque<>(List.of(executionData("com/example/LoginPage"), executionData("com/example/SearchPage")));
+        TestImpactManager manager = new TestImpactManager(indexFile, true, reset -> data.isEmpty() ? executionData() : data.poll(), coverageFile);
+        manager.startRecording(createMethod("login"));
+        manager.stopRecording(createMethod("login"));
+        manager.save();
+
+        // appended session is readable as JaCoCo execution data
+        byte[] saved = Files.readAllBytes(coverageFile.toPath());
+        TestImpactManager reader = new TestImpactManager(indexFile, true, reset -> saved, null);
+        reader.startRecording(createMethod("search"));
+        reader.stopRecording(createMethod("search"));
+        Assert.assertTrue(reader.isAffected(createMethod("search"), Set.of("com.example.LoginPage")));
+        Assert.assertTrue(reader.isAffected(createMethod("search"), Set.of("com.example.SearchPage")));
+    }
+
+    private static byte[] executionData(String... classes) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(0x01);
+            out.writeChar(0xC0C0);
+            out.writeChar(0x1007);
+            out.writeByte(0x10);
+            out.writeUTF("session");
+            out.writeLong(0);
+            out.writeLong(0);
+            // not executed class
+            out.writeByte(0x11);
+            out.writeLong(1);
+            out.writeUTF("com/example/Unused");
+            out.writeByte(3);
+            out.writeByte(0);
+            for (int i = 0; i < classes.length; i++) {
+                out.writeByte(0x11);
+                out.writeLong(i + 2L);
+                out.writeUTF(classes[i]);
+                out.writeByte(10);
+                out.writeByte(0x04);
+                out.writeByte(0x00);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static ITestNGMethod createMethod(String name) {
+        return proxy(ITestNGMethod.class, Map.of("getRealClass", TestImpactManagerTest.class, "getMethodName", name));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(Class<T> type, Map<String, Object> values) {
+        return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type },
+                (proxy, method, args) -> values.get(method.getName()));
+    }
+}